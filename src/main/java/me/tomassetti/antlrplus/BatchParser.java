@@ -0,0 +1,248 @@
+package me.tomassetti.antlrplus;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Parses many files concurrently with one ParserFacade, which is shared by the tasks.
+ *
+ * At most maxInFlight files are parsed or waiting to be delivered at any time, so that a batch over a whole
+ * repository does not keep all the trees in memory when they are consumed one by one. A file which cannot be read
+ * or parsed gives a failed result, the batch goes on.
+ *
+ * Results are delivered on the calling thread.
+ */
+public class BatchParser<R extends ParserRuleContext> {
+
+    public enum Order {
+        /**
+         * Deliver the results in the order of the files: a slow file holds back the following ones.
+         */
+        INPUT,
+        /**
+         * Deliver each result as soon as it is ready.
+         */
+        COMPLETION
+    }
+
+    public static class Result<R extends ParserRuleContext> {
+        private final int index;
+        private final Path file;
+        private final R root;
+        private final Throwable failure;
+        private final long nanos;
+
+        private Result(int index, Path file, R root, Throwable failure, long nanos) {
+            this.index = index;
+            this.file = file;
+            this.root = root;
+            this.failure = failure;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Position of the file in the batch.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public Optional<R> getRoot() {
+            return Optional.ofNullable(root);
+        }
+
+        public Optional<Throwable> getFailure() {
+            return Optional.ofNullable(failure);
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * Time spent reading and parsing the file.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "BatchParser.Result{" +
+                    "file=" + file +
+                    ", success=" + isSuccess() +
+                    ", nanos=" + nanos +
+                    '}';
+        }
+    }
+
+    private final ParserFacade<R, ?> facade;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int maxInFlight = Runtime.getRuntime().availableProcessors() * 2;
+    private Order order = Order.INPUT;
+
+    public BatchParser(ParserFacade<R, ?> facade) {
+        this.facade = facade;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The executor running the parsings, by default the common fork-join pool.
+     */
+    public void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException();
+        }
+        this.executor = executor;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one file should be in flight, got " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public void setOrder(Order order) {
+        if (order == null) {
+            throw new IllegalArgumentException();
+        }
+        this.order = order;
+    }
+
+    /**
+     * Parse all the files and return all the results, in the order of the files whatever the configured order.
+     */
+    public List<Result<R>> parseAll(Collection<Path> files) {
+        List<Result<R>> results = new ArrayList<>(Collections.nCopies(files.size(), null));
+        parseAll(files, result -> results.set(result.getIndex(), result));
+        return results;
+    }
+
+    /**
+     * Pass each result to the consumer, on the calling thread, as configured by the order. The tree of a result
+     * delivered to the consumer does not count anymore as in flight.
+     */
+    public void parseAll(Collection<Path> files, Consumer<Result<R>> consumer) {
+        Batch batch = new Batch(files);
+        try {
+            while (batch.hasNext()) {
+                consumer.accept(batch.next());
+            }
+        } finally {
+            batch.cancel();
+        }
+    }
+
+    /**
+     * The files are parsed while the stream is consumed. Closing the stream cancels the parsings not yet started.
+     */
+    public Stream<Result<R>> stream(Collection<Path> files) {
+        Batch batch = new Batch(files);
+        return StreamSupport.stream(Spliterators.spliterator(batch, files.size(),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED), false).onClose(batch::cancel);
+    }
+
+    /**
+     * Submits the parsings from the consuming thread, while there are permits, and hands out the results.
+     */
+    private class Batch implements Iterator<Result<R>> {
+        private final Order order = BatchParser.this.order;
+        private final Iterator<Path> files;
+        private final int size;
+        private final Semaphore permits = new Semaphore(maxInFlight);
+        private final BlockingQueue<Result<R>> completed = new LinkedBlockingQueue<>();
+        // results waiting for the previous ones, in INPUT order
+        private final Map<Integer, Result<R>> waiting = new HashMap<>();
+        private final List<Future<?>> running = new ArrayList<>();
+        private int submitted = 0;
+        private int delivered = 0;
+
+        Batch(Collection<Path> files) {
+            this.files = new ArrayList<>(files).iterator();
+            this.size = files.size();
+        }
+
+        private void submit() {
+            while (files.hasNext() && permits.tryAcquire()) {
+                int index = submitted++;
+                Path file = files.next();
+                FutureTask<Void> task = new FutureTask<>(() -> completed.add(parse(index, file)), null);
+                running.add(task);
+                executor.execute(task);
+            }
+        }
+
+        private Result<R> parse(int index, Path file) {
+            long start = System.nanoTime();
+            try {
+                R root = facade.parseFile(file);
+                return new Result<>(index, file, root, null, System.nanoTime() - start);
+            } catch (Throwable t) {
+                return new Result<>(index, file, null, t, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delivered < size;
+        }
+
+        @Override
+        public Result<R> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                Result<R> result;
+                if (order == Order.COMPLETION) {
+                    submit();
+                    result = completed.take();
+                } else {
+                    while (!waiting.containsKey(delivered)) {
+                        submit();
+                        Result<R> ready = completed.take();
+                        waiting.put(ready.getIndex(), ready);
+                    }
+                    result = waiting.remove(delivered);
+                }
+                delivered++;
+                permits.release();
+                running.removeIf(Future::isDone);
+                return result;
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the parsing of the files", e);
+            }
+        }
+
+        void cancel() {
+            for (Future<?> future : running) {
+                future.cancel(false);
+            }
+            running.clear();
+        }
+    }
+}
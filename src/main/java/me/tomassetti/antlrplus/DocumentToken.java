@@ -0,0 +1,161 @@
+package me.tomassetti.antlrplus;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.util.Arrays;
+
+/**
+ * Token of an EditableDocument. An edit moves all the tokens after it: rather than updating each of them, the
+ * document adds the move to its Shifts, and a token applies the moves it missed when its index or positions are read.
+ */
+class DocumentToken extends SourceToken {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The moves done by the edits of a document, in order: the tokens from a given index (at the time of the edit)
+     * onwards changed index, char indexes and line by the same amounts.
+     */
+    static final class Shifts {
+        private int[] fromIndex = new int[16];
+        private int[] indexDelta = new int[16];
+        private int[] charDelta = new int[16];
+        private int[] lineDelta = new int[16];
+        private int size = 0;
+
+        void add(int fromIndex, int indexDelta, int charDelta, int lineDelta) {
+            if (size == this.fromIndex.length) {
+                this.fromIndex = Arrays.copyOf(this.fromIndex, size * 2);
+                this.indexDelta = Arrays.copyOf(this.indexDelta, size * 2);
+                this.charDelta = Arrays.copyOf(this.charDelta, size * 2);
+                this.lineDelta = Arrays.copyOf(this.lineDelta, size * 2);
+            }
+            this.fromIndex[size] = fromIndex;
+            this.indexDelta[size] = indexDelta;
+            this.charDelta[size] = charDelta;
+            this.lineDelta[size] = lineDelta;
+            size++;
+        }
+
+        TokenFactory<DocumentToken> factory() {
+            return new TokenFactory<DocumentToken>() {
+                @Override
+                public DocumentToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel,
+                                            int start, int stop, int line, int charPositionInLine) {
+                    DocumentToken token = new DocumentToken(Shifts.this, source, type, channel, start, stop);
+                    token.setLine(line);
+                    token.setCharPositionInLine(charPositionInLine);
+                    if (text != null) {
+                        token.setText(text);
+                    }
+                    return token;
+                }
+
+                @Override
+                public DocumentToken create(int type, String text) {
+                    throw new UnsupportedOperationException("Tokens of a document come from its input");
+                }
+            };
+        }
+    }
+
+    private final Shifts shifts;
+    // the number of moves already applied
+    private int applied;
+
+    private DocumentToken(Shifts shifts, Pair<TokenSource, CharStream> source, int type, int channel, int start, int stop) {
+        super(source, type, channel, start, stop);
+        this.shifts = shifts;
+        this.applied = shifts.size;
+    }
+
+    DocumentToken(Shifts shifts, Token token) {
+        super(token);
+        this.shifts = shifts;
+        this.applied = shifts.size;
+    }
+
+    private void catchUp() {
+        for (; applied < shifts.size; applied++) {
+            if (index >= shifts.fromIndex[applied]) {
+                index += shifts.indexDelta[applied];
+                start += shifts.charDelta[applied];
+                stop += shifts.charDelta[applied];
+                line += shifts.lineDelta[applied];
+            }
+        }
+    }
+
+    /**
+     * Put the token at the index, in the document as it is after the last move: the moves before are not applied
+     * to it. Its positions should be set afterwards.
+     */
+    void place(int index) {
+        this.index = index;
+        this.applied = shifts.size;
+    }
+
+    @Override
+    public int getTokenIndex() {
+        catchUp();
+        return super.getTokenIndex();
+    }
+
+    @Override
+    public void setTokenIndex(int index) {
+        catchUp();
+        super.setTokenIndex(index);
+    }
+
+    @Override
+    public int getStartIndex() {
+        catchUp();
+        return super.getStartIndex();
+    }
+
+    @Override
+    public void setStartIndex(int start) {
+        catchUp();
+        super.setStartIndex(start);
+    }
+
+    @Override
+    public int getStopIndex() {
+        catchUp();
+        return super.getStopIndex();
+    }
+
+    @Override
+    public void setStopIndex(int stop) {
+        catchUp();
+        super.setStopIndex(stop);
+    }
+
+    @Override
+    public int getLine() {
+        catchUp();
+        return super.getLine();
+    }
+
+    @Override
+    public void setLine(int line) {
+        catchUp();
+        super.setLine(line);
+    }
+
+    @Override
+    public String getText() {
+        catchUp();
+        return super.getText();
+    }
+
+    @Override
+    public String toString() {
+        catchUp();
+        return super.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package me.tomassetti.antlrplus;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Input of an EditableDocument: its content is changed in place at each edit, so that the tokens kept from the
+ * previous version read their text from the new one. The version tells apart the contents, for whoever caches
+ * something computed from the input.
+ *
+ * The chars are kept in a gap buffer, with the gap at the last edit: an edit moves only the chars between it and the
+ * previous one, not the whole text after it.
+ *
+ * It also records the furthest char examined, to know which tokens an edit can affect.
+ */
+public class EditableCharStream extends ANTLRInputStream {
+
+    private static final int MIN_GAP = 64;
+
+    private char[] buffer;
+    private int gapStart;
+    private int gapEnd;
+    private long version = 0;
+    private int furthest = -1;
+
+    public EditableCharStream(String text, String name) {
+        this.data = new char[0];
+        this.buffer = new char[text.length() + MIN_GAP];
+        text.getChars(0, text.length(), buffer, 0);
+        this.gapStart = text.length();
+        this.gapEnd = buffer.length;
+        this.n = text.length();
+        this.name = name;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private char charAt(int index) {
+        return buffer[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    /**
+     * Replace removedLength chars at the offset with the inserted text.
+     */
+    void replace(int offset, int removedLength, String inserted) {
+        moveGap(offset);
+        gapEnd += removedLength;
+        ensureGap(inserted.length());
+        inserted.getChars(0, inserted.length(), buffer, gapStart);
+        gapStart += inserted.length();
+        this.n += inserted.length() - removedLength;
+        this.p = 0;
+        this.version++;
+    }
+
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(buffer, index, buffer, gapEnd - count, count);
+            gapStart = index;
+            gapEnd -= count;
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(buffer, gapEnd, buffer, gapStart, count);
+            gapStart = index;
+            gapEnd += count;
+        }
+    }
+
+    private void ensureGap(int length) {
+        if (gapEnd - gapStart >= length) {
+            return;
+        }
+        char[] grown = new char[Math.max(buffer.length * 2, n + length + MIN_GAP)];
+        System.arraycopy(buffer, 0, grown, 0, gapStart);
+        int tail = buffer.length - gapEnd;
+        System.arraycopy(buffer, gapEnd, grown, grown.length - tail, tail);
+        gapEnd = grown.length - tail;
+        buffer = grown;
+    }
+
+    /**
+     * Index of the first occurrence of the char at or after the given index, -1 if there is none.
+     */
+    int indexOf(char c, int from) {
+        for (int i = Math.max(from, 0); i < n; i++) {
+            if (charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the furthest char examined since the last call to resetFurthest. It is the size of the input when
+     * the end has been looked at.
+     */
+    int getFurthest() {
+        return furthest;
+    }
+
+    void resetFurthest() {
+        this.furthest = p - 1;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0) {
+            return 0;
+        }
+        if (i > 0 && p + i - 1 > furthest) {
+            furthest = Math.min(p + i - 1, n);
+        }
+        if (i < 0) {
+            i++;
+            if (p + i - 1 < 0) {
+                return IntStream.EOF;
+            }
+        }
+        if (p + i - 1 >= n) {
+            return IntStream.EOF;
+        }
+        return charAt(p + i - 1);
+    }
+
+    /**
+     * Move directly to the index, without consuming the chars in between.
+     */
+    @Override
+    public void seek(int index) {
+        p = Math.max(0, Math.min(index, n));
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = Math.max(interval.a, 0);
+        int stop = Math.min(interval.b, n - 1);
+        if (start > stop) {
+            return "";
+        }
+        int count = stop - start + 1;
+        if (stop < gapStart) {
+            return new String(buffer, start, count);
+        }
+        if (start >= gapStart) {
+            return new String(buffer, start + gapEnd - gapStart, count);
+        }
+        char[] chars = new char[count];
+        System.arraycopy(buffer, start, chars, 0, gapStart - start);
+        System.arraycopy(buffer, gapEnd, chars, gapStart - start, stop + 1 - gapStart);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, n - 1));
+    }
+}
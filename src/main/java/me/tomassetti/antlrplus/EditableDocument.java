@@ -0,0 +1,765 @@
+package me.tomassetti.antlrplus;
+
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.metamodel.mapping.ElementCache;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * A text parsed once and then kept up to date through edits, each one touching only the part of the tree around it.
+ *
+ * While lexing, the document records where each call to the lexer started, in which state, and how far it looked;
+ * while parsing, how far the parser had looked when it entered each rule. On an edit:
+ * <ul>
+ *     <li>the lexer is restarted from the first token which looked at the edited text, and it runs, at least past the
+ *     line where the edit ends, until it is back in the same state, at the same place, as it was before the edit. The
+ *     following tokens are kept and moved;</li>
+ *     <li>the smallest rule context which contains the changed tokens, and whose entering did not depend on them, is
+ *     parsed again in its original parent context. The new context replaces the old one if it ends at the same
+ *     token, otherwise an enclosing context is tried, up to parsing the whole text again.</li>
+ * </ul>
+ * Unchanged contexts and tokens are kept, so the elements mapped from them through getRootElement are kept as well.
+ *
+ * The tree is edited in place. The document has its own lexer and parser, created by the facade: the parsing mode
+ * does not apply. Grammars whose actions or predicates depend on state other than the tokens are not supported.
+ *
+ * Lexers keeping state in their own fields (e.g. the indentation levels of the Python grammar) need the facade to
+ * implement saveLexerState and restoreLexerState, otherwise the document cannot be created. The two methods must:
+ * <ul>
+ *     <li>save, between two tokens, all the state held in the fields of the lexer, or return an empty Optional when
+ *     the lexer cannot be restarted there, e.g. when it has tokens pending;</li>
+ *     <li>return a state comparable with equals: after an edit, the lexer is back in sync when it reaches the start
+ *     of a previous token in an equal state;</li>
+ *     <li>not keep char indexes or lines in the state, as they change when the text before them is edited: they can
+ *     be kept relative to the position of the lexer;</li>
+ *     <li>restore every field saved. The lexer is restored after setInputStream, with the char index, line, column
+ *     and modes it had when the state was saved.</li>
+ * </ul>
+ *
+ * An edit costs the relexing and the reparsing around it, plus moving the chars and the tokens between it and the
+ * previous edit: the text is kept in a gap buffer and the tokens after an edit are moved only when they are read.
+ *
+ * A document is not thread-safe.
+ */
+public class EditableDocument<R extends ParserRuleContext, P extends Parser> {
+
+    /**
+     * What an edit changed.
+     */
+    public static class Edit {
+        private final int relexedTokens;
+        private final int reusedTokens;
+        private final ParserRuleContext reparsed;
+        private final boolean fullReparse;
+
+        private Edit(int relexedTokens, int reusedTokens, ParserRuleContext reparsed, boolean fullReparse) {
+            this.relexedTokens = relexedTokens;
+            this.reusedTokens = reusedTokens;
+            this.reparsed = reparsed;
+            this.fullReparse = fullReparse;
+        }
+
+        /**
+         * Tokens produced again by the lexer which differ from the previous ones.
+         */
+        public int getRelexedTokens() {
+            return relexedTokens;
+        }
+
+        public int getReusedTokens() {
+            return reusedTokens;
+        }
+
+        /**
+         * The context which has been parsed again, empty if the edit changed only hidden tokens or positions.
+         */
+        public Optional<ParserRuleContext> getReparsed() {
+            return Optional.ofNullable(reparsed);
+        }
+
+        public boolean isFullReparse() {
+            return fullReparse;
+        }
+
+        @Override
+        public String toString() {
+            return "EditableDocument.Edit{" +
+                    "relexedTokens=" + relexedTokens +
+                    ", reusedTokens=" + reusedTokens +
+                    ", reparsed=" + (reparsed == null ? null : reparsed.getClass().getSimpleName()) +
+                    ", fullReparse=" + fullReparse +
+                    '}';
+        }
+    }
+
+    private static final class LexerSnapshot {
+        private final int mode;
+        private final int[] modeStack;
+        private final Object state;
+
+        LexerSnapshot(int mode, int[] modeStack, Object state) {
+            this.mode = mode;
+            this.modeStack = modeStack;
+            this.state = state;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof LexerSnapshot)) return false;
+
+            LexerSnapshot that = (LexerSnapshot) o;
+            return mode == that.mode && Arrays.equals(modeStack, that.modeStack) && state.equals(that.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mode + Arrays.hashCode(modeStack)) + state.hashCode();
+        }
+    }
+
+    /**
+     * The call to the lexer which returned a token: where it started (char index, line and column), in which state
+     * (null if the lexer could not be restarted there) and the furthest char it looked at. The char index and the
+     * line are kept relative to the token, so that they move with it.
+     */
+    private static final class LexRecord {
+        private Token token;
+        private final int lexStart;
+        private final int line;
+        private final int column;
+        private final LexerSnapshot before;
+        private final int furthest;
+
+        LexRecord(Token token, int lexStart, int line, int column, LexerSnapshot before, int furthest) {
+            this.token = token;
+            this.lexStart = lexStart - token.getStartIndex();
+            this.line = line - token.getLine();
+            this.column = column;
+            this.before = before;
+            this.furthest = furthest - token.getStartIndex();
+        }
+
+        int lexStart() {
+            return token.getStartIndex() + lexStart;
+        }
+
+        int line() {
+            return token.getLine() + line;
+        }
+
+        int furthest() {
+            return token.getStartIndex() + furthest;
+        }
+    }
+
+    /**
+     * Serves the tokens of the document, recording the furthest one looked at.
+     */
+    private class DocumentTokenStream extends CommonTokenStream {
+        private Token furthest;
+
+        DocumentTokenStream(Token furthest) {
+            super(lexer);
+            this.tokens = EditableDocument.this.tokens;
+            this.fetchedEOF = true;
+            this.furthest = furthest;
+        }
+
+        @Override
+        public Token LT(int k) {
+            Token token = super.LT(k);
+            if (k > 0 && token != null && (furthest == null || token.getTokenIndex() > furthest.getTokenIndex())) {
+                furthest = token;
+            }
+            return token;
+        }
+    }
+
+    private class FrontierRecorder implements ParseTreeListener {
+        @Override
+        public void enterEveryRule(ParserRuleContext ctx) {
+            entryFrontiers.put(ctx, tokenStream.furthest);
+            if (recorded != null) {
+                recorded.add(ctx);
+            }
+        }
+
+        @Override
+        public void exitEveryRule(ParserRuleContext ctx) {
+        }
+
+        @Override
+        public void visitTerminal(TerminalNode node) {
+        }
+
+        @Override
+        public void visitErrorNode(ErrorNode node) {
+        }
+    }
+
+    private final ParserFacade<R, P> facade;
+    private final EditableCharStream stream;
+    private Lexer lexer;
+    private final P parser;
+    private final List<Token> tokens = new GapList<>();
+    private final List<LexRecord> records = new GapList<>();
+    private final DocumentToken.Shifts shifts = new DocumentToken.Shifts();
+    // the furthest token looked at by the parser when it entered each context
+    private final Map<ParserRuleContext, Token> entryFrontiers = new IdentityHashMap<>();
+    private final Map<Class<? extends ParserRuleContext>, List<Field>> labelFields = new HashMap<>();
+    // contexts entered while parsing a context again, forgotten if the attempt fails
+    private List<ParserRuleContext> recorded;
+    private DocumentTokenStream tokenStream;
+    // the furthest any call to the lexer looked past its start
+    private int maxLookahead = 0;
+    private boolean onlyCommonTokens = true;
+    private R root;
+    private boolean valid;
+    private AntlrReflectionMapper mapper;
+    private ElementCache elementCache;
+
+    EditableDocument(ParserFacade<R, P> facade, String text, String sourceName) {
+        this.facade = facade;
+        this.stream = new EditableCharStream(text, sourceName);
+        lexAll();
+        if (hasOwnState(lexer.getClass()) && !savesLexerState(facade.getClass())) {
+            throw new IllegalStateException("The lexer " + lexer.getClass().getSimpleName() + " keeps state in its "
+                    + "own fields: the facade should implement saveLexerState and restoreLexerState to edit documents");
+        }
+        this.tokenStream = new DocumentTokenStream(null);
+        this.parser = facade.getParser(tokenStream);
+        parser.addParseListener(new FrontierRecorder());
+        parseAll();
+    }
+
+    private static boolean hasOwnState(Class<?> lexerClass) {
+        for (Class<?> c = lexerClass; c != Lexer.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean savesLexerState(Class<?> facadeClass) {
+        for (Class<?> c = facadeClass; c != ParserFacade.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("saveLexerState", Lexer.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // look in the superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The current text: it is built from the input at each call.
+     */
+    public String getText() {
+        return stream.toString();
+    }
+
+    public R getRoot() {
+        return root;
+    }
+
+    public List<Token> getTokens() {
+        return Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * Did the last complete parsing find syntax errors? Documents with errors are parsed completely at each edit.
+     */
+    public boolean hasSyntaxErrors() {
+        return !valid;
+    }
+
+    /**
+     * The root element of the tree mapped by the given mapper. The elements are cached by the document: after an
+     * edit the elements of the unchanged contexts are the same objects as before.
+     */
+    public OrderedElement getRootElement(AntlrReflectionMapper mapper) {
+        if (mapper != this.mapper || elementCache == null) {
+            this.mapper = mapper;
+            this.elementCache = mapper.createElementCache(ElementCache.Retention.STRONG);
+        }
+        return mapper.toRootElement(root, elementCache);
+    }
+
+    /**
+     * Replace removedLength chars at the offset with the inserted text, and update the tree.
+     */
+    public Edit edit(int offset, int removedLength, String inserted) {
+        int size = stream.size();
+        if (offset < 0 || removedLength < 0 || offset + removedLength > size) {
+            throw new IllegalArgumentException("Invalid edit of " + removedLength + " chars at " + offset
+                    + " for a text of " + size + " chars");
+        }
+        int restart = restartRecord(offset);
+        if (restart == -1 || !onlyCommonTokens) {
+            stream.replace(offset, removedLength, inserted);
+            lexAll();
+            return reparseAll(null);
+        }
+
+        String removed = stream.getText(Interval.of(offset, offset + removedLength - 1));
+        int delta = inserted.length() - removedLength;
+        int lineDelta = lines(inserted) - lines(removed);
+        stream.replace(offset, removedLength, inserted);
+        // the lexer is resynchronized only after the line where the edit ends, and after a token on the default
+        // channel: the following tokens keep their columns, even those positioned after the previous token
+        int newEditEnd = offset + inserted.length();
+        int lineEnd = stream.indexOf('\n', newEditEnd);
+        if (lineEnd == -1) {
+            lineEnd = stream.size();
+        }
+
+        // lex again until the lexer is back in a known state after the edit
+        restore(records.get(restart));
+        List<Token> relexed = new ArrayList<>();
+        List<LexRecord> relexedRecords = new ArrayList<>();
+        int resync = tokens.size();
+        int candidate = restart;
+        boolean pastLineEnd = false;
+        lexing:
+        while (true) {
+            LexerSnapshot before = snapshot();
+            int lexStart = stream.index();
+            if (pastLineEnd && lexStart > lineEnd && before != null) {
+                while (candidate < records.size() && records.get(candidate).lexStart() + delta < lexStart) {
+                    candidate++;
+                }
+                for (int i = candidate; i < records.size() && records.get(i).lexStart() + delta == lexStart; i++) {
+                    if (before.equals(records.get(i).before)) {
+                        resync = i;
+                        break lexing;
+                    }
+                }
+            }
+            Token token = lexNext(before, relexed, relexedRecords);
+            if (token.getType() == Token.EOF) {
+                break;
+            }
+            if (token.getChannel() == Token.DEFAULT_CHANNEL && token.getStartIndex() > lineEnd) {
+                pastLineEnd = true;
+            }
+        }
+        if (!onlyCommonTokens) {
+            lexAll();
+            return reparseAll(null);
+        }
+
+        // tokens equal to the previous ones at the two ends are not considered changed: the previous ones are kept
+        List<Token> replaced = new ArrayList<>(tokens.subList(restart, resync));
+        int prefix = 0;
+        while (prefix < replaced.size() && prefix < relexed.size()
+                && sameToken(replaced.get(prefix), 0, relexed.get(prefix), offset, removed)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < replaced.size() - prefix && suffix < relexed.size() - prefix
+                && sameToken(replaced.get(replaced.size() - 1 - suffix), delta, relexed.get(relexed.size() - 1 - suffix), offset, removed)) {
+            suffix++;
+        }
+        int damageStart = restart + prefix;
+        int damageEnd = restart + replaced.size() - suffix - 1;
+        boolean parsedTokensChanged = hasParsedTokens(replaced.subList(prefix, replaced.size() - suffix))
+                || hasParsedTokens(relexed.subList(prefix, relexed.size() - suffix));
+        List<ParserRuleContext> candidates = valid && parsedTokensChanged ? candidates(damageStart, damageEnd) : Collections.emptyList();
+
+        // splice the tokens: the ones after the edit are moved when they are read
+        shifts.add(resync, relexed.size() - replaced.size(), delta, lineDelta);
+        List<Token> spliced = new ArrayList<>(relexed);
+        for (int i = 0; i < relexed.size(); i++) {
+            Token kept = null;
+            if (i < prefix) {
+                kept = replaced.get(i);
+            } else if (i >= relexed.size() - suffix) {
+                kept = replaced.get(replaced.size() - (relexed.size() - i));
+            }
+            DocumentToken token = (DocumentToken) relexed.get(i);
+            token.place(restart + i);
+            if (kept != null) {
+                DocumentToken moved = (DocumentToken) kept;
+                moved.place(restart + i);
+                moved.setStartIndex(token.getStartIndex());
+                moved.setStopIndex(token.getStopIndex());
+                moved.setLine(token.getLine());
+                moved.setCharPositionInLine(token.getCharPositionInLine());
+                spliced.set(i, kept);
+                relexedRecords.get(i).token = kept;
+            }
+        }
+        tokens.subList(restart, resync).clear();
+        tokens.addAll(restart, spliced);
+        records.subList(restart, resync).clear();
+        records.addAll(restart, relexedRecords);
+        int relexedTokens = relexed.size() - prefix - suffix;
+        int reusedTokens = tokens.size() - relexedTokens;
+
+        if (!parsedTokensChanged) {
+            treeChanged(null);
+            return new Edit(relexedTokens, reusedTokens, null, false);
+        }
+        for (ParserRuleContext target : candidates) {
+            ParserRuleContext reparsed = reparse(target);
+            if (reparsed != null) {
+                treeChanged(target);
+                return new Edit(relexedTokens, reusedTokens, reparsed, false);
+            }
+        }
+        return reparseAll(new Edit(relexedTokens, reusedTokens, null, true));
+    }
+
+    private LexerSnapshot snapshot() {
+        Optional<Object> state = facade.saveLexerState(lexer);
+        return state.map(s -> new LexerSnapshot(lexer._mode, lexer._modeStack.toArray(), s)).orElse(null);
+    }
+
+    private void restore(LexRecord record) {
+        lexer.setInputStream(stream);
+        stream.seek(record.lexStart());
+        lexer.setLine(record.line());
+        lexer.setCharPositionInLine(record.column);
+        lexer._mode = record.before.mode;
+        lexer._modeStack.clear();
+        for (int mode : record.before.modeStack) {
+            lexer._modeStack.push(mode);
+        }
+        facade.restoreLexerState(lexer, record.before.state);
+    }
+
+    private Token lexNext(LexerSnapshot before, List<Token> tokens, List<LexRecord> records) {
+        int lexStart = stream.index();
+        int line = lexer.getLine();
+        int column = lexer.getCharPositionInLine();
+        stream.resetFurthest();
+        Token token = lexer.nextToken();
+        int furthest = Math.max(stream.getFurthest(), lexStart);
+        maxLookahead = Math.max(maxLookahead, furthest - lexStart);
+        if (token instanceof CommonToken && !(token instanceof DocumentToken)) {
+            // created by the lexer itself, not by its factory
+            token = new DocumentToken(shifts, token);
+        } else if (!(token instanceof CommonToken)) {
+            onlyCommonTokens = false;
+        }
+        // relexed tokens are numbered again when they are put in the document
+        if (token instanceof WritableToken) {
+            ((WritableToken) token).setTokenIndex(tokens.size());
+        }
+        tokens.add(token);
+        records.add(new LexRecord(token, lexStart, line, column, before, furthest));
+        return token;
+    }
+
+    private void lexAll() {
+        tokens.clear();
+        records.clear();
+        onlyCommonTokens = true;
+        // a new lexer rather than a reset one: it may keep state of its own besides the one restored by the facade
+        lexer = facade.newLexer(stream);
+        if (lexer.getTokenFactory() == SourceToken.FACTORY) {
+            lexer.setTokenFactory(shifts.factory());
+        }
+        Token token;
+        do {
+            token = lexNext(snapshot(), tokens, records);
+        } while (token.getType() != Token.EOF);
+    }
+
+    private void parseAll() {
+        entryFrontiers.clear();
+        tokenStream = new DocumentTokenStream(null);
+        parser.setTokenStream(tokenStream);
+        root = facade.getRoot(parser);
+        valid = parser.getNumberOfSyntaxErrors() == 0;
+    }
+
+    private Edit reparseAll(Edit edit) {
+        parseAll();
+        elementCache = null;
+        if (edit == null) {
+            edit = new Edit(tokens.size(), 0, null, true);
+        }
+        return new Edit(edit.getRelexedTokens(), edit.getReusedTokens(), root, true);
+    }
+
+    /**
+     * Index of the record from which the lexer should restart: the first one which looked at the offset, or an
+     * earlier one if the lexer could not be restarted there. It is -1 if no record is suitable.
+     */
+    private int restartRecord(int offset) {
+        int low = 0;
+        int high = records.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (records.get(middle).lexStart() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int first = low;
+        for (int i = low; i >= 0 && records.get(i).lexStart() + maxLookahead >= offset; i--) {
+            if (records.get(i).furthest() >= offset) {
+                first = i;
+            }
+        }
+        while (first >= 0 && records.get(first).before == null) {
+            first--;
+        }
+        return first;
+    }
+
+    private static int lines(String text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static boolean hasText(Token token, int size) {
+        int start = token.getStartIndex();
+        int stop = token.getStopIndex();
+        return token.getType() != Token.EOF && start >= 0 && stop >= start - 1 && stop < size;
+    }
+
+    /**
+     * Text of a token lexed before the edit at the offset: the chars before the edit and after it are read from the
+     * input, the others from the removed text.
+     */
+    private String textBeforeEdit(Token token, int offset, String removed, int delta) {
+        if (!hasText(token, stream.size() - delta)) {
+            return "";
+        }
+        int start = token.getStartIndex();
+        int stop = token.getStopIndex();
+        int removedEnd = offset + removed.length();
+        StringBuilder text = new StringBuilder();
+        if (start < offset) {
+            text.append(stream.getText(Interval.of(start, Math.min(stop, offset - 1))));
+        }
+        if (start < removedEnd && stop >= offset) {
+            text.append(removed, Math.max(start, offset) - offset, Math.min(stop + 1, removedEnd) - offset);
+        }
+        if (stop >= removedEnd) {
+            text.append(stream.getText(Interval.of(Math.max(start, removedEnd) + delta, stop + delta)));
+        }
+        return text.toString();
+    }
+
+    private String textOf(Token token) {
+        return hasText(token, stream.size()) ? stream.getText(Interval.of(token.getStartIndex(), token.getStopIndex())) : "";
+    }
+
+    private boolean sameToken(Token previous, int delta, Token token, int offset, String removed) {
+        return previous.getType() == token.getType()
+                && previous.getChannel() == token.getChannel()
+                && previous.getStartIndex() + delta == token.getStartIndex()
+                && previous.getStopIndex() + delta == token.getStopIndex()
+                && textBeforeEdit(previous, offset, removed, delta).equals(textOf(token));
+    }
+
+    private static boolean hasParsedTokens(List<Token> tokens) {
+        for (Token token : tokens) {
+            if (token.getChannel() == Token.DEFAULT_CHANNEL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(ParserRuleContext ctx, int damageStart, int damageEnd) {
+        return ctx.getStart() != null && ctx.getStop() != null
+                && ctx.getStart().getTokenIndex() < damageStart && ctx.getStop().getTokenIndex() > damageEnd;
+    }
+
+    private Method ruleMethod(ParserRuleContext ctx) {
+        try {
+            return parser.getClass().getMethod(parser.getRuleNames()[ctx.getRuleIndex()]);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The contexts which contain the changed tokens (their old indexes go from damageStart to damageEnd), whose
+     * entering did not look at them, from the innermost.
+     */
+    private List<ParserRuleContext> candidates(int damageStart, int damageEnd) {
+        List<ParserRuleContext> path = new ArrayList<>();
+        ParserRuleContext ctx = root;
+        while (ctx != null) {
+            ParserRuleContext next = null;
+            for (int i = 0; i < ctx.getChildCount() && next == null; i++) {
+                ParseTree child = ctx.getChild(i);
+                if (child instanceof ParserRuleContext && contains((ParserRuleContext) child, damageStart, damageEnd)) {
+                    next = (ParserRuleContext) child;
+                }
+            }
+            if (next != null) {
+                path.add(next);
+            }
+            ctx = next;
+        }
+        Collections.reverse(path);
+        List<ParserRuleContext> candidates = new ArrayList<>();
+        for (ParserRuleContext candidate : path) {
+            Token frontier = entryFrontiers.get(candidate);
+            if (frontier != null && frontier.getTokenIndex() < damageStart && candidate.exception == null
+                    && !parser.getATN().ruleToStartState[candidate.getRuleIndex()].isLeftRecursiveRule
+                    && ruleMethod(candidate) != null) {
+                candidates.add(candidate);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Parse the context again, within its parent, and put the new one in its place if it ends at the same token
+     * without errors. Return null otherwise.
+     */
+    private ParserRuleContext reparse(ParserRuleContext previous) {
+        ParserRuleContext parent = previous.getParent();
+        int childIndex = parent.children.indexOf(previous);
+        int childCount = parent.children.size();
+        tokenStream = new DocumentTokenStream(entryFrontiers.get(previous));
+        parser.setTokenStream(tokenStream);
+        tokenStream.seek(previous.getStart().getTokenIndex());
+        parser.setContext(parent);
+        parser.setState(previous.invokingState);
+
+        ANTLRErrorStrategy errorHandler = parser.getErrorHandler();
+        List<? extends ANTLRErrorListener> errorListeners = new ArrayList<>(parser.getErrorListeners());
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        recorded = new ArrayList<>();
+        ParserRuleContext reparsed = null;
+        try {
+            reparsed = (ParserRuleContext) ruleMethod(previous).invoke(parser);
+        } catch (InvocationTargetException e) {
+            if (!(e.getCause() instanceof ParseCancellationException) && !(e.getCause() instanceof RecognitionException)) {
+                throw new RuntimeException("Unable to parse again " + previous.getClass().getSimpleName(), e.getCause());
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Unable to parse again " + previous.getClass().getSimpleName(), e);
+        } finally {
+            parser.setErrorHandler(errorHandler);
+            for (ANTLRErrorListener listener : errorListeners) {
+                parser.addErrorListener(listener);
+            }
+            // the parser added the new context as last child of the parent
+            while (parent.children.size() > childCount) {
+                parent.children.remove(parent.children.size() - 1);
+            }
+        }
+        boolean accepted = reparsed != null && reparsed.getStop() == previous.getStop() && parser.getNumberOfSyntaxErrors() == 0;
+        if (!accepted) {
+            for (ParserRuleContext ctx : recorded) {
+                entryFrontiers.remove(ctx);
+            }
+            recorded = null;
+            return null;
+        }
+        recorded = null;
+        parent.children.set(childIndex, reparsed);
+        relabel(parent, previous, reparsed);
+        return reparsed;
+    }
+
+    /**
+     * The public fields which the parser sets on the context for the labels of its rule (e.g. body=suite or
+     * elifs+=elifClause), and those of the alternative.
+     */
+    private List<Field> labelFields(Class<? extends ParserRuleContext> contextClass) {
+        return labelFields.computeIfAbsent(contextClass, c -> {
+            List<Field> fields = new ArrayList<>();
+            for (Field field : c.getFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers())
+                        && ParserRuleContext.class.isAssignableFrom(field.getDeclaringClass())
+                        && field.getDeclaringClass() != ParserRuleContext.class) {
+                    fields.add(field);
+                }
+            }
+            return fields;
+        });
+    }
+
+    /**
+     * Make the labels of the parent which referred to the previous context refer to the new one.
+     */
+    private void relabel(ParserRuleContext parent, ParserRuleContext previous, ParserRuleContext reparsed) {
+        for (Field field : labelFields(parent.getClass())) {
+            try {
+                Object value = field.get(parent);
+                if (value == previous) {
+                    field.set(parent, reparsed);
+                } else if (value instanceof List) {
+                    // a list label only holds contexts of the rule of previous, which reparsed comes from as well
+                    @SuppressWarnings("unchecked")
+                    List<Object> labelled = (List<Object>) value;
+                    for (int i = 0; i < labelled.size(); i++) {
+                        if (labelled.get(i) == previous) {
+                            labelled.set(i, reparsed);
+                        }
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Unable to update the label " + field.getName() + " of "
+                        + parent.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * Forget the contexts of the removed subtree and tell the elements that the tree changed.
+     */
+    private void treeChanged(ParserRuleContext removed) {
+        if (removed != null) {
+            forget(removed);
+        }
+        if (elementCache != null) {
+            elementCache.markTreeChanged();
+        }
+    }
+
+    private void forget(ParserRuleContext ctx) {
+        entryFrontiers.remove(ctx);
+        if (elementCache != null) {
+            elementCache.invalidate(ctx);
+        }
+        for (int i = 0; i < ctx.getChildCount(); i++) {
+            if (ctx.getChild(i) instanceof ParserRuleContext) {
+                forget((ParserRuleContext) ctx.getChild(i));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EditableDocument{" +
+                "chars=" + stream.size() +
+                ", tokens=" + tokens.size() +
+                ", valid=" + valid +
+                '}';
+    }
+}
@@ -0,0 +1,132 @@
+package me.tomassetti.antlrplus;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * List kept in an array with a gap at the last place where elements were inserted or removed: inserting or removing
+ * elements near the previous change only moves the elements in between, not the whole tail of the list.
+ */
+final class GapList<E> extends AbstractList<E> implements RandomAccess {
+
+    private Object[] elements = new Object[16];
+    private int gapStart = 0;
+    private int gapEnd = elements.length;
+
+    @Override
+    public int size() {
+        return elements.length - (gapEnd - gapStart);
+    }
+
+    private int physical(int index) {
+        return index < gapStart ? index : index + gapEnd - gapStart;
+    }
+
+    private void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+
+    // only elements of type E are stored
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        checkIndex(index, size());
+        return (E) elements[physical(index)];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E element) {
+        checkIndex(index, size());
+        int i = physical(index);
+        E previous = (E) elements[i];
+        elements[i] = element;
+        return previous;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkIndex(index, size() + 1);
+        moveGap(index);
+        ensureGap(1);
+        elements[gapStart++] = element;
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> collection) {
+        return addAll(size(), collection);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> collection) {
+        checkIndex(index, size() + 1);
+        moveGap(index);
+        ensureGap(collection.size());
+        for (E element : collection) {
+            elements[gapStart++] = element;
+        }
+        modCount++;
+        return !collection.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E remove(int index) {
+        checkIndex(index, size());
+        moveGap(index);
+        E removed = (E) elements[gapEnd];
+        elements[gapEnd++] = null;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        moveGap(fromIndex);
+        Arrays.fill(elements, gapEnd, gapEnd + toIndex - fromIndex, null);
+        gapEnd += toIndex - fromIndex;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, null);
+        gapStart = 0;
+        gapEnd = elements.length;
+        modCount++;
+    }
+
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(elements, index, elements, gapEnd - count, count);
+            Arrays.fill(elements, index, Math.min(gapStart, gapEnd - count), null);
+            gapStart = index;
+            gapEnd -= count;
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(elements, gapEnd, elements, gapStart, count);
+            Arrays.fill(elements, Math.max(gapEnd, index), gapEnd + count, null);
+            gapStart = index;
+            gapEnd += count;
+        }
+    }
+
+    private void ensureGap(int length) {
+        if (gapEnd - gapStart >= length) {
+            return;
+        }
+        int size = size();
+        Object[] grown = new Object[Math.max(elements.length * 2, size + length + 16)];
+        System.arraycopy(elements, 0, grown, 0, gapStart);
+        int tail = elements.length - gapEnd;
+        System.arraycopy(elements, gapEnd, grown, grown.length - tail, tail);
+        gapEnd = grown.length - tail;
+        elements = grown;
+    }
+}
@@ -0,0 +1,86 @@
+package me.tomassetti.antlrplus;
+
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+
+import java.io.Reader;
+
+/**
+ * Unbuffered char stream which keeps the chars of the live tokens, those still held by a LiveTokenStream, instead of
+ * only the ones of the token being lexed: tokens read their text from it, without a copy, as long as they are live.
+ *
+ * The text of older tokens is not available anymore: getText throws an UnsupportedOperationException for them.
+ *
+ * mark and release work on the fields of UnbufferedCharStream (data, n, p, numMarkers, lastCharBufferStart) as they
+ * are in the ANTLR 4.5.1 runtime: check them again when upgrading it.
+ */
+class LiveCharStream extends UnbufferedCharStream {
+
+    private LiveTokenStream tokens;
+
+    LiveCharStream(Reader input, String name) {
+        super(input);
+        this.name = name;
+    }
+
+    void setTokens(LiveTokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    public void consume() {
+        // without marks the buffer would be emptied at its end, live chars included
+        int marker = mark();
+        try {
+            super.consume();
+        } finally {
+            release(marker);
+        }
+    }
+
+    @Override
+    public int mark() {
+        int bufferStart = lastCharBufferStart;
+        int marker = super.mark();
+        if (numMarkers == 1 && p > 0) {
+            // the buffer does not start at the current char
+            lastCharBufferStart = bufferStart;
+        }
+        return marker;
+    }
+
+    @Override
+    public void release(int marker) {
+        if (marker != -numMarkers) {
+            throw new IllegalStateException("release() called with an invalid marker.");
+        }
+        numMarkers--;
+        if (numMarkers > 0 || tokens == null) {
+            return;
+        }
+        int firstLive = tokens.firstLiveChar();
+        int drop = Math.min(p, firstLive < 0 ? p : firstLive - getBufferStartIndex());
+        if (drop > 0) {
+            lastCharBufferStart = data[drop - 1];
+            System.arraycopy(data, drop, data, 0, n - drop);
+            n -= drop;
+            p -= drop;
+        }
+    }
+
+    /**
+     * The number of chars read so far: it is the size of the input once its end has been reached.
+     */
+    @Override
+    public int size() {
+        int read = getBufferStartIndex() + n;
+        return n > 0 && data[n - 1] == (char) IntStream.EOF ? read - 1 : read;
+    }
+
+    /**
+     * Chars kept in memory.
+     */
+    int getBufferedChars() {
+        return n;
+    }
+}
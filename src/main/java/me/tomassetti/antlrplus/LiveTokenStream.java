@@ -0,0 +1,51 @@
+package me.tomassetti.antlrplus;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.WritableToken;
+
+/**
+ * Unbuffered token stream whose live tokens are the last one consumed and those still buffered for the parser:
+ * the LiveCharStream keeps their chars.
+ */
+class LiveTokenStream extends UnbufferedTokenStream<Token> {
+
+    LiveTokenStream(TokenSource tokenSource) {
+        super(tokenSource);
+    }
+
+    /**
+     * The EOF gets the text "<EOF>", the one CommonToken gives it past the end of the input: a lexer can emit it with
+     * the indexes of chars the LiveCharStream has already dropped.
+     */
+    @Override
+    protected void add(Token t) {
+        if (t.getType() == Token.EOF && t instanceof WritableToken) {
+            ((WritableToken) t).setText("<EOF>");
+        }
+        super.add(t);
+    }
+
+    /**
+     * Index of the first char of the oldest live token, -1 if there are none.
+     */
+    int firstLiveChar() {
+        int first = -1;
+        if (lastToken != null) {
+            first = lastToken.getStartIndex();
+        }
+        if (n > 0 && tokens[0] != null && tokens[0].getStartIndex() >= 0
+                && (first < 0 || tokens[0].getStartIndex() < first)) {
+            first = tokens[0].getStartIndex();
+        }
+        return first;
+    }
+
+    /**
+     * Tokens kept in memory.
+     */
+    int getBufferedTokens() {
+        return n;
+    }
+}
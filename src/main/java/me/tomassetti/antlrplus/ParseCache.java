@@ -0,0 +1,327 @@
+package me.tomassetti.antlrplus;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.ColumnarTree;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Element trees of parsed documents, found by the hash of their content: parsing again a document already seen
+ * skips lexing and parsing. The trees are kept as ColumnarTrees, mapped by the given (frozen) mapper.
+ *
+ * The key also covers the identity of the grammar (the serialized ATNs of the lexer and of the parser) and of the
+ * metamodel, so that different grammars or mappings can share a disk directory.
+ *
+ * In memory the least recently used trees are evicted once their estimated size exceeds maxBytes. With a disk tier
+ * (see enableDiskTier) each tree parsed is also written to a file, which is read when the tree is not in memory,
+ * also by a later run.
+ *
+ * Syntax errors are reported, by the error listeners of the parser, only when the document is actually parsed.
+ */
+public class ParseCache<R extends ParserRuleContext, P extends Parser> {
+
+    // the key, the entry of the map, the tree and its metamodel lists, roughly
+    private static final long ENTRY_OVERHEAD = 256;
+
+    public static class Statistics {
+        private final LongAdder memoryHits = new LongAdder();
+        private final LongAdder diskHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder bytesSaved = new LongAdder();
+        private final LongAdder diskFailures = new LongAdder();
+
+        public long getMemoryHits() {
+            return memoryHits.sum();
+        }
+
+        public long getDiskHits() {
+            return diskHits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        /**
+         * Trees dropped from memory to respect the limit, or not kept at all because larger than it.
+         */
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        /**
+         * Bytes of the documents served by the cache, which did not need to be lexed and parsed.
+         */
+        public long getBytesSaved() {
+            return bytesSaved.sum();
+        }
+
+        /**
+         * Files of the disk tier which could not be read or written: they are treated as misses.
+         */
+        public long getDiskFailures() {
+            return diskFailures.sum();
+        }
+
+        public double getHitRatio() {
+            long hits = getMemoryHits() + getDiskHits();
+            long requests = hits + getMisses();
+            return requests == 0 ? 0.0 : ((double) hits) / requests;
+        }
+
+        public void reset() {
+            memoryHits.reset();
+            diskHits.reset();
+            misses.reset();
+            evictions.reset();
+            bytesSaved.reset();
+            diskFailures.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "ParseCache.Statistics{" +
+                    "memoryHits=" + getMemoryHits() +
+                    ", diskHits=" + getDiskHits() +
+                    ", misses=" + getMisses() +
+                    ", evictions=" + getEvictions() +
+                    ", bytesSaved=" + getBytesSaved() +
+                    ", diskFailures=" + getDiskFailures() +
+                    '}';
+        }
+    }
+
+    private final ParserFacade<R, P> facade;
+    private final AntlrReflectionMapper mapper;
+    private final long maxBytes;
+    private final byte[] identity;
+    private final Statistics statistics = new Statistics();
+    // guarded by itself, in access order
+    private final LinkedHashMap<String, ColumnarTree> trees = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+    private volatile Path directory;
+
+    public ParseCache(ParserFacade<R, P> facade, AntlrReflectionMapper mapper, long maxBytes) {
+        if (!mapper.isFrozen()) {
+            throw new IllegalArgumentException("The mapper should be frozen: the metamodel is part of the key");
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid limit " + maxBytes);
+        }
+        this.facade = facade;
+        this.mapper = mapper;
+        this.maxBytes = maxBytes;
+        this.identity = identity(facade, mapper);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("That is unexpected", e);
+        }
+    }
+
+    private static byte[] identity(ParserFacade<?, ?> facade, AntlrReflectionMapper mapper) {
+        Lexer lexer = facade.getLexer(new ANTLRInputStream(""));
+        Parser parser = facade.getParser(new CommonTokenStream(lexer));
+        MessageDigest digest = sha256();
+        digest.update(lexer.getSerializedATN().getBytes(StandardCharsets.UTF_8));
+        digest.update(parser.getSerializedATN().getBytes(StandardCharsets.UTF_8));
+        List<String> metamodel = new ArrayList<>();
+        for (Entity entity : mapper.allKnownEntities()) {
+            StringBuilder description = new StringBuilder(entity.getName());
+            for (Feature feature : entity.getFeatures()) {
+                description.append(feature.isRelation() ? " r:" : " p:").append(feature.getName());
+            }
+            metamodel.add(description.toString());
+        }
+        Collections.sort(metamodel);
+        for (String description : metamodel) {
+            digest.update(description.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return digest.digest();
+    }
+
+    private String key(byte[] content) {
+        MessageDigest digest = sha256();
+        digest.update(identity);
+        digest.update(content);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Also store the trees in the directory, which is created if needed, and look for them there.
+     */
+    public void enableDiskTier(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+    }
+
+    public void disableDiskTier() {
+        this.directory = null;
+    }
+
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Estimated bytes retained by the trees in memory.
+     */
+    public long getUsedBytes() {
+        synchronized (trees) {
+            return usedBytes;
+        }
+    }
+
+    public int getSize() {
+        synchronized (trees) {
+            return trees.size();
+        }
+    }
+
+    /**
+     * Drop the trees in memory. The disk tier, if any, is not touched.
+     */
+    public void clear() {
+        synchronized (trees) {
+            trees.clear();
+            usedBytes = 0;
+        }
+    }
+
+    public OrderedElement parseString(String code) {
+        return get(code.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the file, in UTF-8: its bytes are hashed and decoded only if the tree is not found.
+     */
+    public OrderedElement parseFile(Path file) throws IOException {
+        return get(Files.readAllBytes(file));
+    }
+
+    private OrderedElement get(byte[] content) {
+        String key = key(content);
+        ColumnarTree tree;
+        synchronized (trees) {
+            tree = trees.get(key);
+        }
+        if (tree != null) {
+            statistics.memoryHits.increment();
+            statistics.bytesSaved.add(content.length);
+            return tree.getRoot();
+        }
+        tree = readFromDisk(key);
+        if (tree != null) {
+            statistics.diskHits.increment();
+            statistics.bytesSaved.add(content.length);
+        } else {
+            statistics.misses.increment();
+            R root = facade.parseString(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(content)));
+            tree = ColumnarTree.encode(mapper.toRootElement(root),
+                    mapper.isAddPositions() ? AntlrReflectionMapper.POSITIONS_PROPERTIES : Collections.emptyList(),
+                    ColumnarTree.Backing.HEAP);
+            writeToDisk(key, tree);
+        }
+        keep(key, tree);
+        return tree.getRoot();
+    }
+
+    private static long estimatedSize(ColumnarTree tree) {
+        return tree.getSizeInBytes() + ENTRY_OVERHEAD;
+    }
+
+    private void keep(String key, ColumnarTree tree) {
+        long size = estimatedSize(tree);
+        if (size > maxBytes) {
+            statistics.evictions.increment();
+            return;
+        }
+        synchronized (trees) {
+            ColumnarTree previous = trees.put(key, tree);
+            if (previous != null) {
+                usedBytes -= estimatedSize(previous);
+            }
+            usedBytes += size;
+            Iterator<ColumnarTree> eldest = trees.values().iterator();
+            while (usedBytes > maxBytes && eldest.hasNext()) {
+                usedBytes -= estimatedSize(eldest.next());
+                eldest.remove();
+                statistics.evictions.increment();
+            }
+        }
+    }
+
+    private ColumnarTree readFromDisk(String key) {
+        Path directory = this.directory;
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return ColumnarTree.readFrom(in, mapper.allKnownEntities());
+        } catch (IOException | RuntimeException e) {
+            statistics.diskFailures.increment();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, ColumnarTree tree) {
+        Path directory = this.directory;
+        if (directory == null) {
+            return;
+        }
+        try {
+            // written aside and then moved: a concurrent reader never sees a partial file
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                    tree.writeTo(out);
+                }
+                Files.move(temporary, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            statistics.diskFailures.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParseCache{" +
+                "trees=" + getSize() +
+                ", usedBytes=" + getUsedBytes() +
+                ", maxBytes=" + maxBytes +
+                ", diskTier=" + directory +
+                '}';
+    }
+}
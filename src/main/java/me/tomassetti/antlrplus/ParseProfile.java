@@ -0,0 +1,420 @@
+package me.tomassetti.antlrplus;
+
+import me.tomassetti.antlrplus.antlrparser.ANTLRv4Parser;
+import me.tomassetti.antlrplus.antlrparser.Antlr4ParserFacade;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.util.*;
+
+/**
+ * The prediction work done by a parser on each decision of the grammar, summed over the documents parsed while
+ * profiling (see ParserFacade.enableProfiling). A decision is a point where the parser chooses among alternatives:
+ * the alternatives of a rule, a sub-rule, an optional or a loop. Decisions which the generated parser takes looking at
+ * the next token alone never reach the prediction: they do not appear.
+ *
+ * Decisions are known by their rule. Once the grammar is given (see setGrammar) they are also known by the top
+ * level alternative of the rule holding them, except in left recursive rules, which ANTLR rewrites.
+ */
+public class ParseProfile {
+
+    public enum Kind {
+        // the choice among the alternatives of the rule
+        RULE_ALTERNATIVES,
+        BLOCK,
+        STAR_LOOP,
+        PLUS_LOOP,
+        // the loop of the operators of a left recursive rule
+        PRECEDENCE_LOOP
+    }
+
+    /**
+     * Totals of a decision: times are in nanoseconds, lookaheads in tokens.
+     */
+    public static class Decision {
+        private final int decision;
+        private final String ruleName;
+        private final Kind kind;
+        private final Optional<Integer> alternative;
+        private final Optional<String> alternativeLabel;
+        private final Optional<String> alternativeText;
+        private final Optional<Integer> line;
+        private final long invocations;
+        private final long timeInPrediction;
+        private final long sllTotalLookahead;
+        private final long sllMaxLookahead;
+        private final long llFallbacks;
+        private final long llTotalLookahead;
+        private final long llMaxLookahead;
+        private final long ambiguities;
+        private final long contextSensitivities;
+        private final long errors;
+
+        private Decision(int decision, String ruleName, Kind kind, Optional<Integer> alternative,
+                         Optional<String> alternativeLabel, Optional<String> alternativeText, Optional<Integer> line,
+                         long[] totals) {
+            this.decision = decision;
+            this.ruleName = ruleName;
+            this.kind = kind;
+            this.alternative = alternative;
+            this.alternativeLabel = alternativeLabel;
+            this.alternativeText = alternativeText;
+            this.line = line;
+            this.invocations = totals[INVOCATIONS];
+            this.timeInPrediction = totals[TIME];
+            this.sllTotalLookahead = totals[SLL_TOTAL];
+            this.sllMaxLookahead = totals[SLL_MAX];
+            this.llFallbacks = totals[LL_FALLBACKS];
+            this.llTotalLookahead = totals[LL_TOTAL];
+            this.llMaxLookahead = totals[LL_MAX];
+            this.ambiguities = totals[AMBIGUITIES];
+            this.contextSensitivities = totals[CONTEXT_SENSITIVITIES];
+            this.errors = totals[ERRORS];
+        }
+
+        public int getDecision() {
+            return decision;
+        }
+
+        public String getRuleName() {
+            return ruleName;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * The top level alternative of the rule holding the decision, starting from 1. Known only with the grammar.
+         */
+        public Optional<Integer> getAlternative() {
+            return alternative;
+        }
+
+        public Optional<String> getAlternativeLabel() {
+            return alternativeLabel;
+        }
+
+        /**
+         * The source of the alternative, on a single line.
+         */
+        public Optional<String> getAlternativeText() {
+            return alternativeText;
+        }
+
+        /**
+         * Line of the alternative, or of the rule when the decision is among its alternatives.
+         */
+        public Optional<Integer> getLine() {
+            return line;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getTimeInPrediction() {
+            return timeInPrediction;
+        }
+
+        public double getAverageSllLookahead() {
+            return invocations == 0 ? 0.0 : ((double) sllTotalLookahead) / invocations;
+        }
+
+        public long getSllMaxLookahead() {
+            return sllMaxLookahead;
+        }
+
+        /**
+         * Predictions which SLL could not settle, done again with full context.
+         */
+        public long getLlFallbacks() {
+            return llFallbacks;
+        }
+
+        public double getAverageLlLookahead() {
+            return llFallbacks == 0 ? 0.0 : ((double) llTotalLookahead) / llFallbacks;
+        }
+
+        public long getLlMaxLookahead() {
+            return llMaxLookahead;
+        }
+
+        public long getAmbiguities() {
+            return ambiguities;
+        }
+
+        public long getContextSensitivities() {
+            return contextSensitivities;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * The rule and, when known, the alternative, e.g. if_stmt:1.
+         */
+        public String getLocation() {
+            return ruleName + alternative.map(a -> ":" + a).orElse("");
+        }
+
+        @Override
+        public String toString() {
+            return "ParseProfile.Decision{" +
+                    "decision=" + decision +
+                    ", location=" + getLocation() +
+                    ", kind=" + kind +
+                    ", invocations=" + invocations +
+                    ", timeInPrediction=" + timeInPrediction +
+                    ", llFallbacks=" + llFallbacks +
+                    ", ambiguities=" + ambiguities +
+                    '}';
+        }
+    }
+
+    private static final int INVOCATIONS = 0;
+    private static final int TIME = 1;
+    private static final int SLL_TOTAL = 2;
+    private static final int SLL_MAX = 3;
+    private static final int LL_FALLBACKS = 4;
+    private static final int LL_TOTAL = 5;
+    private static final int LL_MAX = 6;
+    private static final int AMBIGUITIES = 7;
+    private static final int CONTEXT_SENSITIVITIES = 8;
+    private static final int ERRORS = 9;
+    private static final int TOTALS = 10;
+
+    private static final int MAX_TEXT = 60;
+
+    private static class Alternative {
+        private final int number;
+        private final Optional<String> label;
+        private final String text;
+        private final int line;
+
+        Alternative(int number, Optional<String> label, String text, int line) {
+            this.number = number;
+            this.label = label;
+            this.text = text;
+            this.line = line;
+        }
+    }
+
+    private final ATN atn;
+    private final String[] ruleNames;
+    // guarded by itself
+    private final long[][] totals;
+    private int documents = 0;
+    private volatile Map<Integer, Alternative> alternatives = Collections.emptyMap();
+    private volatile Map<String, Integer> ruleLines = Collections.emptyMap();
+
+    ParseProfile(ATN atn, String[] ruleNames) {
+        this.atn = atn;
+        this.ruleNames = ruleNames;
+        this.totals = new long[atn.getNumberOfDecisions()][TOTALS];
+    }
+
+    void add(DecisionInfo[] infos) {
+        synchronized (totals) {
+            documents++;
+            for (DecisionInfo info : infos) {
+                long[] decision = totals[info.decision];
+                decision[INVOCATIONS] += info.invocations;
+                decision[TIME] += info.timeInPrediction;
+                decision[SLL_TOTAL] += info.SLL_TotalLook;
+                decision[SLL_MAX] = Math.max(decision[SLL_MAX], info.SLL_MaxLook);
+                decision[LL_FALLBACKS] += info.LL_Fallback;
+                decision[LL_TOTAL] += info.LL_TotalLook;
+                decision[LL_MAX] = Math.max(decision[LL_MAX], info.LL_MaxLook);
+                decision[AMBIGUITIES] += info.ambiguities.size();
+                decision[CONTEXT_SENSITIVITIES] += info.contextSensitivities.size();
+                decision[ERRORS] += info.errors.size();
+            }
+        }
+    }
+
+    public int getDocuments() {
+        synchronized (totals) {
+            return documents;
+        }
+    }
+
+    public void reset() {
+        synchronized (totals) {
+            documents = 0;
+            for (long[] decision : totals) {
+                Arrays.fill(decision, 0);
+            }
+        }
+    }
+
+    public long getTotalTimeInPrediction() {
+        long time = 0;
+        synchronized (totals) {
+            for (long[] decision : totals) {
+                time += decision[TIME];
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Map the decisions to the alternatives of the grammar, given as the source of the .g4 file of the parser.
+     */
+    public void setGrammar(String grammar) {
+        ANTLRv4Parser.GrammarSpecContext grammarSpec = new Antlr4ParserFacade().parseString(grammar);
+        Map<String, List<ANTLRv4Parser.LabeledAltContext>> rules = new HashMap<>();
+        Map<String, Integer> ruleLines = new HashMap<>();
+        for (ANTLRv4Parser.RuleSpecContext rule : grammarSpec.rules().ruleSpec()) {
+            ANTLRv4Parser.ParserRuleSpecContext parserRule = rule.parserRuleSpec();
+            if (parserRule != null && parserRule.RULE_REF() != null) {
+                rules.put(parserRule.RULE_REF().getText(), parserRule.ruleBlock().ruleAltList().labeledAlt());
+                ruleLines.put(parserRule.RULE_REF().getText(), parserRule.RULE_REF().getSymbol().getLine());
+            }
+        }
+        Map<Integer, Alternative> alternatives = new HashMap<>();
+        for (int rule = 0; rule < ruleNames.length; rule++) {
+            List<ANTLRv4Parser.LabeledAltContext> labeledAlts = rules.get(ruleNames[rule]);
+            RuleStartState start = atn.ruleToStartState[rule];
+            if (labeledAlts == null || start.isLeftRecursiveRule) {
+                continue;
+            }
+            ATNState first = start.transition(0).target;
+            if (labeledAlts.size() == 1) {
+                for (int decision : decisionsFrom(first, atn.ruleToStopState[rule])) {
+                    alternatives.put(decision, alternative(1, labeledAlts.get(0)));
+                }
+            } else if (first instanceof BasicBlockStartState && first.getNumberOfTransitions() == labeledAlts.size()) {
+                BlockEndState end = ((BasicBlockStartState) first).endState;
+                for (int i = 0; i < labeledAlts.size(); i++) {
+                    for (int decision : decisionsFrom(first.transition(i).target, end)) {
+                        alternatives.put(decision, alternative(i + 1, labeledAlts.get(i)));
+                    }
+                }
+            }
+        }
+        this.alternatives = alternatives;
+        this.ruleLines = ruleLines;
+    }
+
+    private static Alternative alternative(int number, ANTLRv4Parser.LabeledAltContext labeledAlt) {
+        Optional<String> label = labeledAlt.identifier() == null ? Optional.empty() : Optional.of(labeledAlt.identifier().getText());
+        return new Alternative(number, label, sourceText(labeledAlt.alternative()), labeledAlt.getStart().getLine());
+    }
+
+    private static String sourceText(ParserRuleContext context) {
+        if (context.getStop() == null || context.getStop().getStopIndex() < context.getStart().getStartIndex()) {
+            return "";
+        }
+        String text = context.getStart().getInputStream().getText(
+                Interval.of(context.getStart().getStartIndex(), context.getStop().getStopIndex()));
+        text = text.replaceAll("\\s+", " ").trim();
+        return text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT - 3) + "..." : text;
+    }
+
+    /**
+     * The decisions met going on from the state within its rule, up to the end state.
+     */
+    private static Set<Integer> decisionsFrom(ATNState from, ATNState end) {
+        Set<Integer> decisions = new TreeSet<>();
+        Set<Integer> visited = new HashSet<>();
+        Deque<ATNState> toVisit = new ArrayDeque<>();
+        toVisit.push(from);
+        while (!toVisit.isEmpty()) {
+            ATNState state = toVisit.pop();
+            if (state == end || state instanceof RuleStopState || !visited.add(state.stateNumber)) {
+                continue;
+            }
+            if (state instanceof DecisionState && ((DecisionState) state).decision >= 0) {
+                decisions.add(((DecisionState) state).decision);
+            }
+            for (int i = 0; i < state.getNumberOfTransitions(); i++) {
+                Transition transition = state.transition(i);
+                // calls to other rules are stepped over
+                toVisit.push(transition instanceof RuleTransition ? ((RuleTransition) transition).followState : transition.target);
+            }
+        }
+        return decisions;
+    }
+
+    private Kind kind(DecisionState state) {
+        if (state instanceof StarLoopEntryState) {
+            return ((StarLoopEntryState) state).isPrecedenceDecision ? Kind.PRECEDENCE_LOOP : Kind.STAR_LOOP;
+        }
+        if (state instanceof PlusLoopbackState || state instanceof PlusBlockStartState) {
+            return Kind.PLUS_LOOP;
+        }
+        if (state instanceof StarBlockStartState) {
+            return Kind.STAR_LOOP;
+        }
+        if (state instanceof BasicBlockStartState && atn.ruleToStartState[state.ruleIndex].transition(0).target == state
+                && ((BasicBlockStartState) state).endState.transition(0).target == atn.ruleToStopState[state.ruleIndex]) {
+            return Kind.RULE_ALTERNATIVES;
+        }
+        return Kind.BLOCK;
+    }
+
+    /**
+     * The decisions invoked at least once, the slowest first.
+     */
+    public List<Decision> getRanking() {
+        Map<Integer, Alternative> alternatives = this.alternatives;
+        Map<String, Integer> ruleLines = this.ruleLines;
+        List<Decision> ranking = new ArrayList<>();
+        synchronized (totals) {
+            for (int decision = 0; decision < totals.length; decision++) {
+                if (totals[decision][INVOCATIONS] == 0) {
+                    continue;
+                }
+                DecisionState state = atn.getDecisionState(decision);
+                String ruleName = ruleNames[state.ruleIndex];
+                Alternative alternative = alternatives.get(decision);
+                Optional<Integer> line = alternative != null ? Optional.of(alternative.line) : Optional.ofNullable(ruleLines.get(ruleName));
+                ranking.add(new Decision(decision, ruleName, kind(state),
+                        alternative == null ? Optional.empty() : Optional.of(alternative.number),
+                        alternative == null ? Optional.empty() : alternative.label,
+                        alternative == null ? Optional.empty() : Optional.of(alternative.text),
+                        line, totals[decision].clone()));
+            }
+        }
+        ranking.sort(Comparator.comparingLong(Decision::getTimeInPrediction).reversed()
+                .thenComparing(Comparator.comparingLong(Decision::getInvocations).reversed()));
+        return ranking;
+    }
+
+    /**
+     * A table of the slowest decisions, at most limit of them, with their share of the time spent predicting.
+     */
+    public String toReport(int limit) {
+        List<Decision> ranking = getRanking();
+        long total = Math.max(1, getTotalTimeInPrediction());
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d documents, %.1f ms predicting%n", getDocuments(), total / 1e6));
+        report.append(String.format("%4s %5s %-28s %-17s %10s %9s %6s %9s %9s %6s %6s%n", "rank", "dec", "rule:alt",
+                "kind", "calls", "ms", "%", "SLL avg", "LL falls", "ambig", "ctx"));
+        for (int i = 0; i < Math.min(limit, ranking.size()); i++) {
+            Decision decision = ranking.get(i);
+            report.append(String.format("%4d %5d %-28s %-17s %10d %9.2f %6.2f %9.2f %9d %6d %6d%n", i + 1,
+                    decision.getDecision(), decision.getLocation(), decision.getKind(), decision.getInvocations(),
+                    decision.getTimeInPrediction() / 1e6, 100.0 * decision.getTimeInPrediction() / total,
+                    decision.getAverageSllLookahead(), decision.getLlFallbacks(), decision.getAmbiguities(),
+                    decision.getContextSensitivities()));
+            if (decision.getLine().isPresent()) {
+                report.append(String.format("%11s line %d%s%s%n", "", decision.getLine().get(),
+                        decision.getAlternativeLabel().map(l -> " #" + l).orElse(""),
+                        decision.getAlternativeText().map(t -> ": " + t).orElse("")));
+            }
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ParseProfile{" +
+                "documents=" + getDocuments() +
+                ", decisions=" + totals.length +
+                '}';
+    }
+}
@@ -1,12 +1,162 @@
 package me.tomassetti.antlrplus;
 
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.metamodel.mapping.ElementEventListener;
+import me.tomassetti.antlrplus.metamodel.mapping.StreamingElementMapper;
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.atn.ProfilingATNSimulator;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Every document is parsed by a new lexer and a new parser. The parsing mode decides how the parser predicts
+ * alternatives (see ParsingMode).
+ *
+ * The DFA built by ANTLR while parsing is shared by all the parsers of a grammar in the JVM: the first parsings are
+ * slow while it grows. warmUp parses a corpus in advance, so that this happens before the real work.
+ *
+ * In profiling mode (see enableProfiling) the parsers record the work done predicting each decision of the grammar,
+ * which is summed in a ParseProfile to find the decisions making parsing slow.
+ */
 public abstract class ParserFacade<R extends ParserRuleContext, P extends Parser> {
 
+    public enum ParsingMode {
+        /**
+         * Run the parser as it is returned by getParser: by default full LL prediction with the default error
+         * strategy.
+         */
+        LL,
+        /**
+         * First try the faster SLL prediction, bailing out at the first syntax error without reporting it. Only if
+         * that fails parse again with the settings of the parser, reporting the errors as usual. Parse listeners
+         * of the parser see both attempts.
+         */
+        SLL_THEN_LL
+    }
+
+    /**
+     * How often the parsings in SLL_THEN_LL mode had to fall back to LL.
+     */
+    public static class FallbackStatistics {
+        private final LongAdder sllParsings = new LongAdder();
+        private final LongAdder fallbacks = new LongAdder();
+
+        /**
+         * Parsings completed with SLL prediction.
+         */
+        public long getSllParsings() {
+            return sllParsings.sum();
+        }
+
+        /**
+         * Parsings for which SLL failed and which were repeated with LL prediction.
+         */
+        public long getFallbacks() {
+            return fallbacks.sum();
+        }
+
+        public double getFallbackRatio() {
+            long parsings = getSllParsings() + getFallbacks();
+            return parsings == 0 ? 0.0 : ((double) getFallbacks()) / parsings;
+        }
+
+        public void reset() {
+            sllParsings.reset();
+            fallbacks.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "ParserFacade.FallbackStatistics{" +
+                    "sllParsings=" + getSllParsings() +
+                    ", fallbacks=" + getFallbacks() +
+                    '}';
+        }
+    }
+
+    /**
+     * Outcome of a warm-up: the number of DFA states (lexer and parser) after each pass over the corpus.
+     */
+    public static class WarmUpReport {
+        private final int documents;
+        private final List<Long> dfaStates;
+        private final List<Long> nanos;
+        private final boolean stable;
+
+        private WarmUpReport(int documents, List<Long> dfaStates, List<Long> nanos, boolean stable) {
+            this.documents = documents;
+            this.dfaStates = Collections.unmodifiableList(dfaStates);
+            this.nanos = Collections.unmodifiableList(nanos);
+            this.stable = stable;
+        }
+
+        public int getDocuments() {
+            return documents;
+        }
+
+        public int getPasses() {
+            return nanos.size();
+        }
+
+        /**
+         * States before the first pass and after each pass.
+         */
+        public List<Long> getDfaStates() {
+            return dfaStates;
+        }
+
+        /**
+         * Duration of each pass.
+         */
+        public List<Long> getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Did the last pass leave the DFA as it was? Then parsing documents like the ones of the corpus does not
+         * need to build new states anymore.
+         */
+        public boolean isStable() {
+            return stable;
+        }
+
+        @Override
+        public String toString() {
+            return "ParserFacade.WarmUpReport{" +
+                    "documents=" + documents +
+                    ", dfaStates=" + dfaStates +
+                    ", nanos=" + nanos +
+                    ", stable=" + stable +
+                    '}';
+        }
+    }
+
+    private volatile ParsingMode parsingMode = ParsingMode.LL;
+    private final FallbackStatistics fallbackStatistics = new FallbackStatistics();
+    private volatile ParseProfile profile;
+
     public ParserFacade() {
     }
 
@@ -16,22 +166,401 @@ public abstract class ParserFacade<R extends ParserRuleContext, P extends Parser
 
     protected abstract R getRoot(P parser);
 
+    /**
+     * Lexer for the input, creating SourceTokens unless it uses a token factory of its own: the mapper can then
+     * compute their end positions from the line index of the input.
+     */
+    Lexer newLexer(ANTLRInputStream input) {
+        Lexer lexer = getLexer(input);
+        if (lexer.getTokenFactory() == CommonTokenFactory.DEFAULT) {
+            lexer.setTokenFactory(SourceToken.FACTORY);
+        }
+        return lexer;
+    }
+
+    /**
+     * State of the lexer between two tokens, beside its position and modes, used by EditableDocument to restart
+     * lexing in the middle of a document. It is compared by equals. An empty Optional means that the lexer cannot
+     * be restarted at this point.
+     *
+     * By default the lexer is expected to keep no state in its own fields: lexers which do must override this method
+     * and restoreLexerState before using an EditableDocument, which documents what they should do.
+     */
+    protected Optional<Object> saveLexerState(Lexer lexer) {
+        return Optional.of(Collections.emptyList());
+    }
+
+    protected void restoreLexerState(Lexer lexer, Object state) {
+    }
+
+    /**
+     * Parse the text as a document which can be edited and parsed again incrementally. It throws an
+     * IllegalStateException if the lexer keeps state in its own fields and saveLexerState is not implemented.
+     */
+    public EditableDocument<R, P> openDocument(String text) {
+        return new EditableDocument<>(this, text, IntStream.UNKNOWN_SOURCE_NAME);
+    }
+
+    public ParsingMode getParsingMode() {
+        return parsingMode;
+    }
+
+    public void setParsingMode(ParsingMode parsingMode) {
+        if (parsingMode == null) {
+            throw new IllegalArgumentException();
+        }
+        this.parsingMode = parsingMode;
+    }
+
+    public FallbackStatistics getFallbackStatistics() {
+        return fallbackStatistics;
+    }
+
+    /**
+     * Parse with ANTLR's ProfilingATNSimulator, adding the decisions of each document parsed, as a tree, to a new
+     * profile. Profiling slows down parsing: it is meant to study the grammar, not for production use.
+     */
+    public void enableProfiling() {
+        P parser = getParser(new CommonTokenStream(getLexer(new ANTLRInputStream(""))));
+        this.profile = new ParseProfile(parser.getATN(), parser.getRuleNames());
+    }
+
+    public void disableProfiling() {
+        this.profile = null;
+    }
+
+    public boolean isProfiling() {
+        return profile != null;
+    }
+
+    public ParseProfile getProfile() {
+        ParseProfile profile = this.profile;
+        if (profile == null) {
+            throw new IllegalStateException("Profiling is not enabled");
+        }
+        return profile;
+    }
+
+    /**
+     * Parse the corpus in profiling mode, as any other document, and return the profile of its decisions. The mode
+     * is turned off afterwards, unless it was on already: then the corpus is added to the current profile.
+     */
+    public ParseProfile profile(Collection<String> corpus) {
+        boolean profiling = isProfiling();
+        if (!profiling) {
+            enableProfiling();
+        }
+        ParseProfile profile = getProfile();
+        try {
+            for (String document : corpus) {
+                parseString(document);
+            }
+        } finally {
+            if (!profiling) {
+                disableProfiling();
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Documents to use for warmUp(), if the subclass knows representative ones. None by default.
+     */
+    protected Collection<String> getWarmUpCorpus() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Warm up with the corpus of the facade.
+     */
+    public WarmUpReport warmUp(int maxPasses) {
+        return warmUp(getWarmUpCorpus(), maxPasses);
+    }
+
+    /**
+     * Parse the corpus again and again, until a pass does not add states to the DFA or maxPasses are done.
+     * The documents are parsed as any other one, in the parsing mode of the facade.
+     */
+    public WarmUpReport warmUp(Collection<String> corpus, int maxPasses) {
+        if (maxPasses < 1) {
+            throw new IllegalArgumentException("At least one pass is needed, got " + maxPasses);
+        }
+        List<Long> dfaStates = new ArrayList<>();
+        List<Long> nanos = new ArrayList<>();
+        dfaStates.add(getDfaStates());
+        boolean stable = false;
+        while (!stable && nanos.size() < maxPasses) {
+            long start = System.nanoTime();
+            for (String document : corpus) {
+                parseString(document);
+            }
+            nanos.add(System.nanoTime() - start);
+            dfaStates.add(getDfaStates());
+            stable = dfaStates.get(dfaStates.size() - 1).equals(dfaStates.get(dfaStates.size() - 2));
+        }
+        return new WarmUpReport(corpus.size(), dfaStates, nanos, stable);
+    }
+
+    /**
+     * Warm up on the given executor, while the application starts. Parsings done in the meantime are correct, and
+     * they contribute to the DFA as well.
+     */
+    public CompletableFuture<WarmUpReport> warmUpInBackground(Collection<String> corpus, int maxPasses, Executor executor) {
+        List<String> documents = new ArrayList<>(corpus);
+        return CompletableFuture.supplyAsync(() -> warmUp(documents, maxPasses), executor);
+    }
+
+    /**
+     * Number of states in the DFA of the lexer and of the parser.
+     */
+    public long getDfaStates() {
+        Lexer lexer = getLexer(new ANTLRInputStream(""));
+        P parser = getParser(new CommonTokenStream(lexer));
+        return dfaStates(lexer.getInterpreter().decisionToDFA) + dfaStates(parser.getInterpreter().decisionToDFA);
+    }
+
+    private static long dfaStates(DFA[] dfas) {
+        long states = 0;
+        for (DFA dfa : dfas) {
+            // the simulators add states holding this lock
+            synchronized (dfa.states) {
+                states += dfa.states.size();
+            }
+        }
+        return states;
+    }
+
     public R parseString(String code) {
-        InputStream inputStream = new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8));
-        return parseStream(inputStream);
+        return parse(new ANTLRInputStream(code));
+    }
+
+    public R parseString(CharSequence code) {
+        if (code instanceof String) {
+            return parseString((String) code);
+        }
+        if (code instanceof CharBuffer) {
+            return parseString((CharBuffer) code);
+        }
+        char[] chars = new char[code.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = code.charAt(i);
+        }
+        return parseString(chars);
+    }
+
+    /**
+     * The array is used as it is, without copying it: it should not be changed while the tree is in use.
+     */
+    public R parseString(char[] code) {
+        return parseString(code, code.length);
+    }
+
+    /**
+     * Parse the first length chars of the array, which is used as it is, without copying it.
+     */
+    public R parseString(char[] code, int length) {
+        if (length < 0 || length > code.length) {
+            throw new IllegalArgumentException("Invalid length " + length + " for an array of " + code.length + " chars");
+        }
+        return parse(new ANTLRInputStream(code, length));
+    }
+
+    /**
+     * The remaining chars of the buffer are parsed, its position is not changed. A heap buffer whose content starts
+     * at the beginning of its array is used without copying it.
+     */
+    public R parseString(CharBuffer code) {
+        if (code.hasArray() && code.arrayOffset() + code.position() == 0) {
+            return parseString(code.array(), code.limit());
+        }
+        char[] chars = new char[code.remaining()];
+        code.duplicate().get(chars);
+        return parseString(chars);
     }
 
     public R parseFile(File file) throws FileNotFoundException {
-        return parseStream(new FileInputStream(file));
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        try {
+            return parseFile(file.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("That is unexpected", e);
+        }
+    }
+
+    /**
+     * Read the file, in UTF-8, decoding its bytes directly into the chars used by the lexer.
+     */
+    public R parseFile(Path file) throws IOException {
+        return parse(decode(ByteBuffer.wrap(Files.readAllBytes(file)), file));
+    }
+
+    /**
+     * Map the file, in UTF-8, in memory and decode it directly into the chars used by the lexer: the bytes are
+     * never copied on the heap.
+     */
+    public R parseMappedFile(Path file) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return parse(decode(bytes, file));
+    }
+
+    /**
+     * Parse the files concurrently on the common fork-join pool, see BatchParser for the other options.
+     */
+    public List<BatchParser.Result<R>> parseAll(Collection<Path> files) {
+        return new BatchParser<>(this).parseAll(files);
     }
 
     public R parseStream(InputStream inputStream) {
         try {
-            Lexer lexer = getLexer(new org.antlr.v4.runtime.ANTLRInputStream(inputStream));
-            TokenStream tokens = new CommonTokenStream(lexer);
-            return getRoot(getParser(tokens));
+            return parse(new org.antlr.v4.runtime.ANTLRInputStream(inputStream));
         } catch (IOException e) {
             throw new RuntimeException("That is unexpected", e);
         }
     }
+
+    /**
+     * Parse without building the parse tree: the listener gets the elements, as mapped by the mapper, while the
+     * parser recognizes them (see StreamingElementMapper). The parsing mode is not used: the events
+     * cannot be taken back, so the document is parsed once by a new parser, as it is returned by getParser.
+     *
+     * The memory needed grows with the nesting of the rules, beside the text and the tokens, which are still
+     * buffered by the token stream (see parseUnbuffered). Returns the number of syntax errors.
+     */
+    public int parseStringStreaming(String code, AntlrReflectionMapper mapper, ElementEventListener listener) {
+        return stream(new ANTLRInputStream(code), mapper, listener);
+    }
+
+    /**
+     * Same as parseStringStreaming, for a file in UTF-8 mapped in memory as in parseMappedFile.
+     */
+    public int parseFileStreaming(Path file, AntlrReflectionMapper mapper, ElementEventListener listener) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return stream(decode(bytes, file), mapper, listener);
+    }
+
+    /**
+     * Same as parseStringStreaming, reading the chars from the reader only as the lexer needs them, through an
+     * UnbufferedCharStream and an UnbufferedTokenStream: only the chars and the tokens in use are kept in memory,
+     * which does not grow with the size of the input anymore.
+     *
+     * Tokens are created by CommonTokenFactory.DEFAULT, which does not copy their text: they read it from the char
+     * stream, which keeps it while they are live, i.e. while a token is the last one consumed by the parser or is
+     * still ahead of it. The listener gets the text and the positions of the tokens at that time. Afterwards getText
+     * on the token, or on the token stream for an interval including it, throws an UnsupportedOperationException,
+     * and the token stream cannot seek back to it.
+     *
+     * The EOF gets the text "<EOF>": a lexer can emit it with the indexes of chars already dropped, as the Python
+     * lexer does after its final DEDENTs.
+     */
+    public int parseUnbuffered(Reader reader, String sourceName, AntlrReflectionMapper mapper, ElementEventListener listener) {
+        LiveCharStream input = new LiveCharStream(reader, sourceName);
+        // the lexer is created for an empty input, as the subclasses expect an ANTLRInputStream
+        Lexer lexer = getLexer(new ANTLRInputStream(""));
+        lexer.setInputStream(input);
+        lexer.setTokenFactory(CommonTokenFactory.DEFAULT);
+        LiveTokenStream tokens = new LiveTokenStream(lexer);
+        input.setTokens(tokens);
+        return stream(tokens, mapper, listener);
+    }
+
+    /**
+     * Same as parseUnbuffered, for a file in UTF-8.
+     */
+    public int parseFileUnbuffered(Path file, AntlrReflectionMapper mapper, ElementEventListener listener) throws IOException {
+        try (Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            return parseUnbuffered(reader, file.toString(), mapper, listener);
+        }
+    }
+
+    private int stream(ANTLRInputStream input, AntlrReflectionMapper mapper, ElementEventListener listener) {
+        return stream(new CommonTokenStream(newLexer(input)), mapper, listener);
+    }
+
+    private int stream(TokenStream tokens, AntlrReflectionMapper mapper, ElementEventListener listener) {
+        P parser = getParser(tokens);
+        parser.setBuildParseTree(false);
+        parser.addParseListener(new StreamingElementMapper(mapper, parser, listener));
+        getRoot(parser);
+        return parser.getNumberOfSyntaxErrors();
+    }
+
+    /**
+     * Decode in a single pass: UTF-8 never produces more chars than bytes, so an array as long as the input is
+     * always enough.
+     */
+    private static ANTLRInputStream decode(ByteBuffer bytes, Path file) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (!result.isUnderflow()) {
+            throw new IllegalStateException("Unable to decode " + file + ": " + result);
+        }
+        decoder.flush(chars);
+        ANTLRInputStream input = new ANTLRInputStream(chars.array(), chars.position());
+        input.name = file.toString();
+        return input;
+    }
+
+    private R parse(ANTLRInputStream input) {
+        Lexer lexer = newLexer(input);
+        TokenStream tokens = new CommonTokenStream(lexer);
+        return run(getParser(tokens));
+    }
+
+    private R run(P parser) {
+        ParseProfile profile = this.profile;
+        if (profile == null) {
+            return predict(parser);
+        }
+        ParserATNSimulator interpreter = parser.getInterpreter();
+        // it shares the DFA of the interpreter
+        ProfilingATNSimulator profiler = new ProfilingATNSimulator(parser);
+        profiler.setPredictionMode(interpreter.getPredictionMode());
+        parser.setInterpreter(profiler);
+        try {
+            return predict(parser);
+        } finally {
+            parser.setInterpreter(interpreter);
+            profile.add(profiler.getDecisionInfo());
+        }
+    }
+
+    private R predict(P parser) {
+        if (parsingMode == ParsingMode.LL) {
+            return getRoot(parser);
+        }
+        ParserATNSimulator interpreter = parser.getInterpreter();
+        PredictionMode predictionMode = interpreter.getPredictionMode();
+        ANTLRErrorStrategy errorHandler = parser.getErrorHandler();
+        List<? extends ANTLRErrorListener> errorListeners = new ArrayList<>(parser.getErrorListeners());
+        interpreter.setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListeners();
+        try {
+            R root = getRoot(parser);
+            fallbackStatistics.sllParsings.increment();
+            return root;
+        } catch (ParseCancellationException e) {
+            fallbackStatistics.fallbacks.increment();
+        } finally {
+            // restored also on success: the parser is left as it was configured
+            interpreter.setPredictionMode(predictionMode);
+            parser.setErrorHandler(errorHandler);
+            for (ANTLRErrorListener listener : errorListeners) {
+                parser.addErrorListener(listener);
+            }
+        }
+        parser.reset();
+        return getRoot(parser);
+    }
 }
@@ -0,0 +1,58 @@
+package me.tomassetti.antlrplus;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * Token which knows whether its text is the one of its input, between its start and stop indexes, or was replaced
+ * (by the lexer or with setText). ParserFacade makes its lexers create these tokens, unless they use a token factory
+ * of their own.
+ */
+public class SourceToken extends CommonToken {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final TokenFactory<SourceToken> FACTORY = new TokenFactory<SourceToken>() {
+        @Override
+        public SourceToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel,
+                                  int start, int stop, int line, int charPositionInLine) {
+            SourceToken token = new SourceToken(source, type, channel, start, stop);
+            token.setLine(line);
+            token.setCharPositionInLine(charPositionInLine);
+            if (text != null) {
+                token.setText(text);
+            }
+            return token;
+        }
+
+        @Override
+        public SourceToken create(int type, String text) {
+            SourceToken token = new SourceToken(type);
+            token.setText(text);
+            return token;
+        }
+    };
+
+    public SourceToken(Pair<TokenSource, CharStream> source, int type, int channel, int start, int stop) {
+        super(source, type, channel, start, stop);
+    }
+
+    public SourceToken(int type) {
+        super(type);
+    }
+
+    /**
+     * A copy of the token. The text of a CommonToken is copied only if it was replaced.
+     */
+    public SourceToken(Token token) {
+        super(token);
+    }
+
+    public boolean hasSourceText() {
+        return text == null;
+    }
+}
@@ -1,31 +1,32 @@
 package me.tomassetti.antlrplus.antlrparser;
 
-import org.antlr.v4.runtime.CommonTokenStream;
+import me.tomassetti.antlrplus.ParserFacade;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.TokenStream;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+/**
+ * Parses grammars in the SLL_THEN_LL mode: valid grammars, even large ones, are parsed with SLL prediction only.
+ */
+public class Antlr4ParserFacade extends ParserFacade<ANTLRv4Parser.GrammarSpecContext, ANTLRv4Parser> {
 
-public class Antlr4ParserFacade {
+    public Antlr4ParserFacade() {
+        setParsingMode(ParsingMode.SLL_THEN_LL);
+    }
 
-    public ANTLRv4Parser.GrammarSpecContext parseString(String code) {
-        InputStream inputStream = new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8));
-        return parseStream(inputStream);
+    @Override
+    protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+        return new ANTLRv4Lexer(antlrInputStream);
     }
 
-    public ANTLRv4Parser.GrammarSpecContext parseFile(File file) throws FileNotFoundException {
-        return parseStream(new FileInputStream(file));
+    @Override
+    protected ANTLRv4Parser getParser(TokenStream tokens) {
+        return new ANTLRv4Parser(tokens);
     }
 
-    public ANTLRv4Parser.GrammarSpecContext parseStream(InputStream inputStream) {
-        try {
-            ANTLRv4Lexer lexer = new ANTLRv4Lexer(new org.antlr.v4.runtime.ANTLRInputStream(inputStream));
-            TokenStream tokens = new CommonTokenStream(lexer);
-            ANTLRv4Parser parser = new ANTLRv4Parser(tokens);
-            return parser.grammarSpec();
-        } catch (IOException e) {
-            throw new RuntimeException("That is unexpected", e);
-        }
+    @Override
+    protected ANTLRv4Parser.GrammarSpecContext getRoot(ANTLRv4Parser parser) {
+        return parser.grammarSpec();
     }
 
 }
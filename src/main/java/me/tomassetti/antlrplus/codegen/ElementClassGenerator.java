@@ -0,0 +1,442 @@
+package me.tomassetti.antlrplus.codegen;
+
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.metamodel.mapping.EntityAccessPlan;
+import me.tomassetti.antlrplus.metamodel.mapping.FeatureAccessor;
+import me.tomassetti.antlrplus.metamodel.mapping.GeneratedElement;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import javax.lang.model.SourceVersion;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Generate, for each entity of a parser, a GeneratedElement subclass reading the rule context through direct field
+ * accesses and method calls, with a typed field and a getter for each feature, together with a factory to be passed
+ * to AntlrReflectionMapper.setElementFactory.
+ *
+ * The mapper must be configured as the one which will use the factory: the generated classes reflect its access plans
+ * and the ordinals of its features. Each class checks the names of the features by ordinal against the entity of the
+ * first element it creates, and again whenever the entity changes.
+ */
+public class ElementClassGenerator {
+
+    private AntlrReflectionMapper reflectionMapper;
+    private Class<? extends Parser> parserClass;
+    private String packageName;
+
+    public ElementClassGenerator(AntlrReflectionMapper reflectionMapper, Class<? extends Parser> parserClass, String packageName) {
+        this.reflectionMapper = reflectionMapper;
+        this.parserClass = parserClass;
+        this.packageName = packageName;
+    }
+
+    public List<Class<? extends ParserRuleContext>> ruleClasses() {
+        List<Class<? extends ParserRuleContext>> ruleClasses = new LinkedList<>();
+        for (Class<?> c : parserClass.getDeclaredClasses()) {
+            if (ParserRuleContext.class.isAssignableFrom(c)) {
+                Class<? extends ParserRuleContext> ruleClass = c.asSubclass(ParserRuleContext.class);
+                if (!reflectionMapper.isTransparent(ruleClass)
+                        && !reflectionMapper.isTreatedAsToken(ruleClass)
+                        && !reflectionMapper.isToBeDropped(ruleClass)) {
+                    ruleClasses.add(ruleClass);
+                }
+            }
+        }
+        ruleClasses.sort((o1, o2) -> o1.getSimpleName().compareTo(o2.getSimpleName()));
+        return ruleClasses;
+    }
+
+    public static String elementClassName(Class<? extends ParserRuleContext> ruleClass) {
+        String name = ruleClass.getSimpleName();
+        if (name.endsWith("Context")) {
+            name = name.substring(0, name.length() - "Context".length());
+        }
+        return name + "Element";
+    }
+
+    public String factoryClassName() {
+        String name = parserClass.getSimpleName();
+        if (name.endsWith("Parser")) {
+            name = name.substring(0, name.length() - "Parser".length());
+        }
+        return name + "ElementFactory";
+    }
+
+    private void header(PrintWriter out) {
+        out.println("// Generated by " + ElementClassGenerator.class.getCanonicalName() + ", do not edit");
+        out.println("package " + packageName + ";");
+        out.println();
+    }
+
+    private static final Set<String> RESERVED_FIELDS = new HashSet<>(Arrays.asList("entity", "parent", "FEATURE_NAMES", "checkedEntity"));
+
+    // methods of the generated classes which cannot be taken by a getter
+    private static final Set<String> RESERVED_METHODS = reservedMethods();
+
+    private static Set<String> reservedMethods() {
+        Set<String> names = new HashSet<>();
+        for (Class<?> c = GeneratedElement.class; c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                names.add(method.getName());
+            }
+            for (Class<?> i : c.getInterfaces()) {
+                for (Method method : i.getMethods()) {
+                    names.add(method.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static String uniqueName(String name, Set<String> used) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+            sb.insert(0, '_');
+        }
+        String unique = sb.toString();
+        while (!SourceVersion.isName(unique) || used.contains(unique)) {
+            unique += "_";
+        }
+        used.add(unique);
+        return unique;
+    }
+
+    private static String literal(String string) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : string.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ' || c > '~') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String javaType(EntityAccessPlan.FeatureAccess access) {
+        switch (access.getKind()) {
+            case POSITION:
+                return "Integer";
+            case RELATION:
+                return access.isSingle() ? "OrderedElement" : "List<OrderedElement>";
+            default:
+                return access.isSingle() ? "String" : "List<String>";
+        }
+    }
+
+    private FeatureAccessor accessor(Class<? extends ParserRuleContext> ruleClass, EntityAccessPlan.FeatureAccess access) {
+        return access.getAccessor().orElseGet(() -> reflectionMapper.getAccessor(ruleClass,
+                access.getRawName(), access.getKind() == EntityAccessPlan.Kind.RELATION));
+    }
+
+    /**
+     * Type of the token read by a getter generated by ANTLR for a token (e.g., NAME()), if it is one.
+     */
+    private Optional<Integer> tokenType(FeatureAccessor accessor, EntityAccessPlan.FeatureAccess access) {
+        if (accessor.getSource() != FeatureAccessor.Source.METHOD || access.getValueType().orElse(null) != TerminalNode.class) {
+            return Optional.empty();
+        }
+        try {
+            Field field = parserClass.getField(accessor.getRawName());
+            if (field.getType() == int.class && Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers())) {
+                return Optional.of(field.getInt(null));
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            // not a getter generated for a token
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Context class read by a getter generated by ANTLR for a rule (e.g., stmt()), if it is one.
+     */
+    private Optional<Class<?>> contextType(FeatureAccessor accessor, EntityAccessPlan.FeatureAccess access) {
+        Class<?> valueType = access.getValueType().orElse(null);
+        if (accessor.getSource() != FeatureAccessor.Source.METHOD || valueType == null
+                || !ParserRuleContext.class.isAssignableFrom(valueType)) {
+            return Optional.empty();
+        }
+        return Optional.of(valueType);
+    }
+
+    private static String loaderMethod(EntityAccessPlan.FeatureAccess access, boolean child) {
+        if (access.getKind() == EntityAccessPlan.Kind.RELATION) {
+            return child ? "childRelation" : (access.isSingle() ? "relation" : "relations");
+        } else {
+            return child ? "childProperty" : (access.isSingle() ? "property" : "properties");
+        }
+    }
+
+    private static void readChild(PrintWriter out, String indentation, EntityAccessPlan.FeatureAccess access, String field, String child) {
+        int ordinal = access.getFeature().getOrdinal();
+        String method = loaderMethod(access, true);
+        if (access.isSingle()) {
+            // a getter of ANTLR returns only the first child
+            out.println(indentation + "if (!found" + ordinal + ") {");
+            out.println(indentation + "    found" + ordinal + " = true;");
+            out.println(indentation + "    this." + field + " = loader." + method + "(" + ordinal + ", " + child + ");");
+            out.println(indentation + "}");
+        } else {
+            out.println(indentation + "loader." + method + "(" + ordinal + ", " + child + ", this." + field + ");");
+        }
+    }
+
+    public void generateElementClass(Class<? extends ParserRuleContext> ruleClass, PrintWriter out) {
+        EntityAccessPlan plan = reflectionMapper.getAccessPlan(ruleClass);
+        String className = elementClassName(ruleClass);
+        String contextName = ruleClass.getCanonicalName();
+        String parserName = parserClass.getCanonicalName();
+        // in the order expected by GeneratedElement.loadValues
+        List<EntityAccessPlan.FeatureAccess> accesses = new LinkedList<>();
+        accesses.addAll(plan.getRelations());
+        accesses.addAll(plan.getProperties());
+        Map<EntityAccessPlan.FeatureAccess, String> fields = new HashMap<>();
+        Map<EntityAccessPlan.FeatureAccess, String> getters = new HashMap<>();
+        Set<String> usedFields = new HashSet<>(RESERVED_FIELDS);
+        Set<String> usedMethods = new HashSet<>(RESERVED_METHODS);
+        for (EntityAccessPlan.FeatureAccess access : accesses) {
+            String name = access.getFeature().getName();
+            fields.put(access, uniqueName(name, usedFields));
+            String capitalized = name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            getters.put(access, uniqueName("get" + capitalized, usedMethods));
+        }
+
+        // the features read by the getters generated by ANTLR are found visiting the children once, unless some
+        // other feature could refer to the same children
+        Map<EntityAccessPlan.FeatureAccess, Integer> tokenTypes = new LinkedHashMap<>();
+        Map<EntityAccessPlan.FeatureAccess, Class<?>> contextTypes = new LinkedHashMap<>();
+        List<Class<?>> otherTypes = new LinkedList<>();
+        for (EntityAccessPlan.FeatureAccess access : accesses) {
+            if (access.getKind() == EntityAccessPlan.Kind.POSITION) {
+                continue;
+            }
+            FeatureAccessor accessor = accessor(ruleClass, access);
+            Optional<Integer> tokenType = tokenType(accessor, access);
+            Optional<Class<?>> contextType = contextType(accessor, access);
+            if (tokenType.isPresent() && !tokenTypes.containsValue(tokenType.get())) {
+                tokenTypes.put(access, tokenType.get());
+            } else if (contextType.isPresent()) {
+                contextTypes.put(access, contextType.get());
+            } else {
+                otherTypes.add(access.getValueType().orElse(Object.class));
+            }
+        }
+        for (Iterator<Map.Entry<EntityAccessPlan.FeatureAccess, Class<?>>> it = contextTypes.entrySet().iterator(); it.hasNext(); ) {
+            Class<?> contextType = it.next().getValue();
+            if (otherTypes.stream().anyMatch(t -> t.isAssignableFrom(contextType) || contextType.isAssignableFrom(t))) {
+                it.remove();
+            }
+        }
+
+        header(out);
+        out.println("import me.tomassetti.antlrplus.metamodel.Entity;");
+        out.println("import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;");
+        out.println("import me.tomassetti.antlrplus.metamodel.mapping.GeneratedElement;");
+        out.println("import me.tomassetti.antlrplus.model.OrderedElement;");
+        out.println("import org.antlr.v4.runtime.ParserRuleContext;");
+        out.println("import org.antlr.v4.runtime.tree.ParseTree;");
+        out.println("import org.antlr.v4.runtime.tree.TerminalNode;");
+        out.println();
+        out.println("import java.util.ArrayList;");
+        out.println("import java.util.Collections;");
+        out.println("import java.util.List;");
+        out.println("import java.util.Optional;");
+        out.println();
+        out.println("public class " + className + " extends GeneratedElement {");
+        out.println();
+        out.println("    // the names of the features by ordinal, as in the metamodel the class was generated from");
+        StringJoiner featureNames = new StringJoiner(", ", "{", "}");
+        for (Feature feature : plan.getEntity().getFeatures()) {
+            featureNames.add(literal(feature.getName()));
+        }
+        out.println("    private static final String[] FEATURE_NAMES = " + featureNames + ";");
+        out.println("    private static volatile Entity checkedEntity;");
+        out.println();
+        for (EntityAccessPlan.FeatureAccess access : accesses) {
+            out.println("    private " + javaType(access) + " " + fields.get(access) + ";");
+        }
+        if (!accesses.isEmpty()) {
+            out.println();
+        }
+        out.println("    public " + className + "(AntlrReflectionMapper reflectionMapper, ParserRuleContext wrapped, Entity entity, Optional<OrderedElement> parent) {");
+        out.println("        super(reflectionMapper, wrapped, entity, parent);");
+        out.println("        if (checkedEntity != entity) {");
+        out.println("            checkFeatures(entity, FEATURE_NAMES);");
+        out.println("            checkedEntity = entity;");
+        out.println("        }");
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    protected void loadValues(Loader loader) {");
+        out.println("        " + contextName + " node = (" + contextName + ") getWrapped();");
+        for (EntityAccessPlan.FeatureAccess access : accesses) {
+            String field = fields.get(access);
+            int ordinal = access.getFeature().getOrdinal();
+            if (access.getKind() == EntityAccessPlan.Kind.POSITION) {
+                out.println("        this." + field + " = loader.position(" + ordinal + ");");
+            } else if (tokenTypes.containsKey(access) || contextTypes.containsKey(access)) {
+                if (access.isSingle()) {
+                    out.println("        this." + field + " = null;");
+                    out.println("        boolean found" + ordinal + " = false;");
+                } else {
+                    out.println("        this." + field + " = new ArrayList<>();");
+                }
+            } else {
+                FeatureAccessor accessor = accessor(ruleClass, access);
+                String raw = "node." + accessor.getRawName() + (accessor.getSource() == FeatureAccessor.Source.FIELD ? "" : "()");
+                out.println("        this." + field + " = loader." + loaderMethod(access, false) + "(" + ordinal + ", " + raw + ");");
+            }
+        }
+        if (!tokenTypes.isEmpty() || !contextTypes.isEmpty()) {
+            out.println("        for (int i = 0; i < node.getChildCount(); i++) {");
+            out.println("            ParseTree child = node.getChild(i);");
+            if (!tokenTypes.isEmpty()) {
+                out.println("            if (child instanceof TerminalNode) {");
+                out.println("                switch (((TerminalNode) child).getSymbol().getType()) {");
+                for (Map.Entry<EntityAccessPlan.FeatureAccess, Integer> entry : tokenTypes.entrySet()) {
+                    out.println("                    case " + parserName + "." + accessor(ruleClass, entry.getKey()).getRawName() + ":");
+                    readChild(out, "                        ", entry.getKey(), fields.get(entry.getKey()), "child");
+                    out.println("                        break;");
+                }
+                out.println("                }");
+                out.println("            }");
+            }
+            for (Map.Entry<EntityAccessPlan.FeatureAccess, Class<?>> entry : contextTypes.entrySet()) {
+                String type = entry.getValue().getCanonicalName();
+                out.println("            if (child instanceof " + type + ") {");
+                readChild(out, "                ", entry.getKey(), fields.get(entry.getKey()),
+                        entry.getKey().getKind() == EntityAccessPlan.Kind.RELATION ? "(" + type + ") child" : "child");
+                out.println("            }");
+            }
+            out.println("            loader.visited(child);");
+            out.println("        }");
+            for (EntityAccessPlan.FeatureAccess access : accesses) {
+                if (!access.isSingle() && (tokenTypes.containsKey(access) || contextTypes.containsKey(access))) {
+                    out.println("        this." + fields.get(access) + " = Collections.unmodifiableList(this." + fields.get(access) + ");");
+                }
+            }
+        }
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    protected Object valueOf(int ordinal) {");
+        out.println("        switch (ordinal) {");
+        for (EntityAccessPlan.FeatureAccess access : accesses) {
+            out.println("            case " + access.getFeature().getOrdinal() + ":");
+            out.println("                return this." + fields.get(access) + ";");
+        }
+        out.println("            default:");
+        out.println("                throw new IllegalArgumentException(\"No feature with ordinal \" + ordinal + \" in entity \" + type().getName());");
+        out.println("        }");
+        out.println("    }");
+        for (EntityAccessPlan.FeatureAccess access : accesses) {
+            String field = fields.get(access);
+            out.println();
+            if (access.getKind() == EntityAccessPlan.Kind.POSITION) {
+                out.println("    public int " + getters.get(access) + "() {");
+                out.println("        ensureLoaded();");
+                out.println("        return this." + field + ";");
+            } else if (access.isSingle()) {
+                out.println("    public Optional<" + javaType(access) + "> " + getters.get(access) + "() {");
+                out.println("        ensureLoaded();");
+                out.println("        return Optional.ofNullable(this." + field + ");");
+            } else {
+                out.println("    public " + javaType(access) + " " + getters.get(access) + "() {");
+                out.println("        ensureLoaded();");
+                out.println("        return this." + field + ";");
+            }
+            out.println("    }");
+        }
+        out.println("}");
+    }
+
+    public void generateFactoryClass(PrintWriter out) {
+        header(out);
+        out.println("import me.tomassetti.antlrplus.metamodel.Entity;");
+        out.println("import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;");
+        out.println("import me.tomassetti.antlrplus.metamodel.mapping.ElementFactory;");
+        out.println("import me.tomassetti.antlrplus.model.OrderedElement;");
+        out.println("import org.antlr.v4.runtime.ParserRuleContext;");
+        out.println();
+        out.println("import java.util.HashMap;");
+        out.println("import java.util.Map;");
+        out.println("import java.util.Optional;");
+        out.println();
+        out.println("public class " + factoryClassName() + " implements ElementFactory {");
+        out.println();
+        out.println("    private static final Map<Class<? extends ParserRuleContext>, ElementFactory> FACTORIES = new HashMap<>();");
+        out.println();
+        out.println("    static {");
+        for (Class<? extends ParserRuleContext> ruleClass : ruleClasses()) {
+            out.println("        FACTORIES.put(" + ruleClass.getCanonicalName() + ".class, " + elementClassName(ruleClass) + "::new);");
+        }
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    public OrderedElement create(AntlrReflectionMapper reflectionMapper, ParserRuleContext astNode, Entity entity, Optional<OrderedElement> parent) {");
+        out.println("        ElementFactory factory = FACTORIES.get(astNode.getClass());");
+        out.println("        return factory == null ? null : factory.create(reflectionMapper, astNode, entity, parent);");
+        out.println("    }");
+        out.println("}");
+    }
+
+    /**
+     * Write the element classes and the factory under the given source directory.
+     */
+    public List<File> generate(File sourceDir) throws FileNotFoundException {
+        File packageDir = new File(sourceDir, packageName.replace('.', File.separatorChar));
+        if (!packageDir.exists() && !packageDir.mkdirs()) {
+            throw new RuntimeException("Cannot create directory " + packageDir);
+        }
+        List<File> files = new LinkedList<>();
+        for (Class<? extends ParserRuleContext> ruleClass : ruleClasses()) {
+            File file = new File(packageDir, elementClassName(ruleClass) + ".java");
+            try (PrintWriter out = new PrintWriter(file)) {
+                generateElementClass(ruleClass, out);
+            }
+            files.add(file);
+        }
+        File file = new File(packageDir, factoryClassName() + ".java");
+        try (PrintWriter out = new PrintWriter(file)) {
+            generateFactoryClass(out);
+        }
+        files.add(file);
+        return files;
+    }
+
+    /**
+     * Arguments: parser class, lexer class, package of the generated classes, source directory and optionally
+     * "--positions", to add the positions to the entities.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: ElementClassGenerator <parser class> <lexer class> <package> <source dir> [--positions]");
+            System.exit(1);
+        }
+        Class<? extends Parser> parserClass = Class.forName(args[0]).asSubclass(Parser.class);
+        Class<? extends Lexer> lexerClass = Class.forName(args[1]).asSubclass(Lexer.class);
+        Field ruleNames = parserClass.getField("ruleNames");
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper((String[]) ruleNames.get(null), lexerClass);
+        if (args.length > 4 && args[4].equals("--positions")) {
+            reflectionMapper.setAddPositions(true);
+        }
+        reflectionMapper.registerWholeParser(parserClass);
+        List<File> files = new ElementClassGenerator(reflectionMapper, parserClass, args[2]).generate(new File(args[3]));
+        System.out.println("Generated " + files.size() + " files in " + args[3]);
+    }
+}
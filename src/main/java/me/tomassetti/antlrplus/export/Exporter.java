@@ -0,0 +1,298 @@
+package me.tomassetti.antlrplus.export;
+
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.util.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The configuration shared by the exporters of element trees: which properties are printed and how, and whether
+ * the type of an element is printed when its role already tells it.
+ *
+ * Once frozen an exporter can be used by many threads at once, for example by exportAll.
+ */
+public abstract class Exporter {
+
+    public enum PropertySetting {
+        AS_NODE,
+        AS_ATTRIBUTE
+    }
+
+    public static final String ROOT_ROLE = "root";
+
+    public static class ExportResult {
+        private final int index;
+        private final File file;
+        private final Throwable failure;
+        private final long bytes;
+        private final long nanos;
+
+        private ExportResult(int index, File file, Throwable failure, long bytes, long nanos) {
+            this.index = index;
+            this.file = file;
+            this.failure = failure;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Position of the document in the batch.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Optional<Throwable> getFailure() {
+            return Optional.ofNullable(failure);
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * Size of the file written, 0 for a failure.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Time spent writing the document.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Exporter.ExportResult{" +
+                    "file=" + file +
+                    ", success=" + isSuccess() +
+                    ", bytes=" + bytes +
+                    ", nanos=" + nanos +
+                    '}';
+        }
+    }
+
+    public static class ExportReport {
+        private final List<ExportResult> results;
+        private final long elapsedNanos;
+
+        private ExportReport(List<ExportResult> results, long elapsedNanos) {
+            this.results = Collections.unmodifiableList(results);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * The results, in the order of the documents.
+         */
+        public List<ExportResult> getResults() {
+            return results;
+        }
+
+        public List<ExportResult> getFailures() {
+            List<ExportResult> failures = new ArrayList<>();
+            for (ExportResult result : results) {
+                if (!result.isSuccess()) {
+                    failures.add(result);
+                }
+            }
+            return failures;
+        }
+
+        public int getDocuments() {
+            return results.size();
+        }
+
+        public long getBytesWritten() {
+            long bytes = 0;
+            for (ExportResult result : results) {
+                bytes += result.getBytes();
+            }
+            return bytes;
+        }
+
+        /**
+         * Wall-clock time of the whole batch.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Sum of the times spent on each document: compared with the elapsed time it tells how much the documents
+         * were actually exported in parallel.
+         */
+        public long getBusyNanos() {
+            long nanos = 0;
+            for (ExportResult result : results) {
+                nanos += result.getNanos();
+            }
+            return nanos;
+        }
+
+        public double getDocumentsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : results.size() * 1e9 / elapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : getBytesWritten() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Exporter.ExportReport{" +
+                    "documents=" + getDocuments() +
+                    ", failures=" + getFailures().size() +
+                    ", bytesWritten=" + getBytesWritten() +
+                    ", elapsedNanos=" + elapsedNanos +
+                    ", busyNanos=" + getBusyNanos() +
+                    '}';
+        }
+    }
+
+    private boolean avoidRedundantType = false;
+
+    private volatile boolean frozen = false;
+
+    protected void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The exporter is frozen, its configuration cannot be changed");
+        }
+    }
+
+    /**
+     * Make the configuration read-only: from now on the exporter can be shared by any number of threads exporting
+     * different trees. Changing the configuration throws an IllegalStateException.
+     *
+     * The exporter must be published safely to the other threads (e.g., passing it to an ExecutorService).
+     */
+    public Exporter freeze() {
+        checkNotFrozen();
+        propertySettings = Collections.unmodifiableMap(propertySettings);
+        propertiesToNotPrint = Collections.unmodifiableSet(propertiesToNotPrint);
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public void setAvoidRedundantType(boolean avoidRedundantType) {
+        checkNotFrozen();
+        this.avoidRedundantType = avoidRedundantType;
+    }
+
+    public void doNotPrintPositions() {
+        checkNotFrozen();
+        addPropertyToNotPrint(AntlrReflectionMapper.START_LINE.getName());
+        addPropertyToNotPrint(AntlrReflectionMapper.START_COLUMN.getName());
+        addPropertyToNotPrint(AntlrReflectionMapper.END_LINE.getName());
+        addPropertyToNotPrint(AntlrReflectionMapper.END_COLUMN.getName());
+    }
+
+    private Map<Property, PropertySetting> propertySettings = new HashMap<>();
+
+    private boolean printProperties = true;
+
+    private Set<String> propertiesToNotPrint = new HashSet<>();
+
+    public void addPropertyToNotPrint(String propertyName) {
+        checkNotFrozen();
+        this.propertiesToNotPrint.add(propertyName);
+    }
+
+    public void setPrintProperties(boolean printProperties) {
+        checkNotFrozen();
+        this.printProperties = printProperties;
+    }
+
+    public void setPropertySetting(Property property, PropertySetting setting) {
+        checkNotFrozen();
+        if (!property.isSingle() && setting==PropertySetting.AS_ATTRIBUTE) {
+            throw new IllegalArgumentException("Single property cannot be configured to be printed as attributes");
+        }
+        propertySettings.put(property, setting);
+    }
+
+    protected PropertySetting getPropertySetting(Property property) {
+        return propertySettings.getOrDefault(property, PropertySetting.AS_NODE);
+    }
+
+    protected String propertyValueToString(Object propertyValue) {
+        if (propertyValue instanceof ParseTree) {
+            return ((ParseTree)propertyValue).getText();
+        } else {
+            return propertyValue.toString();
+        }
+    }
+
+    protected boolean isPrinted(Feature property) {
+        return printProperties && !propertiesToNotPrint.contains(property.getName());
+    }
+
+    protected boolean isTypePrinted(OrderedElement astNode, String role) {
+        return !avoidRedundantType || !role.toLowerCase().equals(astNode.type().getName().toLowerCase());
+    }
+
+    /**
+     * Write the element to the file, with the root role.
+     */
+    protected abstract void exportToFile(OrderedElement astNode, File file) throws IOException;
+
+    /**
+     * Export each element to its file, running the documents concurrently on the executor. A
+     * document which cannot be written gives a failed result, the batch goes on. The exporter must be frozen.
+     */
+    public ExportReport exportAll(List<Pair<OrderedElement, File>> documents, Executor executor) {
+        if (!frozen) {
+            throw new IllegalStateException("The exporter should be frozen to be shared by the tasks");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException();
+        }
+        ExportResult[] results = new ExportResult[documents.size()];
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[documents.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < documents.size(); i++) {
+            int index = i;
+            OrderedElement element = documents.get(i).getFirst();
+            File file = documents.get(i).getSecond();
+            tasks[i] = CompletableFuture.runAsync(() -> results[index] = export(index, element, file), executor);
+        }
+        CompletableFuture.allOf(tasks).join();
+        return new ExportReport(Arrays.asList(results), System.nanoTime() - start);
+    }
+
+    /**
+     * Export the documents on the common fork-join pool.
+     */
+    public ExportReport exportAll(List<Pair<OrderedElement, File>> documents) {
+        return exportAll(documents, ForkJoinPool.commonPool());
+    }
+
+    private ExportResult export(int index, OrderedElement element, File file) {
+        long start = System.nanoTime();
+        try {
+            exportToFile(element, file);
+            return new ExportResult(index, file, null, file.length(), System.nanoTime() - start);
+        } catch (Throwable e) {
+            return new ExportResult(index, file, e, 0, System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package me.tomassetti.antlrplus.json;
+
+import me.tomassetti.antlrplus.export.Exporter;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Exports element trees as JSON, streaming it to its destination while the elements are visited. It is configured
+ * as the XmlExporter is, and mirrors its output: each element is an object with its role and its type, the property
+ * values set AS_ATTRIBUTE are members of its "attributes" object, named after their property, and the other values
+ * are in its "children" array, in their order. A property value in the children is an object with its role and its
+ * value:
+ *
+ * {"role":"root","type":"File_input","attributes":{"startLine":1},"children":[{"role":"stmt","type":"Stmt",...},
+ * {"role":"EOF","value":"<EOF>"}]}
+ *
+ * Integer values, as the positions, are written as numbers.
+ */
+public class JsonExporter extends Exporter {
+
+    private static final String INDENTATION = "  ";
+
+    private boolean prettyPrinting = false;
+
+    @Override
+    public JsonExporter freeze() {
+        super.freeze();
+        return this;
+    }
+
+    /**
+     * Break lines and indent the members, instead of writing the most compact text.
+     */
+    public void setPrettyPrinting(boolean prettyPrinting) {
+        checkNotFrozen();
+        this.prettyPrinting = prettyPrinting;
+    }
+
+    public boolean isPrettyPrinting() {
+        return prettyPrinting;
+    }
+
+    public String toJsonString(OrderedElement astNode, String role) {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(astNode, role, writer);
+        } catch (IOException e) {
+            throw new RuntimeException("That is unexpected", e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Write the element in UTF-8. The stream is flushed, not closed.
+     */
+    public void writeJson(OrderedElement astNode, String role, OutputStream outputStream) throws IOException {
+        writeJson(astNode, role, new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Write the element. The writer is flushed, not closed.
+     */
+    public void writeJson(OrderedElement astNode, String role, Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer, prettyPrinting ? INDENTATION : null);
+        write(astNode, role, jsonWriter);
+        jsonWriter.flush();
+    }
+
+    private void write(OrderedElement astNode, String role, JsonWriter writer) throws IOException {
+        List<Pair<OrderedElement.ValueReference, Object>> values = astNode.getOrderedValues();
+        writer.beginObject();
+        writer.name("role").value(role);
+        if (isTypePrinted(astNode, role)) {
+            writer.name("type").value(astNode.type().getName());
+        }
+        // apart from the members of the element, whatever the names of the properties
+        boolean hasAttributes = false;
+        for (Pair<OrderedElement.ValueReference, Object> value : values) {
+            Feature feature = value.getFirst().getFeature();
+            if (feature.isProperty() && isPrinted(feature)
+                    && getPropertySetting(feature.asProperty()) == PropertySetting.AS_ATTRIBUTE) {
+                if (!hasAttributes) {
+                    writer.name("attributes").beginObject();
+                    hasAttributes = true;
+                }
+                writer.name(feature.getName());
+                writePropertyValue(value.getSecond(), writer);
+            }
+        }
+        if (hasAttributes) {
+            writer.endObject();
+        }
+        boolean hasChildren = false;
+        for (Pair<OrderedElement.ValueReference, Object> value : values) {
+            Feature feature = value.getFirst().getFeature();
+            boolean child = feature.isRelation() || (isPrinted(feature)
+                    && getPropertySetting(feature.asProperty()) != PropertySetting.AS_ATTRIBUTE);
+            if (!child) {
+                continue;
+            }
+            if (!hasChildren) {
+                writer.name("children").beginArray();
+                hasChildren = true;
+            }
+            if (feature.isRelation()) {
+                write((OrderedElement) value.getSecond(), feature.getName(), writer);
+            } else {
+                writer.beginObject();
+                writer.name("role").value(feature.getName());
+                writer.name("value");
+                writePropertyValue(value.getSecond(), writer);
+                writer.endObject();
+            }
+        }
+        if (hasChildren) {
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    private void writePropertyValue(Object value, JsonWriter writer) throws IOException {
+        if (value instanceof Integer || value instanceof Long) {
+            writer.value(((Number) value).longValue());
+        } else {
+            writer.value(propertyValueToString(value));
+        }
+    }
+
+    /**
+     * Stream the element to the file, in UTF-8, followed by a line break.
+     */
+    public void toJsonFile(OrderedElement astNode, File file, String role) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeJson(astNode, role, out);
+            out.write('\n');
+        }
+    }
+
+    public void toJsonFile(OrderedElement astNode, File file) throws IOException {
+        toJsonFile(astNode, file, ROOT_ROLE);
+    }
+
+    @Override
+    protected void exportToFile(OrderedElement astNode, File file) throws IOException {
+        toJsonFile(astNode, file);
+    }
+}
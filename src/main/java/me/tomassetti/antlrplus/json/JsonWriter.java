@@ -0,0 +1,158 @@
+package me.tomassetti.antlrplus.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes JSON tokens straight to a Writer, taking care of the separators and, if an indentation is given, of the
+ * line breaks. It does not check that the tokens make a valid document: that is up to the caller.
+ */
+class JsonWriter {
+
+    private static final String[] SHORT_ESCAPES = new String[' '];
+
+    static {
+        SHORT_ESCAPES['\b'] = "\\b";
+        SHORT_ESCAPES['\t'] = "\\t";
+        SHORT_ESCAPES['\n'] = "\\n";
+        SHORT_ESCAPES['\f'] = "\\f";
+        SHORT_ESCAPES['\r'] = "\\r";
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private final String indentation;
+    // a line break followed by the indentation of the deepest level reached so far
+    private char[] lineBreak = new char[]{'\n'};
+    // for each open object or array, whether something has been written in it
+    private boolean[] nonEmpty = new boolean[32];
+    private int depth = 0;
+    private boolean afterName = false;
+
+    /**
+     * With a null indentation the output is compact, without any whitespace.
+     */
+    JsonWriter(Writer out, String indentation) {
+        this.out = out;
+        this.indentation = indentation;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    JsonWriter name(String name) throws IOException {
+        beforeValue();
+        string(name);
+        out.write(indentation == null ? ":" : ": ");
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) throws IOException {
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        beforeValue();
+        out.write(bracket);
+        if (++depth == nonEmpty.length) {
+            nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+        }
+        nonEmpty[depth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing to close");
+        }
+        if (nonEmpty[depth--]) {
+            newLine();
+        }
+        out.write(bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (nonEmpty[depth]) {
+                out.write(',');
+            }
+            nonEmpty[depth] = true;
+            newLine();
+        }
+    }
+
+    private void newLine() throws IOException {
+        if (indentation != null) {
+            int length = 1 + depth * indentation.length();
+            if (length > lineBreak.length) {
+                StringBuilder builder = new StringBuilder("\n");
+                for (int i = 0; i < depth * 2; i++) {
+                    builder.append(indentation);
+                }
+                lineBreak = builder.toString().toCharArray();
+            }
+            out.write(lineBreak, 0, length);
+        }
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // the line separators are valid in JSON strings, not in JavaScript ones
+            if (c >= ' ' && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.write(value, start, i - start);
+            start = i + 1;
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < ' ' && SHORT_ESCAPES[c] != null) {
+                out.write(SHORT_ESCAPES[c]);
+            } else {
+                out.write("\\u");
+                out.write(HEX_DIGITS[(c >> 12) & 0xF]);
+                out.write(HEX_DIGITS[(c >> 8) & 0xF]);
+                out.write(HEX_DIGITS[(c >> 4) & 0xF]);
+                out.write(HEX_DIGITS[c & 0xF]);
+            }
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+}
@@ -1,9 +1,6 @@
 package me.tomassetti.antlrplus.metamodel;
 
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
 public class Entity {
     private String name;
@@ -12,6 +9,9 @@ public class Entity {
     private List<Relation> relations;
     private Optional<Entity> parent = Optional.empty();
     private boolean _abstract;
+    private boolean frozen = false;
+    private Map<String, Property> propertiesByName = new HashMap<>();
+    private Map<String, Relation> relationsByName = new HashMap<>();
 
     public boolean isAbstract() {
         return _abstract;
@@ -51,54 +51,94 @@ public class Entity {
         return relations;
     }
 
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Entity " + name + " is frozen, it cannot be changed");
+        }
+    }
+
+    private static <F extends Feature> void insertSorted(List<F> list, F feature) {
+        int index = Collections.binarySearch(list, feature, Comparator.comparing(Feature::getName));
+        list.add(index < 0 ? -index - 1 : index, feature);
+    }
+
     public void addProperty(Property property) {
-        if (properties.stream().filter(p -> p.getName().equals(property.getName())).count() > 0) {
+        checkNotFrozen();
+        if (propertiesByName.containsKey(property.getName())) {
             throw new IllegalArgumentException("Duplicate property name "+property.getName()+ " for entity "+this.getName());
         }
-        this.properties.add(property);
+        propertiesByName.put(property.getName(), property);
+        insertSorted(this.properties, property);
         this.features.add(property);
-        this.properties.sort(new Comparator<Property>() {
-            @Override
-            public int compare(Property o1, Property o2) {
-                return o1.getName().compareTo(o2.getName());
-            }
-        });
     }
 
     public void addRelation(Relation relation) {
-        if (relations.stream().filter(p -> p.getName().equals(relation.getName())).count() > 0) {
+        checkNotFrozen();
+        if (relationsByName.containsKey(relation.getName())) {
             throw new IllegalArgumentException("Duplicate relation name "+relation.getName()+ " for entity "+this.getName());
         }
-        this.relations.add(relation);
+        relationsByName.put(relation.getName(), relation);
+        insertSorted(this.relations, relation);
         this.features.add(relation);
-        this.relations.sort(new Comparator<Relation>() {
-            @Override
-            public int compare(Relation o1, Relation o2) {
-                return o1.getName().compareTo(o2.getName());
+    }
+
+    /**
+     * Make the features of the entity read-only and assign to each one its ordinal, the index in getFeatures.
+     * A feature can be part of only one frozen entity. Freezing an entity twice has no effect.
+     */
+    public void freeze() {
+        if (frozen) {
+            return;
+        }
+        for (int i = 0; i < features.size(); i++) {
+            Feature feature = features.get(i);
+            if (feature.getOrdinal() != Feature.NO_ORDINAL) {
+                throw new IllegalStateException("Feature " + feature.getName() + " of entity " + name + " is already part of another entity");
             }
-        });
+        }
+        for (int i = 0; i < features.size(); i++) {
+            features.get(i).setOrdinal(i);
+        }
+        this.features = Collections.unmodifiableList(features);
+        this.properties = Collections.unmodifiableList(properties);
+        this.relations = Collections.unmodifiableList(relations);
+        this.frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * The feature with the given ordinal, available once the entity is frozen.
+     */
+    public Feature getFeature(int ordinal) {
+        if (!frozen) {
+            throw new IllegalStateException("Entity " + name + " is not frozen, its features have no ordinals");
+        }
+        return features.get(ordinal);
     }
 
     public Entity(String name) {
         this.name = name;
-        this.properties = new LinkedList<>();
-        this.relations = new LinkedList<>();
-        this.features = new LinkedList<>();
+        this.properties = new ArrayList<>();
+        this.relations = new ArrayList<>();
+        this.features = new ArrayList<>();
     }
 
     public Entity(String name, Entity parent) {
         this.parent = Optional.of(parent);
         this.name = name;
-        this.properties = new LinkedList<>();
-        this.relations = new LinkedList<>();
-        this.features = new LinkedList<>();
+        this.properties = new ArrayList<>();
+        this.relations = new ArrayList<>();
+        this.features = new ArrayList<>();
     }
 
     public Optional<Relation> getRelation(String name){
-        return relations.stream().filter(r -> r.getName().equals(name)).findFirst();
+        return Optional.ofNullable(relationsByName.get(name));
     }
 
     public Optional<Property> getProperty(String name){
-        return properties.stream().filter(r -> r.getName().equals(name)).findFirst();
+        return Optional.ofNullable(propertiesByName.get(name));
     }
 }
@@ -2,12 +2,26 @@ package me.tomassetti.antlrplus.metamodel;
 
 public abstract class Feature {
 
+    public static final int NO_ORDINAL = -1;
+
     private String name;
+    private int ordinal = NO_ORDINAL;
 
     public Feature(String name) {
         this.name = name;
     }
 
+    /**
+     * Index of the feature in the features of its entity, assigned when the entity is frozen.
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
     public boolean isProperty() {
         return this instanceof Property;
     }
@@ -7,58 +7,87 @@ import me.tomassetti.antlrplus.model.AbstractOrderedElement;
 import me.tomassetti.antlrplus.model.Element;
 import me.tomassetti.antlrplus.model.OrderedElement;
 import me.tomassetti.antlrplus.util.Pair;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
-import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class AntlrReflectionElement extends AbstractOrderedElement {
 
     private ParserRuleContext wrapped;
     private AntlrReflectionMapper reflectionMapper;
-    private static final int EOF_TOKEN_TYPE = -1;
+    private EntityAccessPlan accessPlan;
+    private ElementCache elementCache;
+    private LineIndex lineIndex;
 
     protected Optional<Object> lookForCommonProperty(String name) {
+        return position(wrapped, name, this::lineIndex);
+    }
+
+    /**
+     * Value of the position property with the given name for the context, empty for any other name.
+     */
+    static Optional<Object> position(ParserRuleContext wrapped, String name, Function<Token, LineIndex> lineIndexes) {
         if (name.equals(AntlrReflectionMapper.START_LINE.getName())) {
-            return Optional.of(this.wrapped.getStart().getLine());
+            return Optional.of(wrapped.getStart().getLine());
         } else if (name.equals(AntlrReflectionMapper.END_LINE.getName())) {
-            if (this.wrapped.getStop() == null) {
-                if (this.wrapped.getStart() != null && this.wrapped.getText().isEmpty()) {
-                    return Optional.of(this.wrapped.getStart().getCharPositionInLine());
-                }
-                throw new IllegalStateException("The node has no stop token. Wrapped class: "+wrapped.getClass().getCanonicalName()
-                        +". SourceInterval: "+ this.wrapped.getSourceInterval().a+ " - "+this.wrapped.getSourceInterval().b+". Text: '"+this.wrapped.getText()+"'. Start token: "+this.wrapped.getStart());
+            Token stop = wrapped.getStop();
+            if (stop == null) {
+                return Optional.of(emptyNodeColumn(wrapped));
             }
-            return Optional.of(this.wrapped.getStop().getLine() + this.wrapped.getStop().getText().split("\n", -1).length - 1);
+            return Optional.of(lineIndexes.apply(stop).endLine(stop));
         } else if (name.equals(AntlrReflectionMapper.START_COLUMN.getName())) {
-            return Optional.of(this.wrapped.getStart().getCharPositionInLine());
+            return Optional.of(wrapped.getStart().getCharPositionInLine());
         } else if (name.equals(AntlrReflectionMapper.END_COLUMN.getName())) {
-            if (this.wrapped.getStop() == null) {
-                if (this.wrapped.getStart() != null && this.wrapped.getText().isEmpty()) {
-                    return Optional.of(this.wrapped.getStart().getCharPositionInLine());
-                }
-                throw new IllegalStateException("The node has no stop token. Wrapped class: "+wrapped.getClass().getCanonicalName()
-                        +". SourceInterval: "+ this.wrapped.getSourceInterval().a+ " - "+this.wrapped.getSourceInterval().b+". Text: '"+this.wrapped.getText()+"'. Start token: "+this.wrapped.getStart());
-            }
-            if (this.wrapped.getStop().getType() == EOF_TOKEN_TYPE) {
-                return Optional.of(this.wrapped.getStop().getCharPositionInLine());
-            }
-            String[] lines = this.wrapped.getStop().getText().split("\n", -1);
-            if (lines.length == 1) {
-                return Optional.of(this.wrapped.getStop().getCharPositionInLine() + this.wrapped.getStop().getText().length());
-            } else {
-                return Optional.of(lines[lines.length - 1].length());
+            Token stop = wrapped.getStop();
+            if (stop == null) {
+                return Optional.of(emptyNodeColumn(wrapped));
             }
+            return Optional.of(lineIndexes.apply(stop).endColumn(stop));
         } else {
             return Optional.empty();
         }
     }
 
+    private static int emptyNodeColumn(ParserRuleContext wrapped) {
+        if (wrapped.getStart() != null && hasEmptyText(wrapped)) {
+            return wrapped.getStart().getCharPositionInLine();
+        }
+        throw new IllegalStateException("The node has no stop token. Wrapped class: "+wrapped.getClass().getCanonicalName()
+                +". SourceInterval: "+ wrapped.getSourceInterval().a+ " - "+wrapped.getSourceInterval().b+". Text: '"+wrapped.getText()+"'. Start token: "+wrapped.getStart());
+    }
+
+    /**
+     * Same as getText().isEmpty(), without concatenating the text of the whole subtree.
+     */
+    private static boolean hasEmptyText(ParseTree tree) {
+        if (tree instanceof TerminalNode) {
+            return tree.getText().isEmpty();
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (!hasEmptyText(tree.getChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private LineIndex lineIndex(Token token) {
+        CharStream stream = token.getInputStream();
+        // racy but harmless: a LineIndex is immutable
+        LineIndex index = lineIndex;
+        if (index == null || !index.isFor(stream)) {
+            index = reflectionMapper.getLineIndex(stream);
+            lineIndex = index;
+        }
+        return index;
+    }
+
     @Override
     public Optional<Object> getSingleProperty(String name) {
         Optional<Object> res = lookForCommonProperty(name);
@@ -69,10 +98,6 @@ public class AntlrReflectionElement extends AbstractOrderedElement {
         return this.getSingleProperty(this.type().getProperty(name).get());
     }
 
-    public void setFeaturesNameMapping(Map<String, String> featuresNameMapping) {
-        this.featuresNameMapping = featuresNameMapping;
-    }
-
     @Override
     public String toString() {
         return "ReflectionElement{" +
@@ -82,12 +107,30 @@ public class AntlrReflectionElement extends AbstractOrderedElement {
 
     }
 
-    private Map<String, String> featuresNameMapping = new HashMap<>();
-
     public AntlrReflectionElement(AntlrReflectionMapper reflectionMapper, ParserRuleContext wrapped, Entity entity, Optional<OrderedElement> parent) {
         super(entity, parent);
         this.reflectionMapper = reflectionMapper;
         this.wrapped = wrapped;
+        this.accessPlan = reflectionMapper.getAccessPlan(wrapped.getClass());
+        if (parent.isPresent() && parent.get() instanceof AntlrReflectionElement) {
+            this.elementCache = ((AntlrReflectionElement) parent.get()).elementCache;
+            this.lineIndex = ((AntlrReflectionElement) parent.get()).lineIndex;
+        }
+    }
+
+    /**
+     * The cache shared by the elements of this tree, if any.
+     */
+    public ElementCache getElementCache() {
+        return elementCache;
+    }
+
+    void setElementCache(ElementCache elementCache) {
+        this.elementCache = elementCache;
+    }
+
+    public ParserRuleContext getWrapped() {
+        return wrapped;
     }
 
     private class TokenAdapter {
@@ -97,12 +140,6 @@ public class AntlrReflectionElement extends AbstractOrderedElement {
             this.token = token;
         }
 
-        public Interval getInterval() {
-            int a = token.getStartIndex();
-            int b = token.getStopIndex();
-            return new Interval(a, b);
-        }
-
         public String toString() {
             return token.getText();
         }
@@ -113,214 +150,278 @@ public class AntlrReflectionElement extends AbstractOrderedElement {
         if (property.isSingle()) {
             throw new IllegalArgumentException();
         }
-        String name = toRawName(property.getName());
+        EntityAccessPlan.FeatureAccess access = accessPlan.get(property);
         List<Object> elements = new ArrayList<>();
-        try {
-            List<? extends Object> result = (List<? extends Object>) wrapped.getClass().getMethod(name).invoke(wrapped);
-
+        List<? extends Object> result = (List<? extends Object>) readFeature(access);
+        if (isFromField(access)) {
+            for (Object r : result) {
+                if (r instanceof Token) {
+                    elements.add(new TokenAdapter((Token)r));
+                } else {
+                    elements.add(r);
+                }
+            }
+        } else {
             // if it was obtained from a Rule to be treated as token we need to convert it
             //result = result.stream().map(e -> toToken(e)).collect(Collectors.toList());
 
             elements.addAll(result);
-        } catch (NoSuchMethodException e) {
-            try {
-                List<? extends Object> result = (List<? extends Object>) wrapped.getClass().getField(name).get(wrapped);
-                for (Object r : result) {
-                    if (r instanceof Token) {
-                        elements.add(new TokenAdapter((Token)r));
-                    } else {
-                        elements.add(r);
-                    }
-                }
-            } catch (IllegalAccessException|NoSuchFieldException e1) {
-                throw new RuntimeException(e1);
-            }
-        } catch (IllegalAccessException|InvocationTargetException e) {
-            throw new RuntimeException(e);
         }
         return elements;
     }
 
-    private Optional<Field> getField(Class<?> clazz, String fieldName) {
-        return Arrays.stream(clazz.getFields()).filter(f -> f.getName().equals(fieldName)).findFirst();
+    private FeatureAccessor accessor(EntityAccessPlan.FeatureAccess access) {
+        if (access.getAccessor().isPresent()) {
+            return access.getAccessor().get();
+        }
+        return reflectionMapper.getAccessor(wrapped.getClass(), access.getRawName(), access.getKind() == EntityAccessPlan.Kind.RELATION);
+    }
+
+    private Object readFeature(EntityAccessPlan.FeatureAccess access) {
+        return accessor(access).get(wrapped);
+    }
+
+    private boolean isFromField(EntityAccessPlan.FeatureAccess access) {
+        if (access.getAccessor().isPresent()) {
+            return access.isFromField();
+        }
+        return accessor(access).isFromField();
     }
 
-    private String toRawName(String featureName) {
-        if (this.featuresNameMapping.containsKey(featureName)) {
-            return this.featuresNameMapping.get(featureName);
+    private OrderedElement toElement(EntityAccessPlan.FeatureAccess access, ParserRuleContext child) {
+        if (access.isMayBeTransparent()) {
+            return reflectionMapper.toElement(child, Optional.of(this));
         } else {
-            return featureName;
+            return reflectionMapper.toElementSkippingTransparency(child, Optional.of(this));
         }
     }
 
-    private Optional<ParserRuleContext> getSingleRelationRaw(Relation relation) {
-        if (!relation.isSingle()) {
+    private Optional<ParserRuleContext> getSingleRelationRaw(EntityAccessPlan.FeatureAccess access) {
+        if (!access.isSingle()) {
             throw new IllegalArgumentException();
         }
-        String name = toRawName(relation.getName());
         try {
-            ParserRuleContext result;
-            if (getField(wrapped.getClass(), name).isPresent()) {
-                result = (ParserRuleContext) getField(wrapped.getClass(), name).get().get(wrapped);
-            } else {
-                result = (ParserRuleContext) wrapped.getClass().getMethod(name).invoke(wrapped);
-            }
+            ParserRuleContext result = (ParserRuleContext) readFeature(access);
             if (result == null) {
                 return Optional.empty();
             } else {
-                if (reflectionMapper.isToBeDropped(result.getClass())) {
+                if (access.isMayBeDropped() && reflectionMapper.isToBeDropped(result.getClass())) {
                     return Optional.empty();
                 }
                 return Optional.of(result);
             }
-        } catch (IllegalAccessException|InvocationTargetException|NoSuchMethodException e) {
-            throw new RuntimeException(e);
         } catch (ClassCastException e){
-            throw new RuntimeException("Relation "+relation, e);
+            throw new RuntimeException("Relation "+access.getFeature(), e);
         }
     }
 
     @Override
     public Optional<Element> getSingleRelation(Relation relation) {
         try {
-            Optional<ParserRuleContext> raw = getSingleRelationRaw(relation);
-            return raw.map(e -> reflectionMapper.toElement(e, Optional.of(this)));
+            EntityAccessPlan.FeatureAccess access = accessPlan.get(relation);
+            Optional<ParserRuleContext> raw = getSingleRelationRaw(access);
+            return raw.map(e -> toElement(access, e));
         } catch (RuntimeException e) {
             throw new RuntimeException("Issue accessing relation "+relation, e);
         }
     }
 
-    private List<? extends ParserRuleContext> getMultipleRelationRaw(Relation relation) {
-        if (relation.isSingle()) {
+    // the access plan only holds relations whose accessor returns a List of contexts
+    @SuppressWarnings("unchecked")
+    private List<? extends ParserRuleContext> getMultipleRelationRaw(EntityAccessPlan.FeatureAccess access) {
+        if (access.isSingle()) {
             throw new IllegalArgumentException();
         }
-        String name = toRawName(relation.getName());
-        try {
-            List<? extends ParserRuleContext> result;
-            if (getField(wrapped.getClass(), relation.getName()).isPresent()) {
-                result = (List<? extends ParserRuleContext>) getField(wrapped.getClass(), name).get().get(wrapped);
-            } else {
-                result = (List<? extends ParserRuleContext>)wrapped.getClass().getMethod(name).invoke(wrapped);
-            }
+        List<? extends ParserRuleContext> result = (List<? extends ParserRuleContext>) readFeature(access);
+        if (access.isMayBeDropped()) {
             result = result.stream().filter(e -> !reflectionMapper.isToBeDropped(e.getClass())).collect(Collectors.<ParserRuleContext>toList());
-            return result;
-        } catch (IllegalAccessException|InvocationTargetException|NoSuchMethodException e) {
-            throw new RuntimeException(e);
         }
+        return result;
     }
 
     @Override
     public List<Element> getMultipleRelation(Relation relation) {
+        EntityAccessPlan.FeatureAccess access = accessPlan.get(relation);
         List<Element> elements = new ArrayList<>();
-        for (ParserRuleContext child : getMultipleRelationRaw(relation)) {
-            elements.add(reflectionMapper.toElement(child, Optional.of(this)));
+        for (ParserRuleContext child : getMultipleRelationRaw(access)) {
+            elements.add(toElement(access, child));
         }
         return elements;
     }
 
     @Override
     public Optional<Object> getSingleProperty(Property property) {
-        Optional<Object> res = lookForCommonProperty(property.getName());
-        if (res.isPresent()) {
-            return res;
-        }
-        String name = toRawName(property.getName());
-        try {
-            Object result = wrapped.getClass().getMethod(name).invoke(wrapped);
-            if (result == null) {
-                return Optional.empty();
-            } else {
-                return Optional.of(result);
+        Optional<EntityAccessPlan.FeatureAccess> access = accessPlan.find(property);
+        if (!access.isPresent() || access.get().getKind() == EntityAccessPlan.Kind.POSITION) {
+            Optional<Object> res = lookForCommonProperty(property.getName());
+            if (res.isPresent() || access.isPresent()) {
+                return res;
             }
-        } catch (NoSuchMethodException e) {
-            try {
-                Object result = wrapped.getClass().getField(name).get(wrapped);
-                if (result == null) {
-                    return Optional.empty();
-                } else {
-                    if (result instanceof Token) {
-                        return Optional.of(new TokenAdapter((Token)result));
-                    }
-                    return Optional.of(result);
-                }
-            } catch (IllegalAccessException|NoSuchFieldException e1) {
-                throw new RuntimeException(e1);
-            }
-        } catch (IllegalAccessException|InvocationTargetException e) {
-            throw new RuntimeException(e);
+            throw new IllegalArgumentException("Unknown property " + property.getName() + " for entity " + entity.getName());
+        }
+        return getSingleProperty(access.get());
+    }
+
+    private Optional<Object> getSingleProperty(EntityAccessPlan.FeatureAccess access) {
+        if (access.getKind() == EntityAccessPlan.Kind.POSITION) {
+            return lookForCommonProperty(access.getFeature().getName());
+        }
+        Object result = readFeature(access);
+        if (result == null) {
+            return Optional.empty();
+        } else if (isFromField(access) && result instanceof Token) {
+            return Optional.of(new TokenAdapter((Token)result));
+        } else {
+            return Optional.of(result);
+        }
+    }
+
+    private static class OrderedValue {
+        private final ValueReference reference;
+        private final Object raw;
+        private final EntityAccessPlan.FeatureAccess access;
+        // next value with the same key, if any
+        private OrderedValue next;
+
+        OrderedValue(ValueReference reference, Object raw, EntityAccessPlan.FeatureAccess access) {
+            this.reference = reference;
+            this.raw = raw;
+            this.access = access;
+        }
+    }
+
+    // Memoized: the wrapped tree changes only when the cache is told so. Each value is built before it is assigned,
+    // so that other threads reading the element see it complete: at worst they build it again.
+    private volatile List<OrderedValue> orderedValues;
+    private volatile List<ValueReference> valuesOrder;
+    private volatile List<Pair<ValueReference, Object>> valuesWithElements;
+    private int memoGeneration;
+
+    private void forgetIfTreeChanged() {
+        if (elementCache != null && elementCache.getGeneration() != memoGeneration) {
+            orderedValues = null;
+            valuesOrder = null;
+            valuesWithElements = null;
+            memoGeneration = elementCache.getGeneration();
         }
     }
 
-    private Interval toInterval(Object propertyValue) {
-        if (propertyValue instanceof ParseTree) {
-            return ((ParseTree) propertyValue).getSourceInterval();
-        } else if (propertyValue instanceof TokenAdapter) {
-            return ((TokenAdapter)propertyValue).getInterval();
+    private static Object positionKey(Object value) {
+        if (value instanceof ParseTree) {
+            return value;
+        } else if (value instanceof TokenAdapter) {
+            return ((TokenAdapter) value).token;
         } else {
-            //System.err.println("NO POSITION FOR "+propertyValue+ " "+propertyValue.getClass());
             return null;
         }
     }
 
-    @Override
-    public List<ValueReference> getValuesOrder() {
-        List<Pair<ValueReference, Interval>> positions = new LinkedList<>();
+    private void addOrderedValue(Map<Object, OrderedValue> positioned, List<Object> keys, List<OrderedValue> unpositioned, OrderedValue value) {
+        Object key = positionKey(value.raw);
+        if (key == null) {
+            unpositioned.add(value);
+        } else {
+            OrderedValue previous = positioned.put(key, value);
+            value.next = previous;
+            keys.add(key);
+        }
+    }
+
+    private void emit(Map<Object, OrderedValue> positioned, Object key, List<OrderedValue> result) {
+        OrderedValue value = positioned.remove(key);
+        // values sharing the key were chained in reverse order of insertion
+        LinkedList<OrderedValue> sameKey = new LinkedList<>();
+        for (; value != null; value = value.next) {
+            sameKey.addFirst(value);
+        }
+        result.addAll(sameKey);
+    }
 
-        for (Relation relation : type().getRelations()) {
+    /**
+     * Collect the values once, then find their order by scanning the children of the wrapped context, which are
+     * already in source order. Values without a position (e.g., the positions properties) come first.
+     */
+    private List<OrderedValue> orderedValues() {
+        forgetIfTreeChanged();
+        List<OrderedValue> memo = orderedValues;
+        if (memo != null) {
+            return memo;
+        }
+        Map<Object, OrderedValue> positioned = new IdentityHashMap<>();
+        List<Object> keys = new ArrayList<>();
+        List<OrderedValue> result = new ArrayList<>();
+        for (EntityAccessPlan.FeatureAccess access : accessPlan.getRelations()) {
+            Relation relation = access.getFeature().asRelation();
             if (relation.isSingle()) {
-                Optional<ParserRuleContext> raw = getSingleRelationRaw(relation);
+                Optional<ParserRuleContext> raw = getSingleRelationRaw(access);
                 if (raw.isPresent()) {
-                    ValueReference vr = new ValueReference(relation, 0);
-                    positions.add(new Pair<>(vr, raw.get().getSourceInterval()));
+                    addOrderedValue(positioned, keys, result, new OrderedValue(new ValueReference(relation, 0), raw.get(), access));
                 }
             } else {
-                List<? extends ParserRuleContext> raw = getMultipleRelationRaw(relation);
+                List<? extends ParserRuleContext> raw = getMultipleRelationRaw(access);
                 for (int i=0;i<raw.size();i++) {
-                    ValueReference vr = new ValueReference(relation, i);
-                    positions.add(new Pair<>(vr, raw.get(i).getSourceInterval()));
+                    addOrderedValue(positioned, keys, result, new OrderedValue(new ValueReference(relation, i), raw.get(i), access));
                 }
             }
         }
-        for (Property property : type().getProperties()) {
+        for (EntityAccessPlan.FeatureAccess access : accessPlan.getProperties()) {
+            Property property = access.getFeature().asProperty();
             if (property.isSingle()) {
-                Optional<Object> raw = getSingleProperty(property);
+                Optional<Object> raw = getSingleProperty(access);
                 if (raw.isPresent()) {
-                    ValueReference vr = new ValueReference(property, 0);
-                    positions.add(new Pair<>(vr, toInterval(raw.get())));
+                    addOrderedValue(positioned, keys, result, new OrderedValue(new ValueReference(property, 0), raw.get(), access));
                 }
             } else {
                 List<Object> raw = getMultipleProperty(property);
                 for (int i=0;i<raw.size();i++) {
-                    ValueReference vr = new ValueReference(property, i);
-                    positions.add(new Pair<>(vr, toInterval(raw.get(i))));
+                    addOrderedValue(positioned, keys, result, new OrderedValue(new ValueReference(property, i), raw.get(i), access));
                 }
             }
         }
-
-        positions.sort((o1, o2) -> {
-            Interval i1 = o1.getValue();
-            Interval i2 = o2.getValue();
-            if (i1 == null) {
-                //if (!AntlrReflectionMapper.POSITIONS_PROPERTIES.contains(o1.getFirst().getFeature())) {
-                //    System.err.println("NO POSITIONS FOR " + o1.getKey());
-                //}
-                return -1;
-                //return -1;
+        for (int i=0;i<wrapped.getChildCount() && !positioned.isEmpty();i++) {
+            ParseTree child = wrapped.getChild(i);
+            emit(positioned, child, result);
+            if (child instanceof TerminalNode) {
+                emit(positioned, ((TerminalNode) child).getSymbol(), result);
             }
-            if (i2 == null) {
-                //if (AntlrReflectionMapper.POSITIONS_PROPERTIES.contains(o2.getFirst().getFeature())) {
-                //    System.err.println("NO POSITIONS FOR " + o2.getKey());
-                //}
-                return -1;
+        }
+        // values which are not among the children of the wrapped context go last, in the order of the features
+        if (!positioned.isEmpty()) {
+            for (Object key : keys) {
+                emit(positioned, key, result);
             }
-            if (i1.startsAfter(i2)) {
-                return 1;
-            } else if (i2.startsAfter(i1)){
-                return -1;
-            } else {
-                return 0;
+        }
+        orderedValues = result;
+        return result;
+    }
+
+    @Override
+    public List<ValueReference> getValuesOrder() {
+        forgetIfTreeChanged();
+        List<ValueReference> memo = valuesOrder;
+        if (memo == null) {
+            memo = Collections.unmodifiableList(orderedValues().stream().map(v -> v.reference).collect(Collectors.toList()));
+            valuesOrder = memo;
+        }
+        return memo;
+    }
+
+    @Override
+    public List<Pair<ValueReference, Object>> getOrderedValues() {
+        forgetIfTreeChanged();
+        List<Pair<ValueReference, Object>> memo = valuesWithElements;
+        if (memo == null) {
+            List<Pair<ValueReference, Object>> values = new ArrayList<>();
+            for (OrderedValue value : orderedValues()) {
+                if (value.access.getKind() == EntityAccessPlan.Kind.RELATION) {
+                    values.add(new Pair<>(value.reference, toElement(value.access, (ParserRuleContext) value.raw)));
+                } else {
+                    values.add(new Pair<>(value.reference, value.raw));
+                }
             }
-        });
-        return positions.stream().map(p -> p.getKey()).collect(Collectors.toList());
+            memo = Collections.unmodifiableList(values);
+            valuesWithElements = memo;
+        }
+        return memo;
     }
 }
@@ -2,6 +2,8 @@ package me.tomassetti.antlrplus.metamodel.mapping;
 
 import me.tomassetti.antlrplus.metamodel.*;
 import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.util.Pair;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.ParserRuleContext;
@@ -14,6 +16,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class AntlrReflectionMapper {
@@ -34,6 +37,7 @@ public class AntlrReflectionMapper {
     private Map<Class<? extends ParserRuleContext>, RuleMappingConfiguration> ruleConfigurations = new HashMap<>();
 
     public void setRuleConfiguration(Class<? extends ParserRuleContext> rule, RuleMappingConfiguration configuration) {
+        checkNotFrozen();
         if (ruleConfigurations.containsKey(rule)) {
             throw new IllegalStateException("No overriding allowed");
         }
@@ -48,6 +52,7 @@ public class AntlrReflectionMapper {
     }
 
     public void setAddPositions(boolean addPositions) {
+        checkNotFrozen();
         this.addPositions = addPositions;
     }
 
@@ -65,6 +70,45 @@ public class AntlrReflectionMapper {
         this.lexerClass = lexerClass;
     }
 
+    private volatile boolean frozen = false;
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The mapper is frozen, its configuration cannot be changed");
+        }
+    }
+
+    /**
+     * Register all the rules of the parser and make the mapper read-only: from now on it can be shared by any number
+     * of threads mapping different trees. Changing the configuration, or asking for rules of another parser, throws
+     * an IllegalStateException. The addPositions field must not be changed either.
+     *
+     * The elements of one tree can also be read by many threads at once, with or without an element cache, but not
+     * while the tree is edited (see EditableDocument). Without a cache two threads may get distinct but equal
+     * elements for the same node.
+     *
+     * The mapper must be published safely to the other threads (e.g., passing it to an ExecutorService).
+     */
+    public AntlrReflectionMapper freeze(Class<? extends Parser> parserClass) {
+        checkNotFrozen();
+        registerWholeParser(parserClass);
+        ruleConfigurations = Collections.unmodifiableMap(ruleConfigurations);
+        classesToEntities = Collections.unmodifiableMap(classesToEntities);
+        transparentEntities = Collections.unmodifiableSet(transparentEntities);
+        toTreatAsToken = Collections.unmodifiableSet(toTreatAsToken);
+        tokensToIgnore = Collections.unmodifiableSet(tokensToIgnore);
+        typesOfTokensToIgnore = Collections.unmodifiableSet(typesOfTokensToIgnore);
+        entitiesNames = Collections.unmodifiableMap(entitiesNames);
+        rulesToDrop = Collections.unmodifiableSet(rulesToDrop);
+        accessPlans = Collections.unmodifiableMap(accessPlans);
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public void setDebug(boolean debug) {
         this.debug = debug;
     }
@@ -86,14 +130,17 @@ public class AntlrReflectionMapper {
     private Map<Class<? extends ParserRuleContext>, String> entitiesNames = new HashMap<>();
 
     public void setEntityName(Class<? extends ParserRuleContext> ruleClass, String entityName) {
+        checkNotFrozen();
         entitiesNames.put(ruleClass, entityName);
     }
 
     public void markAsTransparent(Class<? extends ParserRuleContext> ruleClass) {
+        checkNotFrozen();
         transparentEntities.add(ruleClass);
     }
 
     public void markAsTokenToIgnore(String token) {
+        checkNotFrozen();
         tokensToIgnore.add(token);
         try {
             if (token.equals("EOF")) {
@@ -110,10 +157,24 @@ public class AntlrReflectionMapper {
     }
 
     public void markAsTreatAsToken(Class<? extends ParserRuleContext> ruleClass) {
+        checkNotFrozen();
         toTreatAsToken.add(ruleClass);
     }
 
+    public boolean isTreatedAsToken(Class<? extends ParserRuleContext> ruleClass) {
+        return toTreatAsToken.contains(ruleClass);
+    }
+
     public Entity getEntity(Class<? extends ParserRuleContext> ruleClass) {
+        // the plans are keyed by class: cheaper than looking up the canonical name
+        EntityAccessPlan plan = accessPlans.get(ruleClass);
+        if (plan != null) {
+            return plan.getEntity();
+        }
+        Entity entity = classesToEntities.get(ruleClass.getCanonicalName());
+        if (entity != null) {
+            return entity;
+        }
         if (transparentEntities.contains(ruleClass)) {
             throw new IllegalArgumentException("Transparent rule, no corresponding Entity can be generated for "+ruleClass);
         }
@@ -123,9 +184,10 @@ public class AntlrReflectionMapper {
         if (rulesToDrop.contains(ruleClass)) {
             throw new IllegalArgumentException("Rule to be dropped, no corresponding Entity can be generated for "+ruleClass);
         }
-        if (!classesToEntities.containsKey(ruleClass.getCanonicalName())) {
-            registerEntity(ruleClass);
+        if (frozen) {
+            throw new IllegalStateException("The mapper is frozen and " + ruleClass + " has not been registered");
         }
+        registerEntity(ruleClass);
         return classesToEntities.get(ruleClass.getCanonicalName());
     }
 
@@ -145,6 +207,7 @@ public class AntlrReflectionMapper {
     // Visible for testing
     static List<Field> fieldsOfType(Class<? extends ParserRuleContext> ruleClass, Class<? extends ParserRuleContext> childType) {
         List<Field> result = Arrays.stream(ruleClass.getDeclaredFields()).filter(f -> (f.getType().equals(childType)) || (isListOf(f.getGenericType(), childType)))
+                .sorted(Comparator.comparing(Field::getName))
                 .collect(Collectors.toList());
         return result;
     }
@@ -187,6 +250,7 @@ public class AntlrReflectionMapper {
     private Set<Class<? extends ParserRuleContext>> rulesToDrop = new HashSet<>();
 
     public void addToRulesToDrop(Class<? extends ParserRuleContext> ruleClass) {
+        checkNotFrozen();
         rulesToDrop.add(ruleClass);
     }
 
@@ -237,16 +301,21 @@ public class AntlrReflectionMapper {
         }
 
         if (this.addPositions) {
-            entity.addProperty(START_LINE);
-            entity.addProperty(END_LINE);
-            entity.addProperty(START_COLUMN);
-            entity.addProperty(END_COLUMN);
+            // each entity gets its own copies: a feature has an ordinal within a single entity
+            for (Property position : Arrays.asList(START_LINE, END_LINE, START_COLUMN, END_COLUMN)) {
+                entity.addProperty(new Property(position.getName(), position.getDatatype(), position.getMultiplicity()));
+            }
         }
 
         // store immediately: so we can support recursive references
         classesToEntities.put(ruleClass.getCanonicalName(), entity);
+        Map<Feature, FeatureOrigin> origins = new IdentityHashMap<>();
 
-        for (Method method : ruleClass.getDeclaredMethods()) {
+        // the order of the declared members is unspecified: sorting them keeps the ordinals of the features the same
+        // from one run to the next, which the generated elements rely on
+        Method[] methods = ruleClass.getDeclaredMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::getName));
+        for (Method method : methods) {
             if (!methodNamesToIgnore.contains(method.getName()) && method.getParameterCount() == 0) {
                 debugMsg("Considering method "+method.getName());
                 if (method.getReturnType().getCanonicalName().equals(List.class.getCanonicalName())) {
@@ -260,7 +329,7 @@ public class AntlrReflectionMapper {
                             Property property = new Property(ruleConfiguration.fromReflectionName(method.getName()), Property.Datatype.STRING, Multiplicity.MANY);
                             if (ruleConfiguration.canAdd(property)) {
                                 debugMsg("   Adding property " + property);
-                                entity.addProperty(property);
+                                addProperty(entity, origins, property, FeatureAccessor.forMethod(ruleClass, method), TerminalNode.class);
                             }
                         }
                     } else {
@@ -273,7 +342,7 @@ public class AntlrReflectionMapper {
                                 Property property = new Property(ruleConfiguration.fromReflectionName(method.getName()), Property.Datatype.STRING, Multiplicity.MANY);
                                 if (ruleConfiguration.canAdd(property)) {
                                     debugMsg("    Adding property " + property);
-                                    entity.addProperty(property);
+                                    addProperty(entity, origins, property, FeatureAccessor.forMethod(ruleClass, method), childType);
                                 }
                             } else {
                                 if (!rulesToDrop.contains(effectiveChildType)) {
@@ -284,7 +353,7 @@ public class AntlrReflectionMapper {
                                             entity,
                                             target);
                                     debugMsg("    Adding relation " + relation);
-                                    entity.addRelation(relation);
+                                    addRelation(entity, origins, relation, FeatureAccessor.forMethod(ruleClass, method), childType);
                                 }
                             }
                         } else {
@@ -295,7 +364,7 @@ public class AntlrReflectionMapper {
                                     Property property = new Property(ruleConfiguration.fromReflectionName(f.getName()), Property.Datatype.STRING, f.getType().getCanonicalName().equals(List.class.getCanonicalName()) ? Multiplicity.MANY : Multiplicity.ONE);
                                     if (ruleConfiguration.canAdd(property)) {
                                         debugMsg("    Adding property " + property + " from field " + f);
-                                        entity.addProperty(property);
+                                        addProperty(entity, origins, property, FeatureAccessor.forField(ruleClass, f), childType);
                                     }
                                 } else {
                                     if (!rulesToDrop.contains(effectiveChildType)) {
@@ -306,7 +375,7 @@ public class AntlrReflectionMapper {
                                                 entity,
                                                 target);
                                         debugMsg("    Adding relation " + relation + " from field " + f);
-                                        entity.addRelation(relation);
+                                        addRelation(entity, origins, relation, FeatureAccessor.forField(ruleClass, f), childType);
                                     }
                                 }
                             }
@@ -319,7 +388,7 @@ public class AntlrReflectionMapper {
                         Property property = new Property(ruleConfiguration.fromReflectionName(method.getName()), Property.Datatype.STRING, Multiplicity.ONE);
                         if (ruleConfiguration.canAdd(property)) {
                             debugMsg("   Adding property " + property);
-                            entity.addProperty(property);
+                            addProperty(entity, origins, property, FeatureAccessor.forMethod(ruleClass, method), TerminalNode.class);
                         }
                     }
                 } else {
@@ -331,7 +400,7 @@ public class AntlrReflectionMapper {
                             Property property = new Property(ruleConfiguration.fromReflectionName(method.getName()), Property.Datatype.STRING, Multiplicity.ONE);
                             if (ruleConfiguration.canAdd(property)) {
                                 debugMsg("   Adding property " + property);
-                                entity.addProperty(property);
+                                addProperty(entity, origins, property, FeatureAccessor.forMethod(ruleClass, method), childType);
                             }
                         } else {
                             if (!rulesToDrop.contains(effectiveChildType)) {
@@ -342,7 +411,7 @@ public class AntlrReflectionMapper {
                                         entity,
                                         target);
                                 debugMsg("   Adding relation " + relation);
-                                entity.addRelation(relation);
+                                addRelation(entity, origins, relation, FeatureAccessor.forMethod(ruleClass, method), childType);
                             }
                         }
                     } else {
@@ -352,7 +421,7 @@ public class AntlrReflectionMapper {
                                 Property property = new Property(ruleConfiguration.fromReflectionName(f.getName()), Property.Datatype.STRING, f.getType().getCanonicalName().equals(List.class.getCanonicalName()) ? Multiplicity.MANY : Multiplicity.ONE);
                                 if (ruleConfiguration.canAdd(property)) {
                                     debugMsg("   Adding property " + property + " from field " + f);
-                                    entity.addProperty(property);
+                                    addProperty(entity, origins, property, FeatureAccessor.forField(ruleClass, f), childType);
                                 }
                             } else {
                                 if (!rulesToDrop.contains(effectiveChildType)) {
@@ -363,7 +432,7 @@ public class AntlrReflectionMapper {
                                             entity,
                                             target);
                                     debugMsg("   Adding relation " + relation + " from field " + f);
-                                    entity.addRelation(relation);
+                                    addRelation(entity, origins, relation, FeatureAccessor.forField(ruleClass, f), childType);
                                 }
                             }
                         }
@@ -380,38 +449,38 @@ public class AntlrReflectionMapper {
                     if (elementType.getCanonicalName().equals(TerminalNode.class.getCanonicalName()) || elementType.getCanonicalName().equals(Token.class.getCanonicalName())) {
                         Property property = new Property(ruleConfiguration.fromReflectionName(fieldName), Property.Datatype.STRING, Multiplicity.MANY);
                         debugMsg("Adding property because of field " + property);
-                        entity.addProperty(property);
+                        addProperty(entity, origins, property, FeatureAccessor.forField(ruleClass, field), elementType);
                     } else {
                         Class<? extends ParserRuleContext> effectiveChildType = skipTransparentClasses(elementType);
                         if (toTreatAsToken.contains(effectiveChildType)) {
                             Property property = new Property(ruleConfiguration.fromReflectionName(fieldName), Property.Datatype.STRING, Multiplicity.MANY);
                             if (ruleConfiguration.canAdd(property)) {
                                 debugMsg("Adding property " + property + " from field " + field);
-                                entity.addProperty(property);
+                                addProperty(entity, origins, property, FeatureAccessor.forField(ruleClass, field), elementType);
                             }
                         } else {
                             Relation relation = new Relation(fieldName, Relation.Type.CONTAINMENT, Multiplicity.MANY, entity, getEntity(effectiveChildType));
                             debugMsg("Adding relation because of field " + relation);
-                            entity.addRelation(relation);
+                            addRelation(entity, origins, relation, FeatureAccessor.forField(ruleClass, field), elementType);
                         }
                     }
                 } else if (field.getType().getCanonicalName().equals(TerminalNode.class.getCanonicalName()) || field.getType().getCanonicalName().equals(Token.class.getCanonicalName())) {
                     Property property = new Property(fieldName, Property.Datatype.STRING, Multiplicity.ONE);
                     debugMsg("Adding property because of field " + property);
-                    entity.addProperty(property);
+                    addProperty(entity, origins, property, FeatureAccessor.forField(ruleClass, field), field.getType());
                 } else {
                     Class<? extends ParserRuleContext> effectiveChildType = skipTransparentClasses((Class<? extends ParserRuleContext>) field.getType());
                     if (toTreatAsToken.contains(effectiveChildType)) {
                         Property property = new Property(ruleConfiguration.fromReflectionName(fieldName), Property.Datatype.STRING, Multiplicity.ONE);
                         if (ruleConfiguration.canAdd(property)) {
                             debugMsg("Adding property " + property + " from field " + field);
-                            entity.addProperty(property);
+                            addProperty(entity, origins, property, FeatureAccessor.forField(ruleClass, field), field.getType());
                         }
                     } else {
                         if (!rulesToDrop.contains(effectiveChildType)) {
                             Relation relation = new Relation(ruleConfiguration.fromReflectionName(fieldName), Relation.Type.CONTAINMENT, Multiplicity.ONE, entity, getEntity(effectiveChildType));
                             debugMsg("Adding relation because of field " + relation);
-                            entity.addRelation(relation);
+                            addRelation(entity, origins, relation, FeatureAccessor.forField(ruleClass, field), field.getType());
                         }
                     }
                 }
@@ -422,6 +491,79 @@ public class AntlrReflectionMapper {
 
         debugMsg("(End considering class "+ruleClass.getName()+")");
         postProcessEntity(entity);
+        entity.freeze();
+        accessPlans.put(ruleClass, buildAccessPlan(ruleClass, entity, ruleConfiguration, origins));
+    }
+
+    private static class FeatureOrigin {
+        private FeatureAccessor accessor;
+        private Class<?> valueType;
+
+        FeatureOrigin(FeatureAccessor accessor, Class<?> valueType) {
+            this.accessor = accessor;
+            this.valueType = valueType;
+        }
+    }
+
+    private void addProperty(Entity entity, Map<Feature, FeatureOrigin> origins, Property property, FeatureAccessor accessor, Class<?> valueType) {
+        entity.addProperty(property);
+        origins.put(property, new FeatureOrigin(accessor, valueType));
+    }
+
+    private void addRelation(Entity entity, Map<Feature, FeatureOrigin> origins, Relation relation, FeatureAccessor accessor, Class<?> valueType) {
+        entity.addRelation(relation);
+        origins.put(relation, new FeatureOrigin(accessor, valueType));
+    }
+
+    private boolean anyAssignableTo(Set<Class<? extends ParserRuleContext>> ruleClasses, Class<?> valueType) {
+        if (valueType == null) {
+            return !ruleClasses.isEmpty();
+        }
+        return ruleClasses.stream().anyMatch(valueType::isAssignableFrom);
+    }
+
+    private EntityAccessPlan buildAccessPlan(Class<? extends ParserRuleContext> ruleClass, Entity entity,
+                                             RuleMappingConfiguration ruleConfiguration, Map<Feature, FeatureOrigin> origins) {
+        List<EntityAccessPlan.FeatureAccess> properties = new ArrayList<>();
+        for (Property property : entity.getProperties()) {
+            if (POSITIONS_PROPERTIES.contains(property) && !origins.containsKey(property)) {
+                properties.add(new EntityAccessPlan.FeatureAccess(property, EntityAccessPlan.Kind.POSITION,
+                        property.getName(), null, Integer.class, false, false));
+            } else {
+                FeatureOrigin origin = origins.get(property);
+                properties.add(new EntityAccessPlan.FeatureAccess(property, EntityAccessPlan.Kind.PROPERTY,
+                        origin == null ? ruleConfiguration.toReflectionName(property.getName()) : origin.accessor.getRawName(),
+                        origin == null ? null : origin.accessor,
+                        origin == null ? null : origin.valueType,
+                        false, false));
+            }
+        }
+        List<EntityAccessPlan.FeatureAccess> relations = new ArrayList<>();
+        for (Relation relation : entity.getRelations()) {
+            FeatureOrigin origin = origins.get(relation);
+            Class<?> valueType = origin == null ? null : origin.valueType;
+            relations.add(new EntityAccessPlan.FeatureAccess(relation, EntityAccessPlan.Kind.RELATION,
+                    origin == null ? ruleConfiguration.toReflectionName(relation.getName()) : origin.accessor.getRawName(),
+                    origin == null ? null : origin.accessor,
+                    valueType,
+                    anyAssignableTo(rulesToDrop, valueType),
+                    anyAssignableTo(transparentEntities, valueType)));
+        }
+        return new EntityAccessPlan(entity, ruleClass, properties, relations);
+    }
+
+    private Map<Class<? extends ParserRuleContext>, EntityAccessPlan> accessPlans = new HashMap<>();
+
+    /**
+     * The access plan for the given rule class, registering the corresponding entity if needed.
+     */
+    public EntityAccessPlan getAccessPlan(Class<? extends ParserRuleContext> ruleClass) {
+        EntityAccessPlan plan = accessPlans.get(ruleClass);
+        if (plan != null) {
+            return plan;
+        }
+        getEntity(ruleClass);
+        return accessPlans.get(ruleClass);
     }
 
     private Class<? extends ParserRuleContext> getOnlySingleRelation(Class<? extends ParserRuleContext> ruleClass) {
@@ -447,6 +589,40 @@ public class AntlrReflectionMapper {
         }
     }
 
+    // concurrent: accessors are resolved lazily also once the mapper is frozen
+    private Map<Class<? extends ParserRuleContext>, Map<Pair<String, Boolean>, FeatureAccessor>> accessors = new ConcurrentHashMap<>();
+
+    /**
+     * Accessor for the given raw (not renamed) feature of a rule class. It is resolved on the first request and then
+     * cached, so that reading a feature does not involve reflective lookups. A name can have both a field and a
+     * method: the two orders of lookup are cached apart.
+     */
+    public FeatureAccessor getAccessor(Class<? extends ParserRuleContext> ruleClass, String rawName, boolean fieldsFirst) {
+        Map<Pair<String, Boolean>, FeatureAccessor> accessorsOfClass = accessors.computeIfAbsent(ruleClass, c -> new ConcurrentHashMap<>());
+        Pair<String, Boolean> key = new Pair<>(rawName, fieldsFirst);
+        FeatureAccessor accessor = accessorsOfClass.get(key);
+        if (accessor == null) {
+            accessor = FeatureAccessor.resolve(ruleClass, rawName, fieldsFirst).orElseThrow(() ->
+                    new IllegalArgumentException("No field or method named " + rawName + " in " + ruleClass));
+            FeatureAccessor previous = accessorsOfClass.putIfAbsent(key, accessor);
+            if (previous != null) {
+                accessor = previous;
+            }
+        }
+        return accessor;
+    }
+
+    private Map<CharStream, LineIndex> lineIndexes = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Line index of the given input, built on the first request and again when the content of an editable input
+     * changes. Inputs are held weakly, in a WeakHashMap: they are compared with equals, which the CharStreams of
+     * ANTLR and EditableCharStream do not override, so it amounts to identity.
+     */
+    public LineIndex getLineIndex(CharStream stream) {
+        return lineIndexes.compute(stream, (s, index) -> index != null && index.isFor(s) ? index : LineIndex.of(s));
+    }
+
     public <R extends ParserRuleContext> Grammar getGrammar(String name, Class<R> rootRuleClass) {
         throw new UnsupportedOperationException();
     }
@@ -471,11 +647,60 @@ public class AntlrReflectionMapper {
         return children;
     }
 
+    private ElementCache.Retention elementCacheRetention = null;
+    private ElementCache.Statistics elementCacheStatistics = new ElementCache.Statistics();
+
+    /**
+     * From now on each tree obtained through toRootElement has its own ElementCache, so that every node of the parse
+     * tree is wrapped by exactly one element.
+     */
+    public void enableElementCache(ElementCache.Retention retention) {
+        checkNotFrozen();
+        this.elementCacheRetention = retention;
+    }
+
+    public void disableElementCache() {
+        checkNotFrozen();
+        this.elementCacheRetention = null;
+    }
+
+    /**
+     * Hits and misses of all the element caches used by this mapper.
+     */
+    public ElementCache.Statistics getElementCacheStatistics() {
+        return elementCacheStatistics;
+    }
+
+    public ElementCache createElementCache(ElementCache.Retention retention) {
+        return new ElementCache(retention, elementCacheStatistics);
+    }
+
     public OrderedElement toRootElement(ParserRuleContext astNode) {
+        if (elementCacheRetention != null) {
+            return toRootElement(astNode, createElementCache(elementCacheRetention));
+        }
         return toElement(astNode, Optional.empty());
     }
 
-    public OrderedElement toElement(ParserRuleContext astNode, Optional<OrderedElement> parent) {
+    /**
+     * Map the tree using the given cache: calling it again with the same root and cache returns the same element.
+     */
+    public OrderedElement toRootElement(ParserRuleContext astNode, ElementCache cache) {
+        ParserRuleContext node = skipTransparentNodes(astNode);
+        OrderedElement element = cache.get(node);
+        if (element == null) {
+            element = instantiateElement(node, Optional.empty());
+            if (element instanceof AntlrReflectionElement) {
+                ((AntlrReflectionElement) element).setElementCache(cache);
+            } else if (element instanceof GeneratedElement) {
+                ((GeneratedElement) element).setElementCache(cache);
+            }
+            element = cache.putIfAbsent(node, element);
+        }
+        return element;
+    }
+
+    private ParserRuleContext skipTransparentNodes(ParserRuleContext astNode) {
         if (transparentEntities.contains(astNode.getClass())) {
             List<ParseTree> children = relevantChildren(astNode);
             if (children.size() != 1) {
@@ -484,14 +709,55 @@ public class AntlrReflectionMapper {
             if (!(children.get(0) instanceof ParserRuleContext)) {
                 throw new IllegalArgumentException("A transparent rule only child is expected to be a non-terminal: " + astNode.getClass());
             }
-            return toElement((ParserRuleContext) children.get(0), parent);
+            return skipTransparentNodes((ParserRuleContext) children.get(0));
         }
-        return instantiateElement(astNode, parent);
+        return astNode;
     }
 
-    protected OrderedElement instantiateElement(ParserRuleContext astNode, Optional<OrderedElement> parent) {
-        AntlrReflectionElement element = new AntlrReflectionElement(this, astNode, getEntity(astNode.getClass()), parent);
-        element.setFeaturesNameMapping(ruleConfigurations.get(astNode.getClass()).getFeaturessRenamedReversed());
+    public OrderedElement toElement(ParserRuleContext astNode, Optional<OrderedElement> parent) {
+        return toElementSkippingTransparency(skipTransparentNodes(astNode), parent);
+    }
+
+    /**
+     * Element for a node which is known not to be transparent: reuse the one in the cache of the parent, if any.
+     */
+    OrderedElement toElementSkippingTransparency(ParserRuleContext astNode, Optional<OrderedElement> parent) {
+        ElementCache cache = null;
+        if (parent.isPresent() && parent.get() instanceof AntlrReflectionElement) {
+            cache = ((AntlrReflectionElement) parent.get()).getElementCache();
+        } else if (parent.isPresent() && parent.get() instanceof GeneratedElement) {
+            cache = ((GeneratedElement) parent.get()).getElementCache();
+        }
+        if (cache == null) {
+            return instantiateElement(astNode, parent);
+        }
+        OrderedElement element = cache.get(astNode);
+        if (element == null) {
+            // two threads may create an element for the same node: both return the one cached first
+            element = cache.putIfAbsent(astNode, instantiateElement(astNode, parent));
+        }
         return element;
     }
+
+    private ElementFactory elementFactory = null;
+
+    /**
+     * Use the given factory (typically one emitted by the ElementClassGenerator) to create the elements.
+     * Nodes not supported by the factory are wrapped by AntlrReflectionElements.
+     */
+    public void setElementFactory(ElementFactory elementFactory) {
+        checkNotFrozen();
+        this.elementFactory = elementFactory;
+    }
+
+    protected OrderedElement instantiateElement(ParserRuleContext astNode, Optional<OrderedElement> parent) {
+        Entity entity = getEntity(astNode.getClass());
+        if (elementFactory != null) {
+            OrderedElement element = elementFactory.create(this, astNode, entity, parent);
+            if (element != null) {
+                return element;
+            }
+        }
+        return new AntlrReflectionElement(this, astNode, entity, parent);
+    }
 }
@@ -0,0 +1,193 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.model.OrderedElement;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Map from the nodes of one parse tree to the corresponding elements, so that each node is wrapped by
+ * exactly one element. Nodes are compared by identity.
+ *
+ * With the WEAK retention elements which are not referred anymore can be collected: they are re-created
+ * when needed.
+ *
+ * A cache can be used by many threads reading the same tree at once.
+ */
+public class ElementCache {
+
+    public enum Retention {
+        STRONG,
+        WEAK
+    }
+
+    /**
+     * Hits and misses of the element caches, it can be shared by many caches.
+     */
+    public static class Statistics {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        /**
+         * Number of elements which have not been allocated thanks to the cache, over the total number of requests.
+         */
+        public double getHitRatio() {
+            long requests = getHits() + getMisses();
+            return requests == 0 ? 0.0 : ((double) getHits()) / requests;
+        }
+
+        public void reset() {
+            hits.reset();
+            misses.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "ElementCache.Statistics{" +
+                    "hits=" + getHits() +
+                    ", misses=" + getMisses() +
+                    '}';
+        }
+    }
+
+    private static class ElementReference extends WeakReference<OrderedElement> {
+        private final ParserRuleContext node;
+
+        ElementReference(ParserRuleContext node, OrderedElement element, ReferenceQueue<OrderedElement> queue) {
+            super(element, queue);
+            this.node = node;
+        }
+    }
+
+    private final Retention retention;
+    private final Statistics statistics;
+    private final Statistics globalStatistics;
+    private final Map<ParserRuleContext, Object> elements = new IdentityHashMap<>();
+    private final ReferenceQueue<OrderedElement> collected = new ReferenceQueue<>();
+    private volatile int generation = 0;
+
+    public ElementCache(Retention retention) {
+        this(retention, null);
+    }
+
+    ElementCache(Retention retention, Statistics globalStatistics) {
+        this.retention = retention;
+        this.statistics = new Statistics();
+        this.globalStatistics = globalStatistics;
+    }
+
+    public Retention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Hits and misses of this cache only.
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    // called holding the lock
+    private void expungeCollected() {
+        ElementReference reference;
+        while ((reference = (ElementReference) collected.poll()) != null) {
+            if (elements.get(reference.node) == reference) {
+                elements.remove(reference.node);
+            }
+        }
+    }
+
+    private void count(LongAdder local, boolean hit) {
+        local.increment();
+        if (globalStatistics != null) {
+            (hit ? globalStatistics.hits : globalStatistics.misses).increment();
+        }
+    }
+
+    /**
+     * The element for the given node, or null if it has not been created yet (or it has been collected).
+     */
+    public OrderedElement get(ParserRuleContext node) {
+        OrderedElement element = cached(node);
+        if (element == null) {
+            count(statistics.misses, false);
+        } else {
+            count(statistics.hits, true);
+        }
+        return element;
+    }
+
+    private synchronized OrderedElement cached(ParserRuleContext node) {
+        Object value = elements.get(node);
+        if (value instanceof ElementReference) {
+            return ((ElementReference) value).get();
+        }
+        return (OrderedElement) value;
+    }
+
+    public synchronized void put(ParserRuleContext node, OrderedElement element) {
+        if (retention == Retention.WEAK) {
+            expungeCollected();
+            elements.put(node, new ElementReference(node, element, collected));
+        } else {
+            elements.put(node, element);
+        }
+    }
+
+    /**
+     * Put the element unless another thread has put one for the same node meanwhile: return the one in the cache.
+     */
+    public synchronized OrderedElement putIfAbsent(ParserRuleContext node, OrderedElement element) {
+        OrderedElement previous = cached(node);
+        if (previous != null) {
+            return previous;
+        }
+        put(node, element);
+        return element;
+    }
+
+    /**
+     * Forget the element for the given node: a new one will be created the next time it is requested.
+     */
+    public synchronized void invalidate(ParserRuleContext node) {
+        elements.remove(node);
+    }
+
+    /**
+     * The tree has been changed in place (see EditableDocument): the cached elements are kept, but what they
+     * memoized about their nodes is computed again. Elements of removed nodes should be invalidated.
+     */
+    public void markTreeChanged() {
+        generation++;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    public synchronized int size() {
+        expungeCollected();
+        return elements.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ElementCache{" +
+                "retention=" + retention +
+                ", size=" + size() +
+                ", statistics=" + statistics +
+                '}';
+    }
+}
@@ -0,0 +1,31 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+
+import java.util.Optional;
+
+/**
+ * Receives the elements of a document one event at a time, in source order, from a StreamingElementMapper.
+ *
+ * Each element is opened by startElement and closed by endElement: in between come its properties and its children.
+ * Lines are 1 based and columns 0 based, as for the position properties of the elements.
+ */
+public interface ElementEventListener {
+
+    /**
+     * The containment is the relation of the parent element holding this one, it is empty for the root.
+     */
+    void startElement(Entity entity, Optional<Relation> containment, int startLine, int startColumn);
+
+    /**
+     * A single value of the property: properties with many values get an event for each of them.
+     */
+    void property(Property property, String value);
+
+    /**
+     * The end is the line and the column following the last char of the element.
+     */
+    void endElement(Entity entity, int endLine, int endColumn);
+}
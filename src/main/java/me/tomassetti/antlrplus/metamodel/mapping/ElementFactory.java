@@ -0,0 +1,21 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.util.Optional;
+
+/**
+ * Creates the element wrapping a node, used by AntlrReflectionMapper.instantiateElement.
+ * The factories emitted by the ElementClassGenerator create elements reading the contexts without reflection.
+ */
+@FunctionalInterface
+public interface ElementFactory {
+
+    /**
+     * Return null if this factory does not support the class of the given node.
+     */
+    OrderedElement create(AntlrReflectionMapper reflectionMapper, ParserRuleContext astNode, Entity entity, Optional<OrderedElement> parent);
+
+}
@@ -0,0 +1,218 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Multiplicity;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.util.*;
+
+/**
+ * Everything needed to read the features of an Entity from the corresponding rule context.
+ * It is computed once by the AntlrReflectionMapper, when the entity is registered, and it is immutable.
+ */
+public final class EntityAccessPlan {
+
+    public enum Kind {
+        POSITION,
+        PROPERTY,
+        RELATION
+    }
+
+    public static final class FeatureAccess {
+        private final Feature feature;
+        private final Kind kind;
+        private final String rawName;
+        private final FeatureAccessor accessor;
+        private final Class<?> valueType;
+        private final boolean mayBeDropped;
+        private final boolean mayBeTransparent;
+
+        FeatureAccess(Feature feature, Kind kind, String rawName, FeatureAccessor accessor, Class<?> valueType,
+                      boolean mayBeDropped, boolean mayBeTransparent) {
+            this.feature = feature;
+            this.kind = kind;
+            this.rawName = rawName;
+            this.accessor = accessor;
+            this.valueType = valueType;
+            this.mayBeDropped = mayBeDropped;
+            this.mayBeTransparent = mayBeTransparent;
+        }
+
+        public Feature getFeature() {
+            return feature;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Name of the field or method of the rule context, before any renaming.
+         */
+        public String getRawName() {
+            return rawName;
+        }
+
+        /**
+         * Empty for positions and for features which have been added without a known source (e.g., in
+         * AntlrReflectionMapper.postProcessEntity): those are resolved by name when read.
+         */
+        public Optional<FeatureAccessor> getAccessor() {
+            return Optional.ofNullable(accessor);
+        }
+
+        public boolean isFromField() {
+            return accessor != null && accessor.isFromField();
+        }
+
+        public Multiplicity getMultiplicity() {
+            switch (kind) {
+                case RELATION:
+                    return feature.asRelation().getMultiplicity();
+                default:
+                    return feature.asProperty().getMultiplicity();
+            }
+        }
+
+        public boolean isSingle() {
+            return getMultiplicity() == Multiplicity.ONE;
+        }
+
+        /**
+         * Declared type of the value (or of the elements of the list), when known.
+         */
+        public Optional<Class<?>> getValueType() {
+            return Optional.ofNullable(valueType);
+        }
+
+        /**
+         * Can some of the values belong to a rule to be dropped?
+         */
+        public boolean isMayBeDropped() {
+            return mayBeDropped;
+        }
+
+        /**
+         * Can some of the values belong to a transparent rule, to be replaced by its only child?
+         */
+        public boolean isMayBeTransparent() {
+            return mayBeTransparent;
+        }
+
+        @Override
+        public String toString() {
+            return "FeatureAccess{" +
+                    "feature=" + feature.getName() +
+                    ", kind=" + kind +
+                    ", rawName='" + rawName + '\'' +
+                    ", accessor=" + accessor +
+                    ", mayBeDropped=" + mayBeDropped +
+                    ", mayBeTransparent=" + mayBeTransparent +
+                    '}';
+        }
+    }
+
+    private final Entity entity;
+    private final Class<? extends ParserRuleContext> ruleClass;
+    private final List<FeatureAccess> properties;
+    private final List<FeatureAccess> relations;
+    // indexed by the ordinals of the features
+    private final FeatureAccess[] byOrdinal;
+    private final Map<String, FeatureAccess> propertiesByName = new HashMap<>();
+    private final Map<String, FeatureAccess> relationsByName = new HashMap<>();
+
+    EntityAccessPlan(Entity entity, Class<? extends ParserRuleContext> ruleClass, List<FeatureAccess> properties, List<FeatureAccess> relations) {
+        this.entity = entity;
+        this.ruleClass = ruleClass;
+        this.properties = Collections.unmodifiableList(new ArrayList<>(properties));
+        this.relations = Collections.unmodifiableList(new ArrayList<>(relations));
+        this.byOrdinal = new FeatureAccess[entity.getFeatures().size()];
+        for (FeatureAccess access : properties) {
+            index(access);
+            propertiesByName.put(access.getFeature().getName(), access);
+        }
+        for (FeatureAccess access : relations) {
+            index(access);
+            relationsByName.put(access.getFeature().getName(), access);
+        }
+    }
+
+    private void index(FeatureAccess access) {
+        int ordinal = access.getFeature().getOrdinal();
+        if (ordinal == Feature.NO_ORDINAL || ordinal >= byOrdinal.length) {
+            throw new IllegalArgumentException("The entity " + entity.getName() + " must be frozen before building its access plan");
+        }
+        byOrdinal[ordinal] = access;
+    }
+
+    private FeatureAccess byOrdinal(Feature feature) {
+        int ordinal = feature.getOrdinal();
+        if (ordinal >= 0 && ordinal < byOrdinal.length && byOrdinal[ordinal] != null && byOrdinal[ordinal].getFeature() == feature) {
+            return byOrdinal[ordinal];
+        }
+        return null;
+    }
+
+    public Entity getEntity() {
+        return entity;
+    }
+
+    public Class<? extends ParserRuleContext> getRuleClass() {
+        return ruleClass;
+    }
+
+    /**
+     * Access to the properties, in the same order as Entity.getProperties.
+     */
+    public List<FeatureAccess> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Access to the relations, in the same order as Entity.getRelations.
+     */
+    public List<FeatureAccess> getRelations() {
+        return relations;
+    }
+
+    /**
+     * Access to the feature with the given ordinal.
+     */
+    public FeatureAccess get(int ordinal) {
+        return byOrdinal[ordinal];
+    }
+
+    public Optional<FeatureAccess> getProperty(String name) {
+        return Optional.ofNullable(propertiesByName.get(name));
+    }
+
+    public Optional<FeatureAccess> find(Property property) {
+        FeatureAccess access = byOrdinal(property);
+        if (access == null) {
+            access = propertiesByName.get(property.getName());
+        }
+        return Optional.ofNullable(access);
+    }
+
+    public Optional<FeatureAccess> find(Relation relation) {
+        FeatureAccess access = byOrdinal(relation);
+        if (access == null) {
+            access = relationsByName.get(relation.getName());
+        }
+        return Optional.ofNullable(access);
+    }
+
+    public FeatureAccess get(Property property) {
+        return find(property).orElseThrow(() ->
+                new IllegalArgumentException("Unknown property " + property.getName() + " for entity " + entity.getName()));
+    }
+
+    public FeatureAccess get(Relation relation) {
+        return find(relation).orElseThrow(() ->
+                new IllegalArgumentException("Unknown relation " + relation.getName() + " for entity " + entity.getName()));
+    }
+
+}
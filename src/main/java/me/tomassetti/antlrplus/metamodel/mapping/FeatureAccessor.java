@@ -0,0 +1,133 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Getter for a single feature of a rule class, resolved once.
+ * It reads either a public field (e.g., a label) or a public no-args method of the context: methods are bound through
+ * LambdaMetafactory, fields through a MethodHandle.
+ */
+public final class FeatureAccessor {
+
+    public enum Source {
+        FIELD,
+        METHOD
+    }
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, ParserRuleContext.class);
+
+    private final Class<? extends ParserRuleContext> ruleClass;
+    private final String rawName;
+    private final Source source;
+    private final MethodHandle handle;
+    private final Function<Object, Object> getter;
+
+    private FeatureAccessor(Class<? extends ParserRuleContext> ruleClass, String rawName, Source source, MethodHandle handle,
+                            Function<Object, Object> getter) {
+        this.ruleClass = ruleClass;
+        this.rawName = rawName;
+        this.source = source;
+        this.handle = handle.asType(GETTER_TYPE);
+        this.getter = getter;
+    }
+
+    public static FeatureAccessor forMethod(Class<? extends ParserRuleContext> ruleClass, Method method) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle;
+        try {
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot access method " + method + " of " + ruleClass, e);
+        }
+        Function<Object, Object> getter;
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class), handle,
+                    MethodType.methodType(method.getReturnType(), method.getDeclaringClass()));
+            getter = (Function<Object, Object>) site.getTarget().invoke();
+        } catch (Throwable t) {
+            // the rule class could be not visible from here (e.g., another class loader): keep the MethodHandle
+            getter = null;
+        }
+        return new FeatureAccessor(ruleClass, method.getName(), Source.METHOD, handle, getter);
+    }
+
+    public static FeatureAccessor forField(Class<? extends ParserRuleContext> ruleClass, Field field) {
+        try {
+            return new FeatureAccessor(ruleClass, field.getName(), Source.FIELD, MethodHandles.publicLookup().unreflectGetter(field), null);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot access field " + field + " of " + ruleClass, e);
+        }
+    }
+
+    /**
+     * Look for a public field or a public no-args method with the given name.
+     */
+    public static Optional<FeatureAccessor> resolve(Class<? extends ParserRuleContext> ruleClass, String rawName, boolean fieldsFirst) {
+        Optional<FeatureAccessor> field = resolveField(ruleClass, rawName);
+        if (fieldsFirst && field.isPresent()) {
+            return field;
+        }
+        try {
+            return Optional.of(forMethod(ruleClass, ruleClass.getMethod(rawName)));
+        } catch (NoSuchMethodException e) {
+            return field;
+        }
+    }
+
+    private static Optional<FeatureAccessor> resolveField(Class<? extends ParserRuleContext> ruleClass, String rawName) {
+        try {
+            return Optional.of(forField(ruleClass, ruleClass.getField(rawName)));
+        } catch (NoSuchFieldException e) {
+            return Optional.empty();
+        }
+    }
+
+    public Object get(ParserRuleContext context) {
+        if (getter != null) {
+            return getter.apply(context);
+        }
+        try {
+            return (Object) handle.invokeExact(context);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Issue reading " + rawName + " from " + ruleClass, t);
+        }
+    }
+
+    public Class<? extends ParserRuleContext> getRuleClass() {
+        return ruleClass;
+    }
+
+    public String getRawName() {
+        return rawName;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public boolean isFromField() {
+        return source == Source.FIELD;
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureAccessor{" +
+                "ruleClass=" + ruleClass.getSimpleName() +
+                ", rawName='" + rawName + '\'' +
+                ", source=" + source +
+                '}';
+    }
+}
@@ -0,0 +1,425 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.model.AbstractOrderedElement;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.util.Pair;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * Base of the element classes emitted by the ElementClassGenerator. A generated class reads its rule context through
+ * field accesses and method calls, keeps each value in a typed field and returns the values by the ordinal of their
+ * feature: no reflection and no lookup by name is involved.
+ *
+ * The values are loaded the first time one of them is requested. Relation values are elements, property values are
+ * the text of the tokens and positions are Integers. They are ordered as AntlrReflectionElement orders them.
+ */
+public abstract class GeneratedElement extends AbstractOrderedElement {
+
+    private final AntlrReflectionMapper reflectionMapper;
+    private final ParserRuleContext wrapped;
+    private final EntityAccessPlan accessPlan;
+    private ElementCache elementCache;
+    private LineIndex lineIndex;
+
+    // Memoized: the wrapped tree changes only when the cache is told so. The values are loaded holding the lock of
+    // the element and published by setting loaded, so that other threads reading the element see them complete.
+    private volatile boolean loaded;
+    private volatile List<ValueReference> valuesOrder;
+    private List<Pair<ValueReference, Object>> orderedValues;
+    private int memoGeneration;
+
+    protected GeneratedElement(AntlrReflectionMapper reflectionMapper, ParserRuleContext wrapped, Entity entity, Optional<OrderedElement> parent) {
+        super(entity, parent);
+        this.reflectionMapper = reflectionMapper;
+        this.wrapped = wrapped;
+        this.accessPlan = reflectionMapper.getAccessPlan(wrapped.getClass());
+        if (parent.isPresent() && parent.get() instanceof GeneratedElement) {
+            this.elementCache = ((GeneratedElement) parent.get()).elementCache;
+            this.lineIndex = ((GeneratedElement) parent.get()).lineIndex;
+        }
+    }
+
+    /**
+     * Throw an IllegalStateException unless the entity has the given features, by ordinal: the class was generated
+     * for a mapper configured differently (e.g., with or without positions) and it would return the wrong values.
+     */
+    protected static void checkFeatures(Entity entity, String[] featureNames) {
+        List<Feature> features = entity.getFeatures();
+        boolean matching = features.size() == featureNames.length;
+        for (int i = 0; matching && i < featureNames.length; i++) {
+            matching = features.get(i).getName().equals(featureNames[i]);
+        }
+        if (!matching) {
+            List<String> names = new ArrayList<>();
+            for (Feature feature : features) {
+                names.add(feature.getName());
+            }
+            throw new IllegalStateException("The element class of entity " + entity.getName() + " was generated for the features "
+                    + Arrays.toString(featureNames) + ", the entity has " + names + ": generate it again with the mapper in use");
+        }
+    }
+
+    public ParserRuleContext getWrapped() {
+        return wrapped;
+    }
+
+    /**
+     * The cache shared by the elements of this tree, if any.
+     */
+    public ElementCache getElementCache() {
+        return elementCache;
+    }
+
+    void setElementCache(ElementCache elementCache) {
+        this.elementCache = elementCache;
+    }
+
+    /**
+     * Read every value of the context and pass it to the loader: first the positions and the values located by
+     * identity, in the order of the access plan (the relations, then the properties), then the values found visiting
+     * the children.
+     */
+    protected abstract void loadValues(Loader loader);
+
+    /**
+     * The value of the feature with the given ordinal: an element or a String, possibly null, for single features
+     * and a List for the others.
+     */
+    protected abstract Object valueOf(int ordinal);
+
+    protected final void ensureLoaded() {
+        if (!loaded || (elementCache != null && elementCache.getGeneration() != memoGeneration)) {
+            load();
+        }
+    }
+
+    private synchronized void load() {
+        int generation = elementCache == null ? 0 : elementCache.getGeneration();
+        if (loaded && generation == memoGeneration) {
+            return;
+        }
+        Loader loader = new Loader();
+        loadValues(loader);
+        loader.order();
+        memoGeneration = generation;
+        loaded = true;
+    }
+
+    // a value located by identity
+    private static class Value {
+        private final Pair<ValueReference, Object> value;
+        // next value with the same key, if any
+        private Value next;
+
+        Value(Pair<ValueReference, Object> value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Receives the raw values read by a generated element and turns them into the values of the element.
+     *
+     * Values read through the conventional getters of ANTLR (e.g., stmt() or NAME()) are passed while the generated
+     * class visits the children of the context once, in order: such values need no sorting. The other values (e.g.,
+     * labels) are passed before that and they are located among the children by identity.
+     */
+    protected final class Loader {
+        // allocated only if some values are located by identity
+        private Map<Object, Value> positioned = Collections.emptyMap();
+        private List<Object> keys;
+        private final List<Pair<ValueReference, Object>> result = new ArrayList<>();
+        private boolean visited = false;
+
+        private Loader() {
+        }
+
+        private void add(Object key, ValueReference reference, Object value) {
+            if (key == null) {
+                result.add(new Pair<>(reference, value));
+            } else {
+                if (keys == null) {
+                    positioned = new IdentityHashMap<>();
+                    keys = new ArrayList<>();
+                }
+                Value located = new Value(new Pair<>(reference, value));
+                located.next = positioned.put(key, located);
+                keys.add(key);
+            }
+        }
+
+        private void emit(Object key) {
+            Value value = positioned.remove(key);
+            if (value == null) {
+                return;
+            }
+            // values sharing the key were chained in reverse order of insertion
+            LinkedList<Pair<ValueReference, Object>> sameKey = new LinkedList<>();
+            for (; value != null; value = value.next) {
+                sameKey.addFirst(value.value);
+            }
+            result.addAll(sameKey);
+        }
+
+        /**
+         * To be called for each child of the context, in order, after the values read from it.
+         */
+        public void visited(ParseTree child) {
+            visited = true;
+            if (!positioned.isEmpty()) {
+                emit(child);
+                if (child instanceof TerminalNode) {
+                    emit(((TerminalNode) child).getSymbol());
+                }
+            }
+        }
+
+        private void order() {
+            if (!visited) {
+                for (int i = 0; i < wrapped.getChildCount() && !positioned.isEmpty(); i++) {
+                    visited(wrapped.getChild(i));
+                }
+            }
+            // values which are not among the children of the wrapped context go last, in the order of the features
+            if (!positioned.isEmpty()) {
+                for (Object key : keys) {
+                    emit(key);
+                }
+            }
+            valuesOrder = null;
+            orderedValues = Collections.unmodifiableList(result);
+        }
+
+        private OrderedElement toElement(EntityAccessPlan.FeatureAccess access, ParserRuleContext child) {
+            if (access.isMayBeTransparent()) {
+                return reflectionMapper.toElement(child, Optional.of(GeneratedElement.this));
+            } else {
+                return reflectionMapper.toElementSkippingTransparency(child, Optional.of(GeneratedElement.this));
+            }
+        }
+
+        private boolean isDropped(EntityAccessPlan.FeatureAccess access, ParserRuleContext child) {
+            return access.isMayBeDropped() && reflectionMapper.isToBeDropped(child.getClass());
+        }
+
+        private String text(Object raw) {
+            if (raw instanceof Token) {
+                return ((Token) raw).getText();
+            } else {
+                return ((ParseTree) raw).getText();
+            }
+        }
+
+        /**
+         * Value of a single relation, for a child being visited. It is null if the child is dropped.
+         */
+        public OrderedElement childRelation(int ordinal, ParserRuleContext child) {
+            EntityAccessPlan.FeatureAccess access = accessPlan.get(ordinal);
+            if (isDropped(access, child)) {
+                return null;
+            }
+            OrderedElement element = toElement(access, child);
+            result.add(new Pair<>(new ValueReference(access.getFeature(), 0), element));
+            return element;
+        }
+
+        public void childRelation(int ordinal, ParserRuleContext child, List<OrderedElement> elements) {
+            EntityAccessPlan.FeatureAccess access = accessPlan.get(ordinal);
+            if (!isDropped(access, child)) {
+                OrderedElement element = toElement(access, child);
+                result.add(new Pair<>(new ValueReference(access.getFeature(), elements.size()), element));
+                elements.add(element);
+            }
+        }
+
+        public String childProperty(int ordinal, ParseTree child) {
+            String text = child.getText();
+            result.add(new Pair<>(new ValueReference(accessPlan.get(ordinal).getFeature(), 0), text));
+            return text;
+        }
+
+        public void childProperty(int ordinal, ParseTree child, List<String> texts) {
+            String text = child.getText();
+            result.add(new Pair<>(new ValueReference(accessPlan.get(ordinal).getFeature(), texts.size()), text));
+            texts.add(text);
+        }
+
+        public OrderedElement relation(int ordinal, ParserRuleContext raw) {
+            EntityAccessPlan.FeatureAccess access = accessPlan.get(ordinal);
+            if (raw == null || isDropped(access, raw)) {
+                return null;
+            }
+            OrderedElement element = toElement(access, raw);
+            add(raw, new ValueReference(access.getFeature(), 0), element);
+            return element;
+        }
+
+        public List<OrderedElement> relations(int ordinal, List<? extends ParserRuleContext> raw) {
+            EntityAccessPlan.FeatureAccess access = accessPlan.get(ordinal);
+            List<OrderedElement> elements = new ArrayList<>(raw.size());
+            for (ParserRuleContext child : raw) {
+                if (!isDropped(access, child)) {
+                    OrderedElement element = toElement(access, child);
+                    add(child, new ValueReference(access.getFeature(), elements.size()), element);
+                    elements.add(element);
+                }
+            }
+            return Collections.unmodifiableList(elements);
+        }
+
+        public String property(int ordinal, Object raw) {
+            if (raw == null) {
+                return null;
+            }
+            String text = text(raw);
+            add(raw, new ValueReference(accessPlan.get(ordinal).getFeature(), 0), text);
+            return text;
+        }
+
+        public List<String> properties(int ordinal, List<?> raw) {
+            Feature feature = accessPlan.get(ordinal).getFeature();
+            List<String> texts = new ArrayList<>(raw.size());
+            for (Object token : raw) {
+                String text = text(token);
+                add(token, new ValueReference(feature, texts.size()), text);
+                texts.add(text);
+            }
+            return Collections.unmodifiableList(texts);
+        }
+
+        public Integer position(int ordinal) {
+            Feature feature = accessPlan.get(ordinal).getFeature();
+            Integer position = (Integer) GeneratedElement.this.position(feature.getName()).get();
+            add(null, new ValueReference(feature, 0), position);
+            return position;
+        }
+    }
+
+    private LineIndex lineIndex(Token token) {
+        CharStream stream = token.getInputStream();
+        // racy but harmless: a LineIndex is immutable
+        LineIndex index = lineIndex;
+        if (index == null || !index.isFor(stream)) {
+            index = reflectionMapper.getLineIndex(stream);
+            lineIndex = index;
+        }
+        return index;
+    }
+
+    private Optional<Object> position(String name) {
+        return AntlrReflectionElement.position(wrapped, name, this::lineIndex);
+    }
+
+    private Object value(EntityAccessPlan.FeatureAccess access) {
+        ensureLoaded();
+        return valueOf(access.getFeature().getOrdinal());
+    }
+
+    @Override
+    public Optional<Object> getSingleProperty(String name) {
+        Optional<Object> res = position(name);
+        if (res.isPresent()) {
+            return res;
+        }
+        return super.getSingleProperty(name);
+    }
+
+    @Override
+    public Optional<Object> getSingleProperty(Property property) {
+        if (!property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        Optional<EntityAccessPlan.FeatureAccess> access = accessPlan.find(property);
+        if (!access.isPresent()) {
+            Optional<Object> res = position(property.getName());
+            if (res.isPresent()) {
+                return res;
+            }
+            throw new IllegalArgumentException("Unknown property " + property.getName() + " for entity " + entity.getName());
+        }
+        return Optional.ofNullable(value(access.get()));
+    }
+
+    @Override
+    public List<Object> getMultipleProperty(Property property) {
+        if (property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        return new ArrayList<Object>((List<?>) value(accessPlan.get(property)));
+    }
+
+    @Override
+    public Optional<Element> getSingleRelation(Relation relation) {
+        if (!relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        return Optional.ofNullable((Element) value(accessPlan.get(relation)));
+    }
+
+    @Override
+    public List<Element> getMultipleRelation(Relation relation) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Element> elements = new ArrayList<>();
+        for (Object element : (List<?>) value(accessPlan.get(relation))) {
+            elements.add((Element) element);
+        }
+        return elements;
+    }
+
+    @Override
+    public int getMultipleRelationCount(Relation relation) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        return ((List<?>) value(accessPlan.get(relation))).size();
+    }
+
+    @Override
+    public Element getMultipleRelationAt(Relation relation, int index) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        return (Element) ((List<?>) value(accessPlan.get(relation))).get(index);
+    }
+
+    @Override
+    public List<ValueReference> getValuesOrder() {
+        ensureLoaded();
+        List<ValueReference> memo = valuesOrder;
+        if (memo == null) {
+            List<ValueReference> references = new ArrayList<>(orderedValues.size());
+            for (Pair<ValueReference, Object> value : orderedValues) {
+                references.add(value.getFirst());
+            }
+            memo = Collections.unmodifiableList(references);
+            valuesOrder = memo;
+        }
+        return memo;
+    }
+
+    @Override
+    public List<Pair<ValueReference, Object>> getOrderedValues() {
+        ensureLoaded();
+        return orderedValues;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "entity=" + entity.getName() +
+                ", wrapped=" + wrapped +
+                '}';
+    }
+}
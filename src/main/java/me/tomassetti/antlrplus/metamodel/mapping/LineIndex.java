@@ -0,0 +1,158 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.EditableCharStream;
+import me.tomassetti.antlrplus.SourceToken;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Offsets of the start of each line of an input, computed once. It gives the line and the column at which a token
+ * ends from its char indexes, without looking at the text of the token.
+ *
+ * Only SourceTokens of the indexed input whose text has not been replaced are measured with the index: other tokens
+ * are measured on their text instead. The index of an EditableCharStream is valid only for the version of the content it was built
+ * on.
+ */
+public final class LineIndex {
+
+    private static final int CHUNK = 8192;
+
+    private final WeakReference<CharStream> stream;
+    private final long version;
+    private final int size;
+    // lineStarts[i] is the index of the first char of the line i (0 based)
+    private final int[] lineStarts;
+
+    private LineIndex(CharStream stream) {
+        this.stream = new WeakReference<>(stream);
+        this.version = versionOf(stream);
+        this.size = stream.size();
+        int[] starts = new int[16];
+        int lines = 1;
+        for (int from = 0; from < size; from += CHUNK) {
+            String chunk = stream.getText(Interval.of(from, Math.min(from + CHUNK, size) - 1));
+            for (int i = chunk.indexOf('\n'); i >= 0; i = chunk.indexOf('\n', i + 1)) {
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines * 2);
+                }
+                starts[lines++] = from + i + 1;
+            }
+        }
+        this.lineStarts = Arrays.copyOf(starts, lines);
+    }
+
+    public static LineIndex of(CharStream stream) {
+        return new LineIndex(stream);
+    }
+
+    private static long versionOf(CharStream stream) {
+        return stream instanceof EditableCharStream ? ((EditableCharStream) stream).getVersion() : 0;
+    }
+
+    public boolean isFor(CharStream stream) {
+        return this.stream.get() == stream && versionOf(stream) == version;
+    }
+
+    /**
+     * Can the text of the token be found in the indexed input, between its start and stop indexes?
+     */
+    private boolean isFor(Token token) {
+        if (!(token instanceof SourceToken) || !((SourceToken) token).hasSourceText() || token.getType() == Token.EOF) {
+            return false;
+        }
+        if (token.getStartIndex() < 0 || token.getStopIndex() < token.getStartIndex() - 1 || token.getStopIndex() >= size) {
+            return false;
+        }
+        return isFor(token.getInputStream());
+    }
+
+    /**
+     * Line (0 based) of the char at the given index.
+     */
+    private int lineOf(int index) {
+        int low = 0;
+        int high = lineStarts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lineStarts[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Number of newlines between start and stop, both included.
+     */
+    private int newlines(int start, int stop) {
+        return lineOf(stop + 1) - lineOf(start);
+    }
+
+    /**
+     * Line of the last char of the token. For EOF it is the line of the token.
+     */
+    public int endLine(Token token) {
+        if (token.getType() == Token.EOF) {
+            return token.getLine();
+        }
+        if (!isFor(token)) {
+            return endLineOfText(token);
+        }
+        return token.getLine() + newlines(token.getStartIndex(), token.getStopIndex());
+    }
+
+    /**
+     * Column following the last char of the token. For EOF it is the column of the token.
+     */
+    public int endColumn(Token token) {
+        if (token.getType() == Token.EOF) {
+            return token.getCharPositionInLine();
+        }
+        if (!isFor(token)) {
+            return endColumnOfText(token);
+        }
+        int start = token.getStartIndex();
+        int end = token.getStopIndex() + 1;
+        if (newlines(start, token.getStopIndex()) == 0) {
+            return token.getCharPositionInLine() + end - start;
+        } else {
+            return end - lineStarts[lineOf(end)];
+        }
+    }
+
+    /**
+     * Same as endLine, measured on the text of the token: it does not need the input.
+     */
+    static int endLineOfText(Token token) {
+        if (token.getType() == Token.EOF) {
+            return token.getLine();
+        }
+        return token.getLine() + token.getText().split("\n", -1).length - 1;
+    }
+
+    static int endColumnOfText(Token token) {
+        if (token.getType() == Token.EOF) {
+            return token.getCharPositionInLine();
+        }
+        String[] lines = token.getText().split("\n", -1);
+        if (lines.length == 1) {
+            return token.getCharPositionInLine() + token.getText().length();
+        } else {
+            return lines[lines.length - 1].length();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LineIndex{" +
+                "size=" + size +
+                ", lines=" + lineStarts.length +
+                '}';
+    }
+}
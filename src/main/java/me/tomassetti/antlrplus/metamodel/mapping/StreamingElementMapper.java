@@ -0,0 +1,488 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * Parse listener turning the rules recognized by a parser into the events of an ElementEventListener, shaped by the
+ * mapper as the elements of AntlrReflectionMapper.toRootElement would be: same entities and features, transparent
+ * rules replaced by their child, dropped rules skipped, rules treated as tokens reported as properties.
+ *
+ * It is meant for parsers not building the parse tree: it only keeps the contexts being parsed, and it removes the
+ * terminals from their context once reported. Events are forwarded immediately, except in two cases, where the
+ * events of a whole subtree are kept until it is complete:
+ * - the relation holding a child is read from a label, which the parser assigns only after the child is parsed;
+ * - the rule is left recursive, so its context can still become the child of a new one.
+ *
+ * Differently from the elements, the position properties are passed with startElement and endElement, properties
+ * read from token labels come at the end of their element and features added by postProcessEntity are not
+ * reported.
+ */
+public class StreamingElementMapper implements ParseTreeListener {
+
+    private enum Kind {
+        ELEMENT,
+        TRANSPARENT,
+        // treated as token: its text is reported as a property of the parent
+        TOKEN,
+        // within a rule treated as token
+        TEXT,
+        DROPPED
+    }
+
+    private static final class Event {
+        private final Entity entity;
+        private Feature feature;
+        private final String value;
+        private final boolean start;
+        private final int line;
+        private final int column;
+
+        Event(Entity entity, Feature feature, String value, boolean start, int line, int column) {
+            this.entity = entity;
+            this.feature = feature;
+            this.value = value;
+            this.start = start;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    private static final class Frame {
+        private ParserRuleContext context;
+        private Frame parent;
+        private Kind kind;
+        private EntityAccessPlan plan;
+        private Frame textOwner;
+        private StringBuilder text;
+        // the feature of the parent element holding this rule, if known
+        private Feature role;
+        private boolean roleAssigned;
+        // the features which could hold this rule, to be told apart reading the labels
+        private List<EntityAccessPlan.FeatureAccess> candidates;
+        // events not yet forwarded, when the role is not known or the rule is left recursive
+        private List<Event> buffer;
+        // children waiting for the parser to assign the labels of this rule
+        private List<Frame> pending;
+        // text of the terminals which can be read from token labels, taken while their tokens are live
+        private Map<Token, String> labelTexts;
+
+        Frame(ParserRuleContext context, Frame parent) {
+            this.context = context;
+            this.parent = parent;
+        }
+    }
+
+    private final AntlrReflectionMapper mapper;
+    private final ElementEventListener listener;
+    private final Parser parser;
+    private final ATN atn;
+    private final Map<String, Integer> tokenTypes = new HashMap<>();
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private final Map<EntityAccessPlan, Map<Integer, EntityAccessPlan.FeatureAccess>> terminalProperties = new HashMap<>();
+    private final Map<EntityAccessPlan, Map<Class<?>, List<EntityAccessPlan.FeatureAccess>>> candidatesByPlan = new HashMap<>();
+    private final Map<EntityAccessPlan, List<EntityAccessPlan.FeatureAccess>> tokenLabels = new HashMap<>();
+
+    public StreamingElementMapper(AntlrReflectionMapper mapper, Parser parser, ElementEventListener listener) {
+        this.mapper = mapper;
+        this.listener = listener;
+        this.parser = parser;
+        this.atn = parser.getATN();
+        Vocabulary vocabulary = parser.getVocabulary();
+        for (int type = 0; type <= atn.maxTokenType; type++) {
+            String name = vocabulary.getSymbolicName(type);
+            if (name != null) {
+                tokenTypes.put(name, type);
+            }
+        }
+        tokenTypes.put("EOF", Token.EOF);
+    }
+
+    @Override
+    public void enterEveryRule(ParserRuleContext ctx) {
+        Frame top = stack.peek();
+        if (top == null) {
+            stack.push(new Frame(ctx, null));
+            return;
+        }
+        reveal(top, ctx.getParent());
+        Frame wrapped = null;
+        if (top.pending != null && top.pending.get(top.pending.size() - 1).context.getParent() == ctx) {
+            // left recursion: the rule just parsed becomes the first child of the new context
+            wrapped = top.pending.remove(top.pending.size() - 1);
+        }
+        resolvePending(top);
+        Frame frame = new Frame(ctx, top);
+        stack.push(frame);
+        if (wrapped != null) {
+            open(frame);
+            wrapped.parent = frame;
+            addPending(frame, wrapped);
+        }
+    }
+
+    @Override
+    public void exitEveryRule(ParserRuleContext ctx) {
+        Frame top = stack.pop();
+        top.context = ctx;
+        close(top);
+    }
+
+    @Override
+    public void visitTerminal(TerminalNode node) {
+        Frame top = stack.peek();
+        if (top == null) {
+            return;
+        }
+        reveal(top, node.getParent());
+        resolvePending(top);
+        switch (top.kind) {
+            case TOKEN:
+            case TEXT:
+                top.textOwner.text.append(node.getText());
+                break;
+            case ELEMENT:
+                EntityAccessPlan.FeatureAccess access = terminalProperties(top.plan).get(node.getSymbol().getType());
+                if (access != null) {
+                    emit(top, new Event(null, access.getFeature(), node.getText(), false, 0, 0));
+                }
+                if (!tokenLabels(top.plan).isEmpty()) {
+                    if (top.labelTexts == null) {
+                        top.labelTexts = new IdentityHashMap<>();
+                    }
+                    top.labelTexts.put(node.getSymbol(), node.getText());
+                }
+                break;
+            default:
+                break;
+        }
+        // without the parse tree nobody else looks at the terminal
+        ParserRuleContext owner = (ParserRuleContext) node.getParent();
+        if (owner != null && owner.children != null && !owner.children.isEmpty()
+                && owner.children.get(owner.children.size() - 1) == node) {
+            owner.removeLastChild();
+        }
+    }
+
+    @Override
+    public void visitErrorNode(ErrorNode node) {
+        visitTerminal(node);
+    }
+
+    /**
+     * The parser replaces the context of a rule with one of a more specific class when it enters a labeled
+     * alternative: the frame is opened once the first child shows the final context.
+     */
+    private void reveal(Frame frame, Object context) {
+        if (frame.kind == null && context instanceof ParserRuleContext) {
+            frame.context = (ParserRuleContext) context;
+        }
+        open(frame);
+    }
+
+    private boolean isLeftRecursive(ParserRuleContext context) {
+        return atn.ruleToStartState[context.getRuleIndex()].isLeftRecursiveRule;
+    }
+
+    private void open(Frame frame) {
+        if (frame.kind != null) {
+            return;
+        }
+        Class<? extends ParserRuleContext> ruleClass = frame.context.getClass();
+        Frame parent = frame.parent;
+        if (parent != null && parent.kind == Kind.DROPPED) {
+            frame.kind = Kind.DROPPED;
+            return;
+        }
+        if (parent != null && (parent.kind == Kind.TOKEN || parent.kind == Kind.TEXT)) {
+            frame.kind = Kind.TEXT;
+            frame.textOwner = parent.textOwner;
+            return;
+        }
+        if (mapper.isToBeDropped(ruleClass)) {
+            frame.kind = Kind.DROPPED;
+        } else if (mapper.isTransparent(ruleClass)) {
+            frame.kind = Kind.TRANSPARENT;
+        } else if (mapper.isTreatedAsToken(ruleClass)) {
+            frame.kind = Kind.TOKEN;
+            frame.textOwner = frame;
+            frame.text = new StringBuilder();
+        } else {
+            frame.kind = Kind.ELEMENT;
+            frame.plan = mapper.getAccessPlan(ruleClass);
+        }
+        if (parent == null && (frame.kind == Kind.DROPPED || frame.kind == Kind.TOKEN)) {
+            throw new IllegalArgumentException("The root rule cannot be dropped or treated as token: " + ruleClass);
+        }
+        if (isLeftRecursive(frame.context)) {
+            // its parent can still change: the role is looked for once the parent goes on
+            frame.buffer = new ArrayList<>();
+        } else {
+            assignRole(frame);
+        }
+        if (frame.kind == Kind.ELEMENT) {
+            Token start = frame.context.getStart();
+            emit(frame, new Event(frame.plan.getEntity(), frame.role, null, true, start.getLine(), start.getCharPositionInLine()));
+        }
+    }
+
+    private void assignRole(Frame frame) {
+        frame.roleAssigned = true;
+        Frame parent = frame.parent;
+        if (parent == null || frame.kind == Kind.DROPPED) {
+            return;
+        }
+        if (parent.kind == Kind.TRANSPARENT) {
+            // when not known yet, the parent will fix the first event of its buffer
+            frame.role = parent.role;
+            return;
+        }
+        if (parent.kind != Kind.ELEMENT) {
+            frame.kind = Kind.DROPPED;
+            frame.buffer = null;
+            return;
+        }
+        List<EntityAccessPlan.FeatureAccess> found = candidates(parent.plan, frame.context.getClass());
+        if (found.isEmpty()) {
+            frame.kind = Kind.DROPPED;
+            frame.buffer = null;
+        } else if (found.size() == 1 && !found.get(0).isFromField()) {
+            frame.role = found.get(0).getFeature();
+        } else {
+            frame.candidates = found;
+            if (frame.buffer == null) {
+                frame.buffer = new ArrayList<>();
+            }
+        }
+    }
+
+    private void close(Frame frame) {
+        open(frame);
+        resolvePending(frame);
+        if (frame.kind == Kind.ELEMENT) {
+            emitTokenLabels(frame);
+            Token stop = frame.context.getStop();
+            if (stop == null) {
+                // the operand of a left recursive rule gets its stop after being exited: the last token consumed
+                stop = parser.getInputStream().LT(-1);
+            }
+            if (stop == null) {
+                stop = frame.context.getStart();
+                emit(frame, new Event(frame.plan.getEntity(), null, null, false, stop.getLine(), stop.getCharPositionInLine()));
+            } else {
+                emit(frame, new Event(frame.plan.getEntity(), null, null, false,
+                        LineIndex.endLineOfText(stop), LineIndex.endColumnOfText(stop)));
+            }
+        } else if (frame.kind == Kind.TOKEN) {
+            emit(frame, new Event(null, frame.role, frame.text.toString(), false, 0, 0));
+        }
+        if (frame.buffer == null) {
+            return;
+        }
+        if (frame.kind == Kind.DROPPED) {
+            frame.buffer = null;
+        } else if (frame.parent == null || (frame.roleAssigned && frame.candidates == null)) {
+            flush(frame);
+        } else {
+            addPending(frame.parent, frame);
+        }
+    }
+
+    private static void addPending(Frame frame, Frame child) {
+        if (frame.pending == null) {
+            frame.pending = new ArrayList<>();
+        }
+        frame.pending.add(child);
+    }
+
+    /**
+     * Children whose role depends on the labels: the parser has assigned them once it goes on with the parent.
+     */
+    private void resolvePending(Frame frame) {
+        if (frame.pending == null) {
+            return;
+        }
+        List<Frame> children = frame.pending;
+        frame.pending = null;
+        for (Frame child : children) {
+            if (!child.roleAssigned) {
+                assignRole(child);
+            }
+            if (child.buffer == null) {
+                continue;
+            }
+            if (child.candidates != null) {
+                EntityAccessPlan.FeatureAccess chosen = null;
+                for (EntityAccessPlan.FeatureAccess candidate : child.candidates) {
+                    if (candidate.isFromField() && holds(candidate.getAccessor().get().get(frame.context), child.context)) {
+                        chosen = candidate;
+                        break;
+                    }
+                }
+                if (chosen == null) {
+                    chosen = child.candidates.stream().filter(c -> !c.isFromField()).findFirst().orElse(null);
+                }
+                child.candidates = null;
+                if (chosen == null) {
+                    continue;
+                }
+                child.role = chosen.getFeature();
+            }
+            flush(child);
+        }
+    }
+
+    private static boolean holds(Object value, ParserRuleContext context) {
+        if (value == context) {
+            return true;
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (element == context) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void flush(Frame frame) {
+        List<Event> events = frame.buffer;
+        frame.buffer = null;
+        if (events.isEmpty()) {
+            return;
+        }
+        if (frame.role != null) {
+            events.get(0).feature = frame.role;
+        }
+        for (Event event : events) {
+            emit(frame.parent, event);
+        }
+    }
+
+    private void emit(Frame frame, Event event) {
+        for (Frame sink = frame; sink != null; sink = sink.parent) {
+            if (sink.buffer != null) {
+                sink.buffer.add(event);
+                return;
+            }
+        }
+        if (event.start) {
+            Optional<Relation> containment = event.feature instanceof Relation ? Optional.of((Relation) event.feature) : Optional.empty();
+            listener.startElement(event.entity, containment, event.line, event.column);
+        } else if (event.entity != null) {
+            listener.endElement(event.entity, event.line, event.column);
+        } else if (event.feature instanceof Property) {
+            listener.property((Property) event.feature, event.value);
+        }
+    }
+
+    /**
+     * Properties read from the fields holding the tokens labeled in the rule.
+     */
+    private List<EntityAccessPlan.FeatureAccess> tokenLabels(EntityAccessPlan plan) {
+        List<EntityAccessPlan.FeatureAccess> labels = tokenLabels.get(plan);
+        if (labels == null) {
+            labels = new ArrayList<>();
+            for (EntityAccessPlan.FeatureAccess access : plan.getProperties()) {
+                if (access.getKind() == EntityAccessPlan.Kind.PROPERTY && access.isFromField()
+                        && access.getValueType().isPresent() && isTerminal(access.getValueType().get())) {
+                    labels.add(access);
+                }
+            }
+            tokenLabels.put(plan, labels);
+        }
+        return labels;
+    }
+
+    private void emitTokenLabels(Frame frame) {
+        for (EntityAccessPlan.FeatureAccess access : tokenLabels(frame.plan)) {
+            Object value = access.getAccessor().get().get(frame.context);
+            if (value instanceof List) {
+                for (Object element : (List<?>) value) {
+                    emitTokenLabel(frame, access, element);
+                }
+            } else {
+                emitTokenLabel(frame, access, value);
+            }
+        }
+    }
+
+    private void emitTokenLabel(Frame frame, EntityAccessPlan.FeatureAccess access, Object value) {
+        Token token = value instanceof TerminalNode ? ((TerminalNode) value).getSymbol() : (Token) value;
+        if (token == null) {
+            return;
+        }
+        // the token can be gone from an unbuffered input by now
+        String text = frame.labelTexts == null ? null : frame.labelTexts.get(token);
+        emit(frame, new Event(null, access.getFeature(), text != null ? text : token.getText(), false, 0, 0));
+    }
+
+    private static boolean isTerminal(Class<?> type) {
+        return Token.class.isAssignableFrom(type) || TerminalNode.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Properties read by the methods returning the terminals of a given type, e.g. NAME(), by type.
+     */
+    private Map<Integer, EntityAccessPlan.FeatureAccess> terminalProperties(EntityAccessPlan plan) {
+        Map<Integer, EntityAccessPlan.FeatureAccess> properties = terminalProperties.get(plan);
+        if (properties == null) {
+            properties = new HashMap<>();
+            for (EntityAccessPlan.FeatureAccess access : plan.getProperties()) {
+                if (access.getKind() == EntityAccessPlan.Kind.PROPERTY && !access.isFromField()
+                        && access.getValueType().isPresent() && isTerminal(access.getValueType().get())) {
+                    Integer type = tokenTypes.get(access.getRawName());
+                    if (type != null) {
+                        properties.put(type, access);
+                    }
+                }
+            }
+            terminalProperties.put(plan, properties);
+        }
+        return properties;
+    }
+
+    /**
+     * Features of the plan whose values can be contexts of the given class.
+     */
+    private List<EntityAccessPlan.FeatureAccess> candidates(EntityAccessPlan plan, Class<?> ruleClass) {
+        Map<Class<?>, List<EntityAccessPlan.FeatureAccess>> byClass = candidatesByPlan.computeIfAbsent(plan, p -> new HashMap<>());
+        List<EntityAccessPlan.FeatureAccess> found = byClass.get(ruleClass);
+        if (found == null) {
+            found = new ArrayList<>();
+            for (EntityAccessPlan.FeatureAccess access : plan.getRelations()) {
+                if (canHold(access, ruleClass)) {
+                    found.add(access);
+                }
+            }
+            for (EntityAccessPlan.FeatureAccess access : plan.getProperties()) {
+                if (access.getKind() == EntityAccessPlan.Kind.PROPERTY && canHold(access, ruleClass)) {
+                    found.add(access);
+                }
+            }
+            byClass.put(ruleClass, found);
+        }
+        return found;
+    }
+
+    private static boolean canHold(EntityAccessPlan.FeatureAccess access, Class<?> ruleClass) {
+        if (!access.getAccessor().isPresent() || !access.getValueType().isPresent()) {
+            return false;
+        }
+        Class<?> valueType = access.getValueType().get();
+        return ParserRuleContext.class.isAssignableFrom(valueType) && valueType.isAssignableFrom(ruleClass);
+    }
+}
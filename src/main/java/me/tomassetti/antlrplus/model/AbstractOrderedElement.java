@@ -5,6 +5,7 @@ import me.tomassetti.antlrplus.metamodel.Property;
 import me.tomassetti.antlrplus.metamodel.Relation;
 import me.tomassetti.antlrplus.model.Element;
 import me.tomassetti.antlrplus.model.OrderedElement;
+import org.antlr.v4.runtime.tree.ParseTree;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -19,6 +20,17 @@ public abstract class AbstractOrderedElement implements OrderedElement {
         this.parent = parent;
     }
 
+    /**
+     * Text of a property value, for the implementations which do not keep the parse tree.
+     */
+    protected static String propertyValueText(Object value) {
+        if (value instanceof ParseTree) {
+            return ((ParseTree) value).getText();
+        } else {
+            return value.toString();
+        }
+    }
+
     @Override
     public Optional<Object> getSingleProperty(String name) {
         return this.getSingleProperty(this.type().getProperty(name).get());
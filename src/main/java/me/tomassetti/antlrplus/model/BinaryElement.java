@@ -0,0 +1,195 @@
+package me.tomassetti.antlrplus.model;
+
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * View of one element of a BinaryTree. Its values are decoded the first time they are requested, skipping the
+ * content of the child elements, which are decoded in turn only when requested. Two views of the same element are
+ * equal.
+ */
+public final class BinaryElement extends AbstractOrderedElement {
+
+    // the values of the element: the property values are still encoded, the elements are offsets in the data
+    private static final class Values {
+        private final Feature[] features;
+        private final int[] indexes;
+        private final long[] payloads;
+
+        Values(int count) {
+            features = new Feature[count];
+            indexes = new int[count];
+            payloads = new long[count];
+        }
+    }
+
+    private final BinaryTree tree;
+    private final int offset;
+    private volatile Values values;
+
+    BinaryElement(BinaryTree tree, int offset, Optional<OrderedElement> parent) {
+        super(tree.entity(tree.cursor(offset).readVarInt()), parent);
+        this.tree = tree;
+        this.offset = offset;
+    }
+
+    public BinaryTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Position of the element in the encoded data.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    private Values values() {
+        Values values = this.values;
+        if (values == null) {
+            BinaryTree.Cursor cursor = tree.cursor(offset);
+            cursor.readVarInt();
+            cursor.readVarInt();
+            values = new Values(cursor.readCount());
+            for (int i = 0; i < values.features.length; i++) {
+                Feature feature = BinaryTree.at(entity.getFeatures(), cursor.readVarInt());
+                values.features[i] = feature;
+                values.indexes[i] = cursor.readVarInt();
+                if (feature.isRelation()) {
+                    values.payloads[i] = cursor.position;
+                    cursor.readVarInt();
+                    cursor.skip(cursor.readVarInt());
+                } else {
+                    values.payloads[i] = cursor.readVarLong();
+                }
+            }
+            this.values = values;
+        }
+        return values;
+    }
+
+    private Object valueAt(Values values, int i) {
+        if (values.features[i].isRelation()) {
+            return new BinaryElement(tree, (int) values.payloads[i], Optional.of(this));
+        } else {
+            return tree.propertyValue(values.payloads[i]);
+        }
+    }
+
+    private List<Object> valuesOf(Feature feature) {
+        Values values = values();
+        List<Object> result = new ArrayList<>();
+        for (int i = 0; i < values.features.length; i++) {
+            if (values.features[i].equals(feature)) {
+                result.add(valueAt(values, i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Optional<Element> getSingleRelation(Relation relation) {
+        if (!relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Object> values = valuesOf(relation);
+        return values.isEmpty() ? Optional.empty() : Optional.of((Element) values.get(0));
+    }
+
+    @Override
+    public List<Element> getMultipleRelation(Relation relation) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Element> elements = new ArrayList<>();
+        for (Object value : valuesOf(relation)) {
+            elements.add((Element) value);
+        }
+        return elements;
+    }
+
+    @Override
+    public int getMultipleRelationCount(Relation relation) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        Values values = values();
+        int count = 0;
+        for (Feature feature : values.features) {
+            if (feature.equals(relation)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Element getMultipleRelationAt(Relation relation, int index) {
+        return getMultipleRelation(relation).get(index);
+    }
+
+    @Override
+    public Optional<Object> getSingleProperty(Property property) {
+        if (!property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Object> values = valuesOf(property);
+        return values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    @Override
+    public List<Object> getMultipleProperty(Property property) {
+        if (property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        return valuesOf(property);
+    }
+
+    @Override
+    public List<ValueReference> getValuesOrder() {
+        Values values = values();
+        List<ValueReference> valuesOrder = new ArrayList<>(values.features.length);
+        for (int i = 0; i < values.features.length; i++) {
+            valuesOrder.add(new ValueReference(values.features[i], values.indexes[i]));
+        }
+        return valuesOrder;
+    }
+
+    @Override
+    public List<Pair<ValueReference, Object>> getOrderedValues() {
+        Values values = values();
+        List<Pair<ValueReference, Object>> orderedValues = new ArrayList<>(values.features.length);
+        for (int i = 0; i < values.features.length; i++) {
+            orderedValues.add(new Pair<>(new ValueReference(values.features[i], values.indexes[i]), valueAt(values, i)));
+        }
+        return orderedValues;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BinaryElement)) return false;
+
+        BinaryElement that = (BinaryElement) o;
+        return offset == that.offset && tree == that.tree;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(tree) + offset;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryElement{" +
+                "entity=" + entity.getName() +
+                ", offset=" + offset +
+                '}';
+    }
+}
@@ -0,0 +1,544 @@
+package me.tomassetti.antlrplus.model;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Multiplicity;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact binary format for element trees, which embeds its metamodel and is read lazily.
+ *
+ * The header holds the magic, the version, the string table (each distinct text once: the values of the properties
+ * and the names of the metamodel) and the metamodel: the entities, with their parent, and their features in the
+ * order of their ordinals. Then comes the root element. An element is its entity, the length of its content and the
+ * content: the number of values and, for each value in order, the ordinal of its feature, its index and either the
+ * element or the property value, a string or an integer. Every number is a varint, integers are zigzag-encoded.
+ *
+ * The length lets a reader skip whole subtrees: the elements exposed by getRoot (BinaryElement) decode their own
+ * values only when asked, and the texts are decoded only when requested.
+ *
+ * Corrupt or truncated data gives an IllegalArgumentException, when decoding the header or later, when reading the
+ * part of the tree affected.
+ */
+public final class BinaryTree {
+
+    private static final int MAGIC = 0x41504254;
+    private static final int VERSION = 1;
+
+    private static final int PROPERTY = 0;
+    private static final int RELATION = 1;
+
+    // the low bit of a property value tells whether the rest is a string id or a zigzag-encoded integer
+    static final int STRING_VALUE = 0;
+    static final int INTEGER_VALUE = 1;
+
+    private final byte[] data;
+    private final int[] stringOffsets;
+    private final String[] strings;
+    private final List<Entity> entities;
+    private final int rootOffset;
+
+    private BinaryTree(byte[] data, Collection<Entity> knownEntities) {
+        this.data = data;
+        Cursor cursor = new Cursor(0);
+        if (data.length < 5 || cursor.readInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary tree");
+        }
+        int version = cursor.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version);
+        }
+        int stringsCount = cursor.readCount();
+        stringOffsets = new int[stringsCount];
+        strings = new String[stringsCount];
+        for (int i = 0; i < stringsCount; i++) {
+            stringOffsets[i] = cursor.position;
+            cursor.skip(cursor.readVarInt());
+        }
+        entities = Collections.unmodifiableList(readMetamodel(cursor, knownEntities));
+        rootOffset = cursor.position;
+    }
+
+    private List<Entity> readMetamodel(Cursor cursor, Collection<Entity> knownEntities) {
+        Map<String, Entity> entitiesByName = new HashMap<>();
+        if (knownEntities != null) {
+            for (Entity entity : knownEntities) {
+                entitiesByName.put(entity.getName(), entity);
+            }
+        }
+        int entitiesCount = cursor.readCount();
+        List<Entity> entities = new ArrayList<>(entitiesCount);
+        // the features are read once all the entities exist, as relations can refer to any of them
+        int[] featuresOffsets = new int[entitiesCount];
+        for (int i = 0; i < entitiesCount; i++) {
+            String name = string(cursor.readVarInt());
+            int parent = cursor.readVarInt() - 1;
+            boolean isAbstract = cursor.readByte() != 0;
+            featuresOffsets[i] = cursor.position;
+            int featuresCount = cursor.readCount();
+            for (int f = 0; f < featuresCount; f++) {
+                int kind = cursor.readByte();
+                cursor.readVarInt();
+                cursor.skip(2);
+                if (kind == RELATION) {
+                    cursor.readVarInt();
+                }
+            }
+            Entity entity;
+            if (knownEntities != null) {
+                entity = entitiesByName.get(name);
+                if (entity == null) {
+                    throw new IllegalArgumentException("Unknown entity " + name);
+                }
+            } else {
+                // parents come before their children
+                entity = parent == -1 ? new Entity(name) : new Entity(name, at(entities, parent));
+                entity.setAbstract(isAbstract);
+            }
+            entities.add(entity);
+        }
+        int end = cursor.position;
+        for (int i = 0; i < entitiesCount; i++) {
+            Entity entity = entities.get(i);
+            cursor.position = featuresOffsets[i];
+            int featuresCount = cursor.readVarInt();
+            for (int f = 0; f < featuresCount; f++) {
+                int kind = cursor.readByte();
+                String name = string(cursor.readVarInt());
+                Multiplicity multiplicity = at(Multiplicity.values(), cursor.readByte());
+                int type = cursor.readByte();
+                if (knownEntities != null) {
+                    List<Feature> features = entity.getFeatures();
+                    if (f >= features.size() || !features.get(f).getName().equals(name)
+                            || features.get(f).isRelation() != (kind == RELATION)) {
+                        throw new IllegalArgumentException("Unknown feature " + name + " of entity " + entity.getName());
+                    }
+                    if (kind == RELATION) {
+                        cursor.readVarInt();
+                    }
+                } else if (kind == RELATION) {
+                    entity.addRelation(new Relation(name, at(Relation.Type.values(), type), multiplicity, entity,
+                            at(entities, cursor.readVarInt())));
+                } else {
+                    entity.addProperty(new Property(name, at(Property.Datatype.values(), type), multiplicity));
+                }
+            }
+        }
+        if (knownEntities == null) {
+            for (Entity entity : entities) {
+                entity.freeze();
+            }
+        }
+        cursor.position = end;
+        return entities;
+    }
+
+    /**
+     * Read a tree, building its metamodel from the header.
+     */
+    public static BinaryTree decode(byte[] data) {
+        return new BinaryTree(data, null);
+    }
+
+    /**
+     * Read a tree, resolving its metamodel against the given entities (e.g., the ones of a frozen mapper): the
+     * entities are looked for by name and their features must have the same ordinals. An IllegalArgumentException
+     * is thrown if the metamodel does not match.
+     */
+    public static BinaryTree decode(byte[] data, Collection<Entity> knownEntities) {
+        return new BinaryTree(data, knownEntities);
+    }
+
+    public static BinaryTree readFrom(InputStream inputStream) throws IOException {
+        return decode(readAll(inputStream));
+    }
+
+    public static BinaryTree readFrom(InputStream inputStream, Collection<Entity> knownEntities) throws IOException {
+        return decode(readAll(inputStream), knownEntities);
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = inputStream.read(buffer); read != -1; read = inputStream.read(buffer)) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static byte[] encode(OrderedElement root) {
+        Encoder encoder = new Encoder();
+        Encoder.Node node = encoder.measure(root);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoder.prepareHeader() + node.size());
+        try {
+            encoder.write(node, bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("That is unexpected", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the tree to the stream, which is flushed, not closed.
+     */
+    public static void writeTo(OrderedElement root, OutputStream outputStream) throws IOException {
+        Encoder encoder = new Encoder();
+        Encoder.Node node = encoder.measure(root);
+        OutputStream out = new BufferedOutputStream(outputStream);
+        encoder.write(node, out);
+        out.flush();
+    }
+
+    private static class Encoder {
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<Entity> entities = new ArrayList<>();
+        private final Map<Entity, Integer> entityIds = new IdentityHashMap<>();
+
+        // an element with the sizes of its content and of its children, computed before writing it
+        private static class Node {
+            private final int entity;
+            private final List<Pair<OrderedElement.ValueReference, Object>> values;
+            private final List<Node> children = new ArrayList<>();
+            private final long[] propertyValues;
+            private int contentSize;
+
+            Node(int entity, List<Pair<OrderedElement.ValueReference, Object>> values) {
+                this.entity = entity;
+                this.values = values;
+                this.propertyValues = new long[values.size()];
+            }
+
+            int size() {
+                return varIntSize(entity) + varIntSize(contentSize) + contentSize;
+            }
+        }
+
+        private int stringId(String text) {
+            Integer id = stringIds.get(text);
+            if (id == null) {
+                id = strings.size();
+                strings.add(text);
+                stringIds.put(text, id);
+            }
+            return id;
+        }
+
+        private int entityId(Entity entity) {
+            Integer id = entityIds.get(entity);
+            if (id == null) {
+                if (entity.getParent().isPresent()) {
+                    entityId(entity.getParent().get());
+                }
+                id = entities.size();
+                entities.add(entity);
+                entityIds.put(entity, id);
+                for (Relation relation : entity.getRelations()) {
+                    entityId(relation.getTarget());
+                }
+            }
+            return id;
+        }
+
+        private static int ordinal(Entity entity, Feature feature) {
+            List<Feature> features = entity.getFeatures();
+            int ordinal = feature.getOrdinal();
+            if (ordinal != Feature.NO_ORDINAL && ordinal < features.size() && features.get(ordinal) == feature) {
+                return ordinal;
+            }
+            for (int i = 0; i < features.size(); i++) {
+                if (features.get(i) == feature) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Feature " + feature.getName() + " is not a feature of entity " + entity.getName());
+        }
+
+        Node measure(OrderedElement element) {
+            Node node = new Node(entityId(element.type()), element.getOrderedValues());
+            int size = varIntSize(node.values.size());
+            for (int i = 0; i < node.values.size(); i++) {
+                Pair<OrderedElement.ValueReference, Object> value = node.values.get(i);
+                Feature feature = value.getFirst().getFeature();
+                size += varIntSize(ordinal(element.type(), feature)) + varIntSize(value.getFirst().getIndex());
+                if (feature.isRelation()) {
+                    Node child = measure((OrderedElement) value.getSecond());
+                    node.children.add(child);
+                    size += child.size();
+                } else {
+                    long encoded;
+                    if (value.getSecond() instanceof Integer) {
+                        int integer = (Integer) value.getSecond();
+                        encoded = ((long) ((integer << 1) ^ (integer >> 31)) & 0xFFFFFFFFL) << 1 | INTEGER_VALUE;
+                    } else {
+                        encoded = ((long) stringId(AbstractOrderedElement.propertyValueText(value.getSecond()))) << 1 | STRING_VALUE;
+                    }
+                    node.propertyValues[i] = encoded;
+                    size += varLongSize(encoded);
+                }
+            }
+            node.contentSize = size;
+            return node;
+        }
+
+        private List<byte[]> encodedStrings;
+
+        /**
+         * Add the names of the metamodel to the string table, once all the values have been measured, and return
+         * the size of the header.
+         */
+        int prepareHeader() {
+            for (Entity entity : entities) {
+                stringId(entity.getName());
+                for (Feature feature : entity.getFeatures()) {
+                    stringId(feature.getName());
+                }
+            }
+            encodedStrings = new ArrayList<>(strings.size());
+            int size = 5 + varIntSize(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                encodedStrings.add(bytes);
+                size += varIntSize(bytes.length) + bytes.length;
+            }
+            size += varIntSize(entities.size());
+            for (Entity entity : entities) {
+                size += varIntSize(stringId(entity.getName())) + 1;
+                size += varIntSize(entity.getParent().isPresent() ? entityIds.get(entity.getParent().get()) + 1 : 0);
+                size += varIntSize(entity.getFeatures().size());
+                for (Feature feature : entity.getFeatures()) {
+                    size += 3 + varIntSize(stringId(feature.getName()));
+                    if (feature.isRelation()) {
+                        size += varIntSize(entityIds.get(feature.asRelation().getTarget()));
+                    }
+                }
+            }
+            return size;
+        }
+
+        void write(Node root, OutputStream out) throws IOException {
+            if (encodedStrings == null) {
+                prepareHeader();
+            }
+            out.write(MAGIC >>> 24);
+            out.write(MAGIC >>> 16);
+            out.write(MAGIC >>> 8);
+            out.write(MAGIC);
+            out.write(VERSION);
+            writeVarLong(out, encodedStrings.size());
+            for (byte[] bytes : encodedStrings) {
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+            }
+            writeVarLong(out, entities.size());
+            for (Entity entity : entities) {
+                writeVarLong(out, stringId(entity.getName()));
+                writeVarLong(out, entity.getParent().isPresent() ? entityIds.get(entity.getParent().get()) + 1 : 0);
+                out.write(entity.isAbstract() ? 1 : 0);
+                writeVarLong(out, entity.getFeatures().size());
+                for (Feature feature : entity.getFeatures()) {
+                    out.write(feature.isRelation() ? RELATION : PROPERTY);
+                    writeVarLong(out, stringId(feature.getName()));
+                    if (feature.isRelation()) {
+                        out.write(feature.asRelation().getMultiplicity().ordinal());
+                        out.write(feature.asRelation().getType().ordinal());
+                        writeVarLong(out, entityIds.get(feature.asRelation().getTarget()));
+                    } else {
+                        out.write(feature.asProperty().getMultiplicity().ordinal());
+                        out.write(feature.asProperty().getDatatype().ordinal());
+                    }
+                }
+            }
+            writeElement(root, out);
+        }
+
+        private void writeElement(Node node, OutputStream out) throws IOException {
+            Entity entity = entities.get(node.entity);
+            writeVarLong(out, node.entity);
+            writeVarLong(out, node.contentSize);
+            writeVarLong(out, node.values.size());
+            int child = 0;
+            for (int i = 0; i < node.values.size(); i++) {
+                OrderedElement.ValueReference reference = node.values.get(i).getFirst();
+                writeVarLong(out, ordinal(entity, reference.getFeature()));
+                writeVarLong(out, reference.getIndex());
+                if (reference.getFeature().isRelation()) {
+                    writeElement(node.children.get(child++), out);
+                } else {
+                    writeVarLong(out, node.propertyValues[i]);
+                }
+            }
+        }
+    }
+
+    static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static IllegalArgumentException corrupt() {
+        return new IllegalArgumentException("Corrupt binary tree");
+    }
+
+    static <T> T at(T[] values, int index) {
+        if (index < 0 || index >= values.length) {
+            throw corrupt();
+        }
+        return values[index];
+    }
+
+    static <T> T at(List<T> values, int index) {
+        if (index < 0 || index >= values.size()) {
+            throw corrupt();
+        }
+        return values.get(index);
+    }
+
+    /**
+     * A position in the data, moved forward by the reads. Reading past the end throws an IllegalArgumentException.
+     */
+    final class Cursor {
+        int position;
+
+        Cursor(int position) {
+            this.position = position;
+        }
+
+        byte readByte() {
+            if (position < 0 || position >= data.length) {
+                throw corrupt();
+            }
+            return data[position++];
+        }
+
+        int readInt() {
+            return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw corrupt();
+        }
+
+        /**
+         * Only non-negative ints are written.
+         */
+        int readVarInt() {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw corrupt();
+            }
+            return (int) value;
+        }
+
+        /**
+         * The number of the items which follow, each one taking at least a byte.
+         */
+        int readCount() {
+            int count = readVarInt();
+            if (count > data.length - position) {
+                throw corrupt();
+            }
+            return count;
+        }
+
+        void skip(int length) {
+            if (length > data.length - position) {
+                throw corrupt();
+            }
+            position += length;
+        }
+    }
+
+    Cursor cursor(int position) {
+        return new Cursor(position);
+    }
+
+    /**
+     * The property value encoded as by the encoder: a text or an Integer.
+     */
+    Object propertyValue(long encoded) {
+        if ((encoded & 1) == INTEGER_VALUE) {
+            int zigzag = (int) (encoded >>> 1);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        } else {
+            return string((int) (encoded >>> 1));
+        }
+    }
+
+    String string(int id) {
+        // racy but harmless: two threads would decode equal strings
+        String string = at(strings, id);
+        if (string == null) {
+            Cursor cursor = new Cursor(stringOffsets[id]);
+            int length = cursor.readVarInt();
+            string = new String(data, cursor.position, length, StandardCharsets.UTF_8);
+            strings[id] = string;
+        }
+        return string;
+    }
+
+    Entity entity(int id) {
+        return at(entities, id);
+    }
+
+    /**
+     * The entities of the metamodel, as read from the header or resolved against the known ones.
+     */
+    public List<Entity> getEntities() {
+        return entities;
+    }
+
+    public OrderedElement getRoot() {
+        return new BinaryElement(this, rootOffset, Optional.empty());
+    }
+
+    public int getSizeInBytes() {
+        return data.length;
+    }
+
+    /**
+     * Number of distinct texts in the string table.
+     */
+    public int getStrings() {
+        return strings.length;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryTree{" +
+                "bytes=" + data.length +
+                ", strings=" + strings.length +
+                ", entities=" + entities.size() +
+                '}';
+    }
+}
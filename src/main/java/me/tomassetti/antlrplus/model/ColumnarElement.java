@@ -0,0 +1,192 @@
+package me.tomassetti.antlrplus.model;
+
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static me.tomassetti.antlrplus.model.ColumnarTree.*;
+
+/**
+ * Flyweight exposing one element row of a ColumnarTree. It holds only the tree and the row: two flyweights of the
+ * same row are equal.
+ */
+public final class ColumnarElement extends AbstractOrderedElement {
+
+    private final ColumnarTree tree;
+    private final int row;
+
+    ColumnarElement(ColumnarTree tree, int row) {
+        super(tree.entity(tree.get(ENTITY, row)), Optional.empty());
+        this.tree = tree;
+        this.row = row;
+    }
+
+    public ColumnarTree getTree() {
+        return tree;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    private boolean hasPositionColumns() {
+        return tree.get(START_LINE, row) != NO_POSITION;
+    }
+
+    private int positionColumn(Property property) {
+        if (!hasPositionColumns()) {
+            return NONE;
+        }
+        int index = tree.getPositionProperties().indexOf(property);
+        return index == -1 ? NONE : START_LINE + index;
+    }
+
+    /**
+     * The position properties stored in the columns, in the order in which they were found among the values.
+     */
+    private List<Property> positionsInColumns() {
+        List<Property> positions = new ArrayList<>();
+        if (hasPositionColumns()) {
+            for (Property property : type().getProperties()) {
+                if (tree.getPositionProperties().contains(property)) {
+                    positions.add(property);
+                }
+            }
+        }
+        return positions;
+    }
+
+    private Object valueOf(int valueRow) {
+        int kind = tree.get(ENTITY, valueRow);
+        if (kind >= 0) {
+            return new ColumnarElement(tree, valueRow);
+        } else if (kind == INTEGER_VALUE) {
+            return tree.get(VALUE, valueRow);
+        } else {
+            return tree.text(tree.get(VALUE, valueRow));
+        }
+    }
+
+    private List<Object> valuesOf(Feature feature) {
+        List<Object> values = new ArrayList<>();
+        int featureId = tree.featureId(feature);
+        if (featureId == NONE) {
+            return values;
+        }
+        for (int child = tree.get(FIRST_CHILD, row); child != NONE; child = tree.get(NEXT_SIBLING, child)) {
+            if (tree.get(FEATURE, child) == featureId) {
+                values.add(valueOf(child));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Optional<Element> getParent() {
+        int parent = tree.get(PARENT, row);
+        return parent == NONE ? Optional.empty() : Optional.of(new ColumnarElement(tree, parent));
+    }
+
+    @Override
+    public Optional<Element> getSingleRelation(Relation relation) {
+        if (!relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Object> values = valuesOf(relation);
+        return values.isEmpty() ? Optional.empty() : Optional.of((Element) values.get(0));
+    }
+
+    @Override
+    public List<Element> getMultipleRelation(Relation relation) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Element> elements = new ArrayList<>();
+        for (Object value : valuesOf(relation)) {
+            elements.add((Element) value);
+        }
+        return elements;
+    }
+
+    @Override
+    public int getMultipleRelationCount(Relation relation) {
+        return getMultipleRelation(relation).size();
+    }
+
+    @Override
+    public Element getMultipleRelationAt(Relation relation, int index) {
+        return getMultipleRelation(relation).get(index);
+    }
+
+    @Override
+    public Optional<Object> getSingleProperty(Property property) {
+        if (!property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        int column = positionColumn(property);
+        if (column != NONE) {
+            return Optional.of(tree.get(column, row));
+        }
+        List<Object> values = valuesOf(property);
+        return values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    @Override
+    public List<Object> getMultipleProperty(Property property) {
+        if (property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        return valuesOf(property);
+    }
+
+    @Override
+    public List<ValueReference> getValuesOrder() {
+        List<ValueReference> valuesOrder = new ArrayList<>();
+        for (Property position : positionsInColumns()) {
+            valuesOrder.add(new ValueReference(position, 0));
+        }
+        for (int child = tree.get(FIRST_CHILD, row); child != NONE; child = tree.get(NEXT_SIBLING, child)) {
+            valuesOrder.add(new ValueReference(tree.feature(tree.get(FEATURE, child)), tree.get(INDEX, child)));
+        }
+        return valuesOrder;
+    }
+
+    @Override
+    public List<Pair<ValueReference, Object>> getOrderedValues() {
+        List<Pair<ValueReference, Object>> values = new ArrayList<>();
+        for (Property position : positionsInColumns()) {
+            values.add(new Pair<>(new ValueReference(position, 0), tree.get(positionColumn(position), row)));
+        }
+        for (int child = tree.get(FIRST_CHILD, row); child != NONE; child = tree.get(NEXT_SIBLING, child)) {
+            values.add(new Pair<>(new ValueReference(tree.feature(tree.get(FEATURE, child)), tree.get(INDEX, child)), valueOf(child)));
+        }
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ColumnarElement)) return false;
+
+        ColumnarElement that = (ColumnarElement) o;
+        return row == that.row && tree == that.tree;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(tree) + row;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnarElement{" +
+                "entity=" + entity.getName() +
+                ", row=" + row +
+                '}';
+    }
+}
@@ -0,0 +1,427 @@
+package me.tomassetti.antlrplus.model;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Multiplicity;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A whole element tree stored as parallel columns of ints inside a single ByteBuffer, which can be on the heap,
+ * direct or memory-mapped. Every value of the tree (the root, each child element and each property value) is a row;
+ * the rows of the values of an element are chained, in order, through firstChild and nextSibling.
+ *
+ * Texts are stored once, in a string table placed after the columns. Entities and features are referred by id, the
+ * metamodel objects are kept on the heap.
+ *
+ * The elements are exposed through flyweights (ColumnarElement) created when requested.
+ *
+ * A tree can be written to a stream and read back (see writeTo and readFrom): the metamodel is written by name and
+ * resolved against the entities given when reading.
+ */
+public final class ColumnarTree {
+
+    public enum Backing {
+        HEAP,
+        DIRECT
+    }
+
+    static final int NONE = -1;
+    static final int NO_POSITION = Integer.MIN_VALUE;
+
+    // values of the ENTITY column for rows which are not elements
+    static final int TEXT_VALUE = -1;
+    static final int INTEGER_VALUE = -2;
+
+    static final int FEATURE = 0;
+    static final int INDEX = 1;
+    static final int PARENT = 2;
+    static final int FIRST_CHILD = 3;
+    static final int NEXT_SIBLING = 4;
+    static final int ENTITY = 5;
+    static final int VALUE = 6;
+    static final int START_LINE = 7;
+    static final int START_COLUMN = 8;
+    static final int END_LINE = 9;
+    static final int END_COLUMN = 10;
+    private static final int COLUMNS = 11;
+
+    private static final int MAGIC = 0x41505443;
+    private static final int STREAM_MAGIC = 0x41505453;
+    // magic, rows, strings length
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int rows;
+    private final int stringsOffset;
+    private final List<Entity> entities;
+    private final List<Feature> features;
+    // the entity of the elements holding each feature, to find it by name
+    private final List<Entity> featureOwners;
+    private final Map<Feature, Integer> featureIds = new IdentityHashMap<>();
+    // startLine, startColumn, endLine, endColumn: stored in columns instead of rows
+    private final List<Property> positionProperties;
+
+    private ColumnarTree(ByteBuffer buffer, List<Entity> entities, List<Feature> features, List<Entity> featureOwners,
+                         List<Property> positionProperties) {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a columnar tree");
+        }
+        this.buffer = buffer;
+        this.rows = buffer.getInt(4);
+        this.stringsOffset = HEADER_SIZE + rows * COLUMNS * 4;
+        this.entities = Collections.unmodifiableList(new ArrayList<>(entities));
+        this.features = Collections.unmodifiableList(new ArrayList<>(features));
+        this.featureOwners = Collections.unmodifiableList(new ArrayList<>(featureOwners));
+        for (int i = 0; i < features.size(); i++) {
+            featureIds.put(features.get(i), i);
+        }
+        this.positionProperties = Collections.unmodifiableList(new ArrayList<>(positionProperties));
+    }
+
+    /**
+     * Store the tree on the heap, without position columns.
+     */
+    public static ColumnarTree encode(OrderedElement root) {
+        return encode(root, Collections.emptyList(), Backing.HEAP);
+    }
+
+    /**
+     * The positionProperties (startLine, startColumn, endLine and endColumn, in this order, as
+     * AntlrReflectionMapper.POSITIONS_PROPERTIES) are stored in the position columns of the element rows, when they
+     * are the first values of the element. They can be empty.
+     */
+    public static ColumnarTree encode(OrderedElement root, List<Property> positionProperties, Backing backing) {
+        Encoder encoder = new Encoder(positionProperties);
+        encoder.encode(root);
+        int size = encoder.size();
+        ByteBuffer buffer = backing == Backing.DIRECT ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        encoder.writeTo(buffer);
+        return new ColumnarTree(buffer, encoder.entities, encoder.features, encoder.featureOwners, positionProperties);
+    }
+
+    /**
+     * Store the tree in a memory-mapped file, which is created or overwritten.
+     */
+    public static ColumnarTree encode(OrderedElement root, List<Property> positionProperties, Path file) throws IOException {
+        Encoder encoder = new Encoder(positionProperties);
+        encoder.encode(root);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, encoder.size());
+        }
+        encoder.writeTo(buffer);
+        return new ColumnarTree(buffer, encoder.entities, encoder.features, encoder.featureOwners, positionProperties);
+    }
+
+    private static class Encoder {
+        private final List<Property> positionProperties;
+        private final List<Entity> entities = new ArrayList<>();
+        private final Map<Entity, Integer> entityIds = new IdentityHashMap<>();
+        private final List<Feature> features = new ArrayList<>();
+        private final List<Entity> featureOwners = new ArrayList<>();
+        private final Map<Feature, Integer> featureIds = new IdentityHashMap<>();
+        private final Map<String, Integer> stringOffsets = new HashMap<>();
+        private final List<byte[]> strings = new ArrayList<>();
+        private int stringsLength = 0;
+        private int[][] columns = new int[COLUMNS][256];
+        private int rows = 0;
+
+        Encoder(List<Property> positionProperties) {
+            if (!positionProperties.isEmpty() && positionProperties.size() != END_COLUMN - START_LINE + 1) {
+                throw new IllegalArgumentException("Expected the four position properties, got " + positionProperties);
+            }
+            this.positionProperties = positionProperties;
+        }
+
+        private int entityId(Entity entity) {
+            Integer id = entityIds.get(entity);
+            if (id == null) {
+                id = entities.size();
+                entities.add(entity);
+                entityIds.put(entity, id);
+            }
+            return id;
+        }
+
+        private int featureId(Feature feature, Entity owner) {
+            Integer id = featureIds.get(feature);
+            if (id == null) {
+                id = features.size();
+                features.add(feature);
+                featureOwners.add(owner);
+                featureIds.put(feature, id);
+            }
+            return id;
+        }
+
+        private int text(String text) {
+            Integer offset = stringOffsets.get(text);
+            if (offset == null) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                offset = stringsLength;
+                strings.add(bytes);
+                stringsLength += 4 + bytes.length;
+                stringOffsets.put(text, offset);
+            }
+            return offset;
+        }
+
+        private int newRow(int feature, int index, int parent) {
+            if (rows == columns[0].length) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    columns[c] = Arrays.copyOf(columns[c], rows * 2);
+                }
+            }
+            int row = rows++;
+            columns[FEATURE][row] = feature;
+            columns[INDEX][row] = index;
+            columns[PARENT][row] = parent;
+            columns[FIRST_CHILD][row] = NONE;
+            columns[NEXT_SIBLING][row] = NONE;
+            for (int c = START_LINE; c <= END_COLUMN; c++) {
+                columns[c][row] = NO_POSITION;
+            }
+            return row;
+        }
+
+        /**
+         * The positions can be stored in the columns only if they are the first values, in the order of the
+         * properties of the entity: this is the order in which they are read back.
+         */
+        private int positionsInColumns(OrderedElement element, List<Pair<OrderedElement.ValueReference, Object>> values) {
+            List<Property> expected = new ArrayList<>();
+            for (Property property : element.type().getProperties()) {
+                if (positionProperties.contains(property)) {
+                    expected.add(property);
+                }
+            }
+            if (expected.isEmpty() || expected.size() != positionProperties.size() || values.size() < expected.size()) {
+                return 0;
+            }
+            for (int i = 0; i < expected.size(); i++) {
+                if (!values.get(i).getFirst().getFeature().equals(expected.get(i)) || !(values.get(i).getSecond() instanceof Integer)) {
+                    return 0;
+                }
+            }
+            return expected.size();
+        }
+
+        void encode(OrderedElement root) {
+            encode(root, NONE, 0, NONE);
+        }
+
+        private void encode(OrderedElement element, int feature, int index, int parent) {
+            int row = newRow(feature, index, parent);
+            columns[ENTITY][row] = entityId(element.type());
+            List<Pair<OrderedElement.ValueReference, Object>> values = element.getOrderedValues();
+            int skipped = positionsInColumns(element, values);
+            for (int i = 0; i < skipped; i++) {
+                int column = START_LINE + positionProperties.indexOf(values.get(i).getFirst().getFeature().asProperty());
+                columns[column][row] = (Integer) values.get(i).getSecond();
+            }
+            int previous = NONE;
+            for (int i = skipped; i < values.size(); i++) {
+                Pair<OrderedElement.ValueReference, Object> value = values.get(i);
+                int valueFeature = featureId(value.getFirst().getFeature(), element.type());
+                int valueRow;
+                if (value.getFirst().getFeature().isRelation()) {
+                    valueRow = rows;
+                    encode((OrderedElement) value.getSecond(), valueFeature, value.getFirst().getIndex(), row);
+                } else {
+                    valueRow = newRow(valueFeature, value.getFirst().getIndex(), row);
+                    if (value.getSecond() instanceof Integer) {
+                        columns[ENTITY][valueRow] = INTEGER_VALUE;
+                        columns[VALUE][valueRow] = (Integer) value.getSecond();
+                    } else {
+                        columns[ENTITY][valueRow] = TEXT_VALUE;
+                        columns[VALUE][valueRow] = text(AbstractOrderedElement.propertyValueText(value.getSecond()));
+                    }
+                }
+                if (previous == NONE) {
+                    columns[FIRST_CHILD][row] = valueRow;
+                } else {
+                    columns[NEXT_SIBLING][previous] = valueRow;
+                }
+                previous = valueRow;
+            }
+        }
+
+        int size() {
+            return HEADER_SIZE + rows * COLUMNS * 4 + stringsLength;
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, rows);
+            buffer.putInt(8, stringsLength);
+            int offset = HEADER_SIZE;
+            for (int c = 0; c < COLUMNS; c++) {
+                for (int row = 0; row < rows; row++) {
+                    buffer.putInt(offset, columns[c][row]);
+                    offset += 4;
+                }
+            }
+            ByteBuffer strings = buffer.duplicate();
+            strings.position(offset);
+            for (byte[] bytes : this.strings) {
+                strings.putInt(bytes.length);
+                strings.put(bytes);
+            }
+        }
+    }
+
+    /**
+     * Write the tree, with the names of its entities and features, so that readFrom can rebuild it.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(STREAM_MAGIC);
+        out.writeInt(entities.size());
+        for (Entity entity : entities) {
+            out.writeUTF(entity.getName());
+        }
+        out.writeInt(features.size());
+        for (int i = 0; i < features.size(); i++) {
+            out.writeInt(entities.indexOf(featureOwners.get(i)));
+            out.writeBoolean(features.get(i).isRelation());
+            out.writeUTF(features.get(i).getName());
+        }
+        out.writeInt(positionProperties.size());
+        for (Property position : positionProperties) {
+            out.writeUTF(position.getName());
+        }
+        ByteBuffer content = buffer.duplicate();
+        content.clear();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Read a tree written by writeTo into the heap. The entities (and their features) are looked for by name among
+     * the given ones: an IllegalArgumentException is thrown if the metamodel does not match.
+     */
+    public static ColumnarTree readFrom(InputStream inputStream, Collection<Entity> knownEntities) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != STREAM_MAGIC) {
+            throw new IllegalArgumentException("Not a serialized columnar tree");
+        }
+        Map<String, Entity> entitiesByName = new HashMap<>();
+        for (Entity entity : knownEntities) {
+            entitiesByName.put(entity.getName(), entity);
+        }
+        List<Entity> entities = new ArrayList<>();
+        int entitiesCount = in.readInt();
+        for (int i = 0; i < entitiesCount; i++) {
+            String name = in.readUTF();
+            Entity entity = entitiesByName.get(name);
+            if (entity == null) {
+                throw new IllegalArgumentException("Unknown entity " + name);
+            }
+            entities.add(entity);
+        }
+        List<Feature> features = new ArrayList<>();
+        List<Entity> featureOwners = new ArrayList<>();
+        int featuresCount = in.readInt();
+        for (int i = 0; i < featuresCount; i++) {
+            Entity owner = entities.get(in.readInt());
+            boolean relation = in.readBoolean();
+            String name = in.readUTF();
+            Optional<? extends Feature> feature = relation ? owner.getRelation(name) : owner.getProperty(name);
+            features.add(feature.orElseThrow(() -> new IllegalArgumentException("Unknown feature " + name + " of entity " + owner.getName())));
+            featureOwners.add(owner);
+        }
+        List<Property> positionProperties = new ArrayList<>();
+        int positionsCount = in.readInt();
+        for (int i = 0; i < positionsCount; i++) {
+            positionProperties.add(new Property(in.readUTF(), Property.Datatype.INTEGER, Multiplicity.ONE));
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new ColumnarTree(ByteBuffer.wrap(bytes), entities, features, featureOwners, positionProperties);
+    }
+
+    int get(int column, int row) {
+        return buffer.getInt(HEADER_SIZE + (column * rows + row) * 4);
+    }
+
+    String text(int offset) {
+        int length = buffer.getInt(stringsOffset + offset);
+        byte[] bytes = new byte[length];
+        ByteBuffer strings = buffer.duplicate();
+        strings.position(stringsOffset + offset + 4);
+        strings.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    Entity entity(int id) {
+        return entities.get(id);
+    }
+
+    Feature feature(int id) {
+        return features.get(id);
+    }
+
+    /**
+     * Id of the given feature, NONE if it does not appear in the tree.
+     */
+    int featureId(Feature feature) {
+        Integer id = featureIds.get(feature);
+        if (id == null) {
+            id = features.indexOf(feature);
+        }
+        return id;
+    }
+
+    List<Property> getPositionProperties() {
+        return positionProperties;
+    }
+
+    public OrderedElement getRoot() {
+        return new ColumnarElement(this, 0);
+    }
+
+    /**
+     * Number of rows: elements plus property values.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Bytes used by the columns and the string table.
+     */
+    public int getSizeInBytes() {
+        return buffer.capacity();
+    }
+
+    public boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnarTree{" +
+                "rows=" + rows +
+                ", bytes=" + buffer.capacity() +
+                ", direct=" + buffer.isDirect() +
+                '}';
+    }
+}
@@ -0,0 +1,253 @@
+package me.tomassetti.antlrplus.model;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Self-contained copy of an element tree: it holds only the values visible through the metamodel, so nothing of the
+ * parse tree (contexts, tokens, token stream) is retained.
+ *
+ * Property values are extracted once: everything which is not a number or a boolean is replaced by its text and
+ * equal texts are shared across the tree. Single integer values (e.g., the positions) are stored unboxed. Which
+ * feature each value belongs to is described by a Shape, shared by all the elements with the same sequence of values.
+ */
+public final class ImmutableElement extends AbstractOrderedElement {
+
+    /**
+     * The references of the values of an element, in order, and where each value is stored: a slot s >= 0 is an
+     * index in values, a slot s < 0 is the index -s - 1 in integers.
+     */
+    private static final class Shape {
+        private final Feature[] features;
+        private final int[] indexes;
+        private final int[] slots;
+
+        Shape(Feature[] features, int[] indexes, int[] slots) {
+            this.features = features;
+            this.indexes = indexes;
+            this.slots = slots;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Shape)) return false;
+
+            Shape that = (Shape) o;
+            if (features.length != that.features.length) return false;
+            for (int i = 0; i < features.length; i++) {
+                if (features[i] != that.features[i]) return false;
+            }
+            return Arrays.equals(indexes, that.indexes) && Arrays.equals(slots, that.slots);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 0;
+            for (Feature feature : features) {
+                result = 31 * result + System.identityHashCode(feature);
+            }
+            result = 31 * result + Arrays.hashCode(indexes);
+            return 31 * result + Arrays.hashCode(slots);
+        }
+    }
+
+    /**
+     * What is shared by the elements of a tree while it is materialized.
+     */
+    private static final class Materialization {
+        private final Map<Shape, Shape> shapes = new HashMap<>();
+        private final Map<String, String> texts = new HashMap<>();
+
+        Shape shape(Shape shape) {
+            Shape shared = shapes.putIfAbsent(shape, shape);
+            return shared == null ? shape : shared;
+        }
+
+        String text(String text) {
+            String shared = texts.putIfAbsent(text, text);
+            return shared == null ? text : shared;
+        }
+    }
+
+    private static final Object[] NO_VALUES = new Object[0];
+    private static final int[] NO_INTEGERS = new int[0];
+
+    private final Shape shape;
+    private final Object[] values;
+    private final int[] integers;
+
+    private ImmutableElement(OrderedElement source, Optional<OrderedElement> parent, Materialization materialization) {
+        super(source.type(), parent);
+        List<Pair<ValueReference, Object>> sourceValues = source.getOrderedValues();
+        int n = sourceValues.size();
+        Feature[] features = new Feature[n];
+        int[] indexes = new int[n];
+        int[] slots = new int[n];
+        int integersCount = 0;
+        for (int i = 0; i < n; i++) {
+            Pair<ValueReference, Object> value = sourceValues.get(i);
+            features[i] = value.getFirst().getFeature();
+            indexes[i] = value.getFirst().getIndex();
+            if (isStoredAsInteger(features[i], value.getSecond())) {
+                integersCount++;
+            }
+        }
+        Object[] values = n == integersCount ? NO_VALUES : new Object[n - integersCount];
+        int[] integers = integersCount == 0 ? NO_INTEGERS : new int[integersCount];
+        // the children share the same parent instance
+        Optional<OrderedElement> self = Optional.of(this);
+        int valuesCount = 0;
+        integersCount = 0;
+        for (int i = 0; i < n; i++) {
+            Object value = sourceValues.get(i).getSecond();
+            if (isStoredAsInteger(features[i], value)) {
+                integers[integersCount] = (Integer) value;
+                slots[i] = -(++integersCount);
+            } else {
+                if (features[i].isRelation()) {
+                    values[valuesCount] = new ImmutableElement((OrderedElement) value, self, materialization);
+                } else {
+                    values[valuesCount] = extractPropertyValue(value, materialization);
+                }
+                slots[i] = valuesCount++;
+            }
+        }
+        this.shape = materialization.shape(new Shape(features, indexes, slots));
+        this.values = values;
+        this.integers = integers;
+    }
+
+    /**
+     * Copy the whole tree in one traversal. Once it has been materialized the source tree (and the parse tree behind
+     * it) can be discarded.
+     */
+    public static ImmutableElement materialize(OrderedElement root) {
+        if (root instanceof ImmutableElement) {
+            return (ImmutableElement) root;
+        }
+        return new ImmutableElement(root, Optional.empty(), new Materialization());
+    }
+
+    private static boolean isStoredAsInteger(Feature feature, Object value) {
+        return value instanceof Integer && feature.isProperty() && feature.asProperty().isSingle();
+    }
+
+    private static Object extractPropertyValue(Object value, Materialization materialization) {
+        if (value instanceof Number || value instanceof Boolean) {
+            return value;
+        } else {
+            return materialization.text(propertyValueText(value));
+        }
+    }
+
+    private Object valueAt(int i) {
+        int slot = shape.slots[i];
+        return slot >= 0 ? values[slot] : Integer.valueOf(integers[-slot - 1]);
+    }
+
+    private static boolean sameFeature(Feature a, Feature b) {
+        return a == b || a.equals(b);
+    }
+
+    @Override
+    public Optional<Element> getSingleRelation(Relation relation) {
+        if (!relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < shape.features.length; i++) {
+            if (sameFeature(shape.features[i], relation)) {
+                return Optional.of((Element) valueAt(i));
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Element> getMultipleRelation(Relation relation) {
+        if (relation.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Element> elements = new ArrayList<>();
+        for (int i = 0; i < shape.features.length; i++) {
+            if (sameFeature(shape.features[i], relation)) {
+                elements.add((Element) valueAt(i));
+            }
+        }
+        return elements;
+    }
+
+    @Override
+    public int getMultipleRelationCount(Relation relation) {
+        return getMultipleRelation(relation).size();
+    }
+
+    @Override
+    public Element getMultipleRelationAt(Relation relation, int index) {
+        return getMultipleRelation(relation).get(index);
+    }
+
+    @Override
+    public Optional<Object> getSingleProperty(Property property) {
+        if (!property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < shape.features.length; i++) {
+            if (sameFeature(shape.features[i], property)) {
+                return Optional.of(valueAt(i));
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Object> getMultipleProperty(Property property) {
+        if (property.isSingle()) {
+            throw new IllegalArgumentException();
+        }
+        List<Object> result = new ArrayList<>();
+        for (int i = 0; i < shape.features.length; i++) {
+            if (sameFeature(shape.features[i], property)) {
+                result.add(valueAt(i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<ValueReference> getValuesOrder() {
+        List<ValueReference> valuesOrder = new ArrayList<>(shape.features.length);
+        for (int i = 0; i < shape.features.length; i++) {
+            valuesOrder.add(new ValueReference(shape.features[i], shape.indexes[i]));
+        }
+        return Collections.unmodifiableList(valuesOrder);
+    }
+
+    @Override
+    public List<Pair<ValueReference, Object>> getOrderedValues() {
+        List<Pair<ValueReference, Object>> orderedValues = new ArrayList<>(shape.features.length);
+        for (int i = 0; i < shape.features.length; i++) {
+            orderedValues.add(new Pair<>(new ValueReference(shape.features[i], shape.indexes[i]), valueAt(i)));
+        }
+        return Collections.unmodifiableList(orderedValues);
+    }
+
+    @Override
+    public String toString() {
+        return "ImmutableElement{" +
+                "entity=" + entity.getName() +
+                ", values=" + shape.features.length +
+                '}';
+    }
+}
@@ -1,7 +1,11 @@
 package me.tomassetti.antlrplus.model;
 
 import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.util.Pair;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -55,4 +59,32 @@ public interface OrderedElement extends Element {
 
     List<ValueReference> getValuesOrder();
 
+    /**
+     * The values, in the same order as getValuesOrder, each one paired with its reference.
+     * Property values are returned as they are, relation values are Elements.
+     */
+    default List<Pair<ValueReference, Object>> getOrderedValues() {
+        List<Pair<ValueReference, Object>> values = new ArrayList<>();
+        for (ValueReference valueReference : getValuesOrder()) {
+            Object value;
+            if (valueReference.getFeature().isProperty()) {
+                Property property = valueReference.getFeature().asProperty();
+                if (property.isSingle()) {
+                    value = getSingleProperty(property).get();
+                } else {
+                    value = getMultipleProperty(property).get(valueReference.getIndex());
+                }
+            } else {
+                Relation relation = valueReference.getFeature().asRelation();
+                if (relation.isSingle()) {
+                    value = getSingleRelation(relation).get();
+                } else {
+                    value = getMultipleRelation(relation).get(valueReference.getIndex());
+                }
+            }
+            values.add(new Pair<>(valueReference, value));
+        }
+        return values;
+    }
+
 }
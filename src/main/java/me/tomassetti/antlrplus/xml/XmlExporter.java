@@ -1,12 +1,10 @@
 package me.tomassetti.antlrplus.xml;
 
+import me.tomassetti.antlrplus.export.Exporter;
+import me.tomassetti.antlrplus.metamodel.Feature;
 import me.tomassetti.antlrplus.metamodel.Property;
-import me.tomassetti.antlrplus.metamodel.Relation;
-import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
-import me.tomassetti.antlrplus.model.Element;
 import me.tomassetti.antlrplus.model.OrderedElement;
-import org.antlr.v4.runtime.ParserRuleContext;
-import org.antlr.v4.runtime.tree.ParseTree;
+import me.tomassetti.antlrplus.util.Pair;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
@@ -15,17 +13,29 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-public class XmlExporter {
+/**
+ * Exports element trees as XML: each element is a node named after its role, with its type as an attribute, and
+ * each property value is a node or an attribute, according to its PropertySetting. Nodes hold their value in a CDATA
+ * section, unless told otherwise.
+ *
+ * toXml and toXmlString build a DOM document. writeXml and toXmlFile instead stream the nodes to their destination
+ * as they are visited, through an XMLStreamWriter, without keeping anything but the path to the current element:
+ * the text is the same as toXmlString's, but for tabs, newlines and control chars within attribute values, which
+ * are written as they are instead of as character references.
+ */
+public class XmlExporter extends Exporter {
 
     public enum PropertySetting {
         AS_NODE,
@@ -33,69 +43,74 @@ public class XmlExporter {
         AS_ATTRIBUTE
     }
 
-    public static final String ROOT_ROLE = "root";
+    private static final String INDENTATION = "    ";
+    private static final String LINE_SEPARATOR = System.lineSeparator();
 
-    private boolean useCDataByDefault = true;
-    private boolean avoidRedundantType = false;
+    // looking up the factories is expensive and their products are not thread-safe: each thread keeps its own
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    private static final ThreadLocal<Transformer> TRANSFORMER = ThreadLocal.withInitial(() -> {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+            return transformer;
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    private static final ThreadLocal<XMLOutputFactory> OUTPUT_FACTORY = ThreadLocal.withInitial(XMLOutputFactory::newInstance);
 
-    public void setAvoidRedundantType(boolean avoidRedundantType) {
-        this.avoidRedundantType = avoidRedundantType;
-    }
+    private boolean useCDataByDefault = true;
+    private Map<Property, Boolean> useCData = new HashMap<>();
 
-    public void doNotPrintPositions() {
-        addPropertyToNotPrint(AntlrReflectionMapper.START_LINE.getName());
-        addPropertyToNotPrint(AntlrReflectionMapper.START_COLUMN.getName());
-        addPropertyToNotPrint(AntlrReflectionMapper.END_LINE.getName());
-        addPropertyToNotPrint(AntlrReflectionMapper.END_COLUMN.getName());
+    @Override
+    public XmlExporter freeze() {
+        super.freeze();
+        useCData = Collections.unmodifiableMap(useCData);
+        return this;
     }
 
     public void setUseCDataByDefault(boolean useCDataByDefault) {
+        checkNotFrozen();
         this.useCDataByDefault = useCDataByDefault;
     }
 
-    private Map<Property, PropertySetting> propertySettings = new HashMap<>();
-
-    private boolean printProperties = true;
-
-    private Set<String> propertiesToNotPrint = new HashSet<>();
-
-    public void addPropertyToNotPrint(String propertyName) {
-        this.propertiesToNotPrint.add(propertyName);
-    }
-
-    public void setPrintProperties(boolean printProperties) {
-        this.printProperties = printProperties;
-    }
-
-    public Node toXml(OrderedElement astNode, String role) {
-        return toXml(astNode, createDocument(), role);
-    }
-
     public void setPropertySetting(Property property, PropertySetting setting) {
-        if (!property.isSingle() && setting==PropertySetting.AS_ATTRIBUTE) {
-            throw new IllegalArgumentException("Single property cannot be configured to be printed as attributes");
+        if (setting == PropertySetting.AS_ATTRIBUTE) {
+            setPropertySetting(property, Exporter.PropertySetting.AS_ATTRIBUTE);
+        } else {
+            setPropertySetting(property, Exporter.PropertySetting.AS_NODE);
+            useCData.put(property, setting == PropertySetting.AS_NODE_WITH_CDATA);
         }
-        propertySettings.put(property, setting);
     }
 
-    private PropertySetting getPropertySetting(Property property) {
-        if (propertySettings.containsKey(property)) {
-            return propertySettings.get(property);
-        } else {
-            if (useCDataByDefault) {
-                return PropertySetting.AS_NODE_WITH_CDATA;
-            } else {
-                return PropertySetting.AS_NODE;
-            }
-        }
+    /**
+     * A property set AS_NODE this way uses CDATA if useCDataByDefault says so.
+     */
+    @Override
+    public void setPropertySetting(Property property, Exporter.PropertySetting setting) {
+        super.setPropertySetting(property, setting);
+        useCData.remove(property);
     }
 
-    private String propertyValueToString(Object propertyValue) {
-        if (propertyValue instanceof ParseTree) {
-            return ((ParseTree)propertyValue).getText();
-        } else {
-            return propertyValue.toString();
+    private PropertySetting xmlPropertySetting(Property property) {
+        if (getPropertySetting(property) == Exporter.PropertySetting.AS_ATTRIBUTE) {
+            return PropertySetting.AS_ATTRIBUTE;
         }
+        return useCData.getOrDefault(property, useCDataByDefault) ? PropertySetting.AS_NODE_WITH_CDATA : PropertySetting.AS_NODE;
+    }
+
+    public Node toXml(OrderedElement astNode, String role) {
+        return toXml(astNode, createDocument(), role);
     }
 
     private Node propertyValueNode(Object value, Document document, String role, boolean useCdata) {
@@ -108,49 +123,32 @@ public class XmlExporter {
         return node;
     }
 
-    private Object getPropertyValue(OrderedElement astNode, OrderedElement.ValueReference valueReference) {
-        Property property = valueReference.getFeature().asProperty();
-        if (property.isSingle()) {
-            return astNode.getSingleProperty(property).get();
-        } else {
-            return astNode.getMultipleProperty(property).get(valueReference.getIndex());
-        }
-    }
-
-    private OrderedElement getRelationValue(OrderedElement astNode, OrderedElement.ValueReference valueReference) {
-        Relation relation = valueReference.getFeature().asRelation();
-        if (relation.isSingle()) {
-            return (OrderedElement) astNode.getSingleRelation(relation).get();
-        } else {
-            return (OrderedElement) astNode.getMultipleRelation(relation).get(valueReference.getIndex());
-        }
-    }
-
     private Node toXml(OrderedElement astNode, Document document, String role) {
         org.w3c.dom.Element node = document.createElement(role);
-        if (!avoidRedundantType || !role.toLowerCase().equals(astNode.type().getName().toLowerCase())) {
+        if (isTypePrinted(astNode, role)) {
             node.setAttribute("type", astNode.type().getName());
         }
-        astNode.getValuesOrder().forEach(valueReference -> {
+        astNode.getOrderedValues().forEach(orderedValue -> {
+            OrderedElement.ValueReference valueReference = orderedValue.getFirst();
             if (valueReference.getFeature().isProperty()) {
-                if (printProperties && !propertiesToNotPrint.contains(valueReference.getFeature().getName())) {
-                    PropertySetting ps = getPropertySetting(valueReference.getFeature().asProperty());
+                if (isPrinted(valueReference.getFeature())) {
+                    PropertySetting ps = xmlPropertySetting(valueReference.getFeature().asProperty());
                     switch (ps) {
                         case AS_NODE:
                         case AS_NODE_WITH_CDATA:
-                            node.appendChild(propertyValueNode(getPropertyValue(astNode, valueReference),
+                            node.appendChild(propertyValueNode(orderedValue.getSecond(),
                                     document, valueReference.getFeature().getName(), ps == PropertySetting.AS_NODE_WITH_CDATA));
                             break;
                         case AS_ATTRIBUTE:
                             node.setAttribute(valueReference.getFeature().getName(),
-                                    propertyValueToString(getPropertyValue(astNode, valueReference)));
+                                    propertyValueToString(orderedValue.getSecond()));
                             break;
                         default:
                             throw new RuntimeException("Unknown value: " + ps);
                     }
                 }
             } else {
-                node.appendChild(toXml(getRelationValue(astNode, valueReference), document, valueReference.getFeature().getName()));
+                node.appendChild(toXml((OrderedElement) orderedValue.getSecond(), document, valueReference.getFeature().getName()));
             }
         });
         return node;
@@ -163,14 +161,9 @@ public class XmlExporter {
 
     private String serialize(Node node, Document document) {
         try {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
             StringWriter writer = new StringWriter();
             document.appendChild(node);
-            transformer.transform(new DOMSource(document), new StreamResult(writer));
+            TRANSFORMER.get().transform(new DOMSource(document), new StreamResult(writer));
             String output = writer.getBuffer().toString();
             return output;
         } catch (TransformerException e) {
@@ -179,27 +172,137 @@ public class XmlExporter {
     }
 
     private Document createDocument() {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
+        return DOCUMENT_BUILDER.get().newDocument();
+    }
+
+    /**
+     * Write the element as toXmlString would print it, in UTF-8. The stream is flushed, not closed.
+     */
+    public void writeXml(OrderedElement astNode, String role, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        writeXml(astNode, role, writer);
+        writer.flush();
+    }
 
-        DocumentBuilder builder = null;
+    /**
+     * Write the element as toXmlString would print it. The writer is flushed, not closed.
+     */
+    public void writeXml(OrderedElement astNode, String role, Writer writer) throws IOException {
         try {
-            builder = factory.newDocumentBuilder();
-            Document document = builder.newDocument();
-            return document;
-        } catch (ParserConfigurationException e) {
+            XMLStreamWriter xmlWriter = OUTPUT_FACTORY.get().createXMLStreamWriter(writer);
+            write(astNode, role, xmlWriter, 0);
+            xmlWriter.writeCharacters(LINE_SEPARATOR);
+            xmlWriter.flush();
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
             throw new RuntimeException(e);
         }
     }
 
-    public void toXmlFile(OrderedElement astNode, File file, String role) throws FileNotFoundException {
-        try (PrintWriter out = new PrintWriter(file)) {
-            out.println(toXmlString(astNode, role));
+    private void write(OrderedElement astNode, String role, XMLStreamWriter writer, int depth) throws XMLStreamException {
+        List<Pair<OrderedElement.ValueReference, Object>> values = astNode.getOrderedValues();
+        // the attributes come first and, as in the DOM, sorted by name
+        Map<String, String> attributes = new TreeMap<>();
+        if (isTypePrinted(astNode, role)) {
+            attributes.put("type", astNode.type().getName());
+        }
+        boolean hasChildren = false;
+        for (Pair<OrderedElement.ValueReference, Object> value : values) {
+            Feature feature = value.getFirst().getFeature();
+            if (feature.isRelation()) {
+                hasChildren = true;
+            } else if (isPrinted(feature)) {
+                if (getPropertySetting(feature.asProperty()) == Exporter.PropertySetting.AS_ATTRIBUTE) {
+                    attributes.put(feature.getName(), propertyValueToString(value.getSecond()));
+                } else {
+                    hasChildren = true;
+                }
+            }
+        }
+        if (hasChildren) {
+            writer.writeStartElement(role);
+        } else {
+            writer.writeEmptyElement(role);
+        }
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writer.writeAttribute(attribute.getKey(), attribute.getValue());
+        }
+        if (!hasChildren) {
+            return;
+        }
+        for (Pair<OrderedElement.ValueReference, Object> value : values) {
+            Feature feature = value.getFirst().getFeature();
+            if (feature.isRelation()) {
+                indent(writer, depth + 1);
+                write((OrderedElement) value.getSecond(), feature.getName(), writer, depth + 1);
+            } else if (isPrinted(feature)) {
+                PropertySetting setting = xmlPropertySetting(feature.asProperty());
+                if (setting != PropertySetting.AS_ATTRIBUTE) {
+                    indent(writer, depth + 1);
+                    writePropertyValue(propertyValueToString(value.getSecond()), feature.getName(), writer,
+                            setting == PropertySetting.AS_NODE_WITH_CDATA);
+                }
+            }
+        }
+        indent(writer, depth);
+        writer.writeEndElement();
+    }
+
+    private static void indent(XMLStreamWriter writer, int depth) throws XMLStreamException {
+        writer.writeCharacters(LINE_SEPARATOR);
+        for (int i = 0; i < depth; i++) {
+            writer.writeCharacters(INDENTATION);
+        }
+    }
+
+    private static void writePropertyValue(String value, String role, XMLStreamWriter writer, boolean useCdata) throws XMLStreamException {
+        if (value.isEmpty()) {
+            writer.writeEmptyElement(role);
+            return;
+        }
+        writer.writeStartElement(role);
+        if (useCdata) {
+            // a CDATA section cannot contain its end: it is split there, as the DOM serializer does
+            int start = 0;
+            for (int end = value.indexOf("]]>"); end != -1; end = value.indexOf("]]>", start)) {
+                writer.writeCData(value.substring(start, end + 2));
+                start = end + 2;
+            }
+            writer.writeCData(value.substring(start));
+        } else {
+            int start = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < ' ' && c != '\t' && c != '\n') {
+                    writer.writeCharacters(value.substring(start, i));
+                    writer.writeEntityRef("#" + (int) c);
+                    start = i + 1;
+                }
+            }
+            writer.writeCharacters(value.substring(start));
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Stream the element to the file, in the default charset, as toXmlString would print it.
+     */
+    public void toXmlFile(OrderedElement astNode, File file, String role) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)))) {
+            writeXml(astNode, role, out);
+            out.write(LINE_SEPARATOR);
         }
     }
 
-    public void toXmlFile(OrderedElement astNode, File file) throws FileNotFoundException {
+    public void toXmlFile(OrderedElement astNode, File file) throws IOException {
         toXmlFile(astNode, file, ROOT_ROLE);
     }
 
+    @Override
+    protected void exportToFile(OrderedElement astNode, File file) throws IOException {
+        toXmlFile(astNode, file);
+    }
+
 }
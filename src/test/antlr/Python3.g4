@@ -58,7 +58,31 @@ tokens { INDENT, DEDENT }
   @Override
   public Token nextToken() {
 
+    // Hand out the pending tokens before lexing more: the lexer does not run ahead, so that it can be restarted
+    // between two tokens.
+    if (!tokens.isEmpty()) {
+      return tokens.poll();
+    }
+
     // Check if the end-of-file is ahead and there are still some DEDENTS expected.
+    emitDedentsAtEof();
+
+    Token next = super.nextToken();
+
+    if (next.getChannel() == Token.DEFAULT_CHANNEL) {
+      // Keep track of the last token on the default channel.
+      this.lastToken = next;
+    }
+
+    // The end-of-file can also be reached while skipping, in the same call.
+    if (next.getType() == EOF) {
+      emitDedentsAtEof();
+    }
+
+    return tokens.isEmpty() ? next : tokens.poll();
+  }
+
+  private void emitDedentsAtEof() {
     if (_input.LA(1) == EOF && !this.indents.isEmpty()) {
 
       // Remove any trailing EOF tokens from our buffer.
@@ -80,15 +104,57 @@ tokens { INDENT, DEDENT }
       // Put the EOF back on the token stream.
       this.emit(commonToken(Python3Parser.EOF, "<EOF>"));
     }
+  }
 
-    Token next = super.nextToken();
+  // The state between two tokens, to restart the lexer in the middle of a document: null while tokens are pending.
+  // Only the line of the last token is kept, relative to the current line, so that the state can be restored after
+  // the lines before have been moved.
+  public Object saveState() {
+    if (!this.tokens.isEmpty()) {
+      return null;
+    }
+    Integer lastTokenLine = this.lastToken == null ? null : this.lastToken.getLine() - getLine();
+    return new State(new java.util.ArrayList<>(this.indents), this.opened, lastTokenLine);
+  }
 
-    if (next.getChannel() == Token.DEFAULT_CHANNEL) {
-      // Keep track of the last token on the default channel.
-      this.lastToken = next;
+  public void restoreState(Object state) {
+    State s = (State) state;
+    this.tokens.clear();
+    this.indents.clear();
+    this.indents.addAll(s.indents);
+    this.opened = s.opened;
+    this.lastToken = null;
+    if (s.lastTokenLine != null) {
+      CommonToken last = new CommonToken(Token.INVALID_TYPE);
+      last.setLine(getLine() + s.lastTokenLine);
+      this.lastToken = last;
     }
+  }
 
-    return tokens.isEmpty() ? next : tokens.poll();
+  private static final class State {
+    private final java.util.List<Integer> indents;
+    private final int opened;
+    private final Integer lastTokenLine;
+
+    State(java.util.List<Integer> indents, int opened, Integer lastTokenLine) {
+      this.indents = indents;
+      this.opened = opened;
+      this.lastTokenLine = lastTokenLine;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+        return false;
+      }
+      State that = (State) o;
+      return that.opened == opened && that.indents.equals(indents) && java.util.Objects.equals(that.lastTokenLine, lastTokenLine);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * indents.hashCode() + opened) + java.util.Objects.hashCode(lastTokenLine);
+    }
   }
 
   private Token createDedent() {
@@ -0,0 +1,85 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.BatchParser;
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.python.Python3Parser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Parses a directory of Python files one at a time, as a hand-written loop would, and through BatchParser with
+ * different executors. The speed-up depends on the number of cores.
+ */
+public class BatchParsingBenchmark {
+
+    private static final int FILES = 64;
+
+    private static int sink;
+
+    private static void report(String label, long nanos, List<BatchParser.Result<Python3Parser.File_inputContext>> results) {
+        long slowest = 0;
+        int failures = 0;
+        for (BatchParser.Result<Python3Parser.File_inputContext> result : results) {
+            slowest = Math.max(slowest, result.getNanos());
+            failures += result.isSuccess() ? 0 : 1;
+        }
+        System.out.println(String.format("%-40s %8.1f ms (slowest file %6.1f ms, %d failures)",
+                label, nanos / 1e6, slowest / 1e6, failures));
+    }
+
+    private static long batch(BatchParser<Python3Parser.File_inputContext> batchParser, List<Path> files) {
+        long start = System.nanoTime();
+        batchParser.parseAll(files, result -> sink += result.getRoot().map(root -> root.getChildCount()).orElse(0));
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("Cores: " + Runtime.getRuntime().availableProcessors());
+        String code = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        Path directory = Files.createTempDirectory("antlr-plus-batch");
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            Path file = directory.resolve("file" + i + ".py");
+            Files.write(file, code.getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = BenchmarkSupport.pythonFacade();
+        ExecutorService fixed = Executors.newFixedThreadPool(4);
+        try {
+            // warm-up
+            facade.parseAll(files);
+
+            long start = System.nanoTime();
+            for (Path file : files) {
+                sink += facade.parseFile(file).getChildCount();
+            }
+            System.out.println(String.format("%-40s %8.1f ms", "loop", (System.nanoTime() - start) / 1e6));
+
+            start = System.nanoTime();
+            List<BatchParser.Result<Python3Parser.File_inputContext>> results = facade.parseAll(files);
+            report("parseAll, common pool", System.nanoTime() - start, results);
+
+            BatchParser<Python3Parser.File_inputContext> batchParser = new BatchParser<>(facade);
+            batchParser.setExecutor(fixed);
+            batchParser.setMaxInFlight(8);
+            batchParser.setOrder(BatchParser.Order.COMPLETION);
+            System.out.println(String.format("%-40s %8.1f ms", "streamed, 4 threads, 8 in flight", batch(batchParser, files) / 1e6));
+            batchParser.setOrder(BatchParser.Order.INPUT);
+            System.out.println(String.format("%-40s %8.1f ms", "streamed in order, 4 threads, 8 in flight", batch(batchParser, files) / 1e6));
+        } finally {
+            fixed.shutdown();
+            for (Path file : files) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,114 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.TokenStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Helpers shared by the benchmarks. They are plain main classes, not run as part of the tests.
+ */
+class BenchmarkSupport {
+
+    static final String COMMON_PY = "/me/tomassetti/antlrplus/python/common.py";
+
+    private BenchmarkSupport() {
+
+    }
+
+    static ParserFacade<Python3Parser.File_inputContext, Python3Parser> pythonFacade() {
+        return new ParserFacade<Python3Parser.File_inputContext, Python3Parser>() {
+            @Override
+            protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+                return new Python3Lexer(antlrInputStream);
+            }
+
+            @Override
+            protected Python3Parser getParser(TokenStream tokens) {
+                return new Python3Parser(tokens);
+            }
+
+            @Override
+            protected Python3Parser.File_inputContext getRoot(Python3Parser parser) {
+                return parser.file_input();
+            }
+
+            @Override
+            protected Optional<Object> saveLexerState(Lexer lexer) {
+                return Optional.ofNullable(((Python3Lexer) lexer).saveState());
+            }
+
+            @Override
+            protected void restoreLexerState(Lexer lexer, Object state) {
+                ((Python3Lexer) lexer).restoreState(state);
+            }
+        };
+    }
+
+    static String resource(String path) {
+        try (InputStream inputStream = BenchmarkSupport.class.getResourceAsStream(path)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Run the task for the given number of iterations, after the same number of warm-up iterations,
+     * and return the average time per iteration in nanoseconds.
+     */
+    static double time(int iterations, Runnable task) {
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    static void report(String label, double nanos) {
+        System.out.println(String.format("%-40s %12.1f ns", label, nanos));
+    }
+
+    static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,73 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.BinaryTree;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.util.Pair;
+import me.tomassetti.antlrplus.xml.XmlExporter;
+
+import java.util.List;
+
+/**
+ * Compares parsing again copies of a Python file with loading their BinaryTree, to read a single statement or the
+ * whole tree. Also reports the cost and the size of the encoding, next to the XML.
+ */
+public class BinaryTreeBenchmark {
+
+    private static final int COPIES = 32;
+
+    private static int sink;
+
+    private static int visit(OrderedElement element) {
+        int values = 1;
+        for (Pair<OrderedElement.ValueReference, Object> value : element.getOrderedValues()) {
+            if (value.getSecond() instanceof Element) {
+                values += visit((OrderedElement) value.getSecond());
+            } else {
+                values += value.getSecond().hashCode() & 1;
+            }
+        }
+        return values;
+    }
+
+    private static int visitMiddleStatement(OrderedElement root) {
+        List<Element> statements = root.getMultipleRelation(root.type().getRelation("stmt").get());
+        return visit((OrderedElement) statements.get(statements.size() / 2));
+    }
+
+    public static void main(String[] args) {
+        String python = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < COPIES; i++) {
+            code.append(python).append("\n");
+        }
+        String text = code.toString();
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = BenchmarkSupport.pythonFacade();
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        mapper.freeze(Python3Parser.class);
+        OrderedElement root = mapper.toRootElement(facade.parseString(text));
+        byte[] data = BinaryTree.encode(root);
+
+        String label = COPIES + " x common.py";
+        BenchmarkSupport.report(label + ", parse, one statement", BenchmarkSupport.time(5,
+                () -> sink += visitMiddleStatement(mapper.toRootElement(facade.parseString(text)))));
+        BenchmarkSupport.report(label + ", parse, whole tree", BenchmarkSupport.time(5,
+                () -> sink += visit(mapper.toRootElement(facade.parseString(text)))));
+        BenchmarkSupport.report(label + ", encode", BenchmarkSupport.time(5, () -> sink += BinaryTree.encode(root).length));
+        BenchmarkSupport.report(label + ", load, one statement", BenchmarkSupport.time(50,
+                () -> sink += visitMiddleStatement(BinaryTree.decode(data, mapper.allKnownEntities()).getRoot())));
+        BenchmarkSupport.report(label + ", load, whole tree", BenchmarkSupport.time(10,
+                () -> sink += visit(BinaryTree.decode(data, mapper.allKnownEntities()).getRoot())));
+        BenchmarkSupport.report(label + ", load with metamodel, one statement", BenchmarkSupport.time(50,
+                () -> sink += visitMiddleStatement(BinaryTree.decode(data).getRoot())));
+        System.out.println(String.format("%-40s %12d bytes", label + ", source", text.length()));
+        System.out.println(String.format("%-40s %12d bytes", label + ", binary", data.length));
+        System.out.println(String.format("%-40s %12d bytes", label + ", XML", new XmlExporter().toXmlString(root, "root").length()));
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,86 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.metamodel.mapping.FeatureAccessor;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static me.tomassetti.antlrplus.AntlrTreeNavigator.allChildrenIterable;
+
+/**
+ * Compares the cost of reading the features of every node of a Python file through the reflective path
+ * (getMethod(name).invoke, then the scan of getFields()) and through the cached FeatureAccessors.
+ */
+public class FeatureAccessBenchmark {
+
+    private static int sink;
+
+    private static Object readReflectively(ParserRuleContext context, String name) throws Exception {
+        try {
+            return context.getClass().getMethod(name).invoke(context);
+        } catch (NoSuchMethodException e) {
+            return Arrays.stream(context.getClass().getFields()).filter(f -> f.getName().equals(name)).findFirst().get().get(context);
+        }
+    }
+
+    private static List<String> featureNames(Class<?> ruleClass) {
+        List<String> names = new ArrayList<>();
+        for (Method method : ruleClass.getDeclaredMethods()) {
+            if (method.getParameterCount() == 0 && !method.getName().equals("getRuleIndex")) {
+                names.add(method.getName());
+            }
+        }
+        return names;
+    }
+
+    public static void main(String[] args) {
+        Python3Parser.File_inputContext root = BenchmarkSupport.pythonFacade().parseString(BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY));
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        List<ParserRuleContext> contexts = new ArrayList<>();
+        contexts.add(root);
+        for (ParseTree node : allChildrenIterable(root)) {
+            if (node instanceof ParserRuleContext) {
+                contexts.add((ParserRuleContext) node);
+            }
+        }
+        int reads = contexts.stream().mapToInt(c -> featureNames(c.getClass()).size()).sum();
+        int iterations = 200;
+
+        double reflective = BenchmarkSupport.time(iterations, () -> {
+            try {
+                for (ParserRuleContext context : contexts) {
+                    for (String name : featureNames(context.getClass())) {
+                        sink += readReflectively(context, name) == null ? 0 : 1;
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        double viaAccessors = BenchmarkSupport.time(iterations, () -> {
+            for (ParserRuleContext context : contexts) {
+                for (String name : featureNames(context.getClass())) {
+                    FeatureAccessor accessor = mapper.getAccessor(context.getClass(), name, false);
+                    sink += accessor.get(context) == null ? 0 : 1;
+                }
+            }
+        });
+        double names = BenchmarkSupport.time(iterations, () -> {
+            for (ParserRuleContext context : contexts) {
+                sink += featureNames(context.getClass()).size();
+            }
+        });
+
+        System.out.println("Feature reads per iteration: " + reads);
+        BenchmarkSupport.report("reflective, per access", (reflective - names) / reads);
+        BenchmarkSupport.report("cached accessor, per access", (viaAccessors - names) / reads);
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,40 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.EditableDocument;
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.python.Python3Parser;
+
+/**
+ * Compares the time to apply a small edit to an EditableDocument with the time to parse the whole edited text again,
+ * for files made of more and more copies of a Python file. The edit renames a variable in the middle of the file,
+ * back and forth.
+ */
+public class IncrementalParsingBenchmark {
+
+    private static int sink;
+
+    public static void main(String[] args) {
+        String python = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = BenchmarkSupport.pythonFacade();
+        for (int copies : new int[]{1, 4, 16}) {
+            StringBuilder code = new StringBuilder();
+            for (int i = 0; i < copies; i++) {
+                code.append(python).append("\n");
+            }
+            String text = code.toString();
+            int offset = text.indexOf("self.c = {}", text.length() / 2 - python.length() / 2) + "self.".length();
+            EditableDocument<Python3Parser.File_inputContext, Python3Parser> document = facade.openDocument(text);
+            boolean[] renamed = {false};
+            double edit = BenchmarkSupport.time(200, () -> {
+                EditableDocument.Edit result = renamed[0] ? document.edit(offset, 5, "c") : document.edit(offset, 1, "count");
+                renamed[0] = !renamed[0];
+                sink += result.getReusedTokens();
+            });
+            double full = BenchmarkSupport.time(20, () -> sink += facade.parseString(document.getText()).getChildCount());
+            String label = copies + " x common.py (" + text.length() + " chars)";
+            BenchmarkSupport.report(label + ", edit", edit);
+            BenchmarkSupport.report(label + ", full parse", full);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+}
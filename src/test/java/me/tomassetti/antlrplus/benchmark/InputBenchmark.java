@@ -0,0 +1,77 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.antlrparser.Antlr4ParserFacade;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Parses a grammar of some megabytes (the rules of Python3.g4 repeated) from a String and from a file, comparing
+ * the way ParserFacade used to read them (through an InputStream) with the char based overloads.
+ *
+ * For each way it reports the latency, the peak heap and the bytes allocated by one parse, after a few warm-up
+ * parsings. The peak heap depends on when the collector runs, the allocated bytes show the copies of the input.
+ */
+public class InputBenchmark {
+
+    private static final String PYTHON_GRAMMAR = "/me/tomassetti/antlrplus/python/Python3.g4";
+    private static final int COPIES = 120;
+
+    private interface Parsing {
+        int parse() throws IOException;
+    }
+
+    private static String bigGrammar() {
+        String grammar = BenchmarkSupport.resource(PYTHON_GRAMMAR);
+        String header = grammar.substring(0, grammar.indexOf("/*\n * parser rules"));
+        String rules = grammar.substring(header.length());
+        StringBuilder sb = new StringBuilder(header);
+        for (int i = 0; i < COPIES; i++) {
+            sb.append(rules);
+        }
+        return sb.toString();
+    }
+
+    private static void measure(String label, Parsing parsing) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            parsing.parse();
+        }
+        BenchmarkSupport.resetPeakHeap();
+        long start = System.nanoTime();
+        int children = parsing.parse();
+        long elapsed = System.nanoTime() - start;
+        long peak = BenchmarkSupport.peakHeap();
+        long allocated = BenchmarkSupport.allocatedBytes();
+        parsing.parse();
+        allocated = BenchmarkSupport.allocatedBytes() - allocated;
+        System.out.println(String.format("%-32s %8.1f ms %8.1f MB peak heap %8.1f MB allocated (%d)",
+                label, elapsed / 1e6, peak / 1e6, allocated / 1e6, children));
+    }
+
+    public static void main(String[] args) throws IOException {
+        String code = bigGrammar();
+        Path file = Files.createTempFile("antlr-plus-input", ".g4");
+        try {
+            Files.write(file, code.getBytes(StandardCharsets.UTF_8));
+            System.out.println(String.format("Input: %.1f MB", Files.size(file) / 1e6));
+            Antlr4ParserFacade facade = new Antlr4ParserFacade();
+
+            measure("String, through bytes", () -> facade.parseStream(new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8))).getChildCount());
+            measure("String", () -> facade.parseString(code).getChildCount());
+            measure("StringBuilder", () -> facade.parseString(new StringBuilder(code)).getChildCount());
+            measure("file, FileInputStream", () -> {
+                try (FileInputStream inputStream = new FileInputStream(file.toFile())) {
+                    return facade.parseStream(inputStream).getChildCount();
+                }
+            });
+            measure("file, read and decoded", () -> facade.parseFile(file).getChildCount());
+            measure("file, mapped and decoded", () -> facade.parseMappedFile(file).getChildCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionElement;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.metamodel.mapping.ElementCache;
+import me.tomassetti.antlrplus.metamodel.mapping.EntityAccessPlan;
+import me.tomassetti.antlrplus.model.ColumnarTree;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.ElementNavigator;
+import me.tomassetti.antlrplus.model.ImmutableElement;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.TokenSource;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Compares the heap retained by trees of AntlrReflectionElements (which keep the parse tree alive) with the heap
+ * retained by the same trees once materialized into ImmutableElements or encoded into ColumnarTrees.
+ *
+ * The whole trees are measured through the heap usage after a GC, the single elements (grouped by entity) through
+ * an estimation of the size of the objects reachable only from each element, assuming compressed references.
+ */
+public class MaterializationBenchmark {
+
+    private static final int COPIES = 50;
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long align(long size) {
+        return (size + 7) / 8 * 8;
+    }
+
+    private static long primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else {
+            return 4;
+        }
+    }
+
+    private static List<Field> instanceFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Estimated size of the objects reachable from root, not crossing the objects for which stop holds.
+     */
+    private static long estimateSize(Object root, Predicate<Object> stop) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        long size = 0;
+        while (!toVisit.isEmpty()) {
+            Object object = toVisit.pop();
+            if (!visited.add(object)) {
+                continue;
+            }
+            Class<?> clazz = object.getClass();
+            if (clazz.isArray()) {
+                int length = Array.getLength(object);
+                size += align(16 + length * primitiveSize(clazz.getComponentType()));
+                if (!clazz.getComponentType().isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        Object value = Array.get(object, i);
+                        if (value != null && (value == root || !stop.test(value))) {
+                            toVisit.push(value);
+                        }
+                    }
+                }
+            } else if (object instanceof String) {
+                size += 24 + align(16 + ((String) object).length());
+            } else if (object instanceof Collection) {
+                size += 24 + align(16 + ((Collection<?>) object).size() * 4);
+                for (Object value : (Collection<?>) object) {
+                    if (value != null && !stop.test(value)) {
+                        toVisit.push(value);
+                    }
+                }
+            } else if (object instanceof Optional) {
+                size += 16;
+                Optional<?> optional = (Optional<?>) object;
+                if (optional.isPresent() && !stop.test(optional.get())) {
+                    toVisit.push(optional.get());
+                }
+            } else {
+                long shallow = 12;
+                List<Field> fields = instanceFields(clazz);
+                for (Field field : fields) {
+                    shallow += primitiveSize(field.getType());
+                }
+                size += align(shallow);
+                if (clazz.getName().startsWith("java.")) {
+                    continue;
+                }
+                for (Field field : fields) {
+                    if (field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        Object value = field.get(object);
+                        if (value != null && !stop.test(value)) {
+                            toVisit.push(value);
+                        }
+                    } catch (IllegalAccessException | RuntimeException e) {
+                        // not accessible: counted only as a reference
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private static boolean isShared(Object object) {
+        return object instanceof Entity || object instanceof Feature || object instanceof AntlrReflectionMapper
+                || object instanceof EntityAccessPlan || object instanceof ElementCache || object instanceof Class
+                || object instanceof TokenSource || object instanceof CharStream || object instanceof Recognizer
+                || object instanceof org.antlr.v4.runtime.misc.Pair;
+    }
+
+    private static long reflectiveSize(AntlrReflectionElement element) {
+        return estimateSize(element, o -> isShared(o) || (o instanceof Element && o != element)
+                || (o instanceof ParserRuleContext && o != element.getWrapped()));
+    }
+
+    private static long materializedSize(ImmutableElement element) {
+        // the shapes are shared by the elements of the tree
+        return estimateSize(element, o -> isShared(o) || (o instanceof Element && o != element)
+                || o.getClass().getName().endsWith("$Shape"));
+    }
+
+    private static class EntityStats {
+        int count;
+        long reflective;
+        long visited;
+        long materialized;
+    }
+
+    public static void main(String[] args) {
+        String code = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+
+        // whole trees
+        long before = usedHeap();
+        List<OrderedElement> reflectiveTrees = new ArrayList<>();
+        for (int i = 0; i < COPIES; i++) {
+            reflectiveTrees.add(mapper.toRootElement(BenchmarkSupport.pythonFacade().parseString(code)));
+        }
+        long reflectiveHeap = usedHeap() - before;
+        List<ImmutableElement> materializedTrees = new ArrayList<>();
+        for (OrderedElement tree : reflectiveTrees) {
+            materializedTrees.add(ImmutableElement.materialize(tree));
+        }
+        // materializing visits all the values, which are memoized by the reflective elements
+        long visitedHeap = usedHeap() - before;
+        reflectiveTrees.clear();
+        long materializedHeap = usedHeap() - before;
+        visitedHeap -= materializedHeap;
+        System.out.println(String.format("%-40s %12.1f", "reflective tree, retained bytes", reflectiveHeap / (double) COPIES));
+        System.out.println(String.format("%-40s %12.1f", "visited reflective tree, retained bytes", visitedHeap / (double) COPIES));
+        System.out.println(String.format("%-40s %12.1f", "materialized tree, retained bytes", materializedHeap / (double) COPIES));
+        List<ColumnarTree> columnarTrees = new ArrayList<>();
+        for (ImmutableElement tree : materializedTrees) {
+            columnarTrees.add(ColumnarTree.encode(tree, AntlrReflectionMapper.POSITIONS_PROPERTIES, ColumnarTree.Backing.HEAP));
+        }
+        materializedTrees.clear();
+        long columnarHeap = usedHeap() - before;
+        System.out.println(String.format("%-40s %12.1f", "columnar tree, retained bytes", columnarHeap / (double) COPIES));
+        System.out.println(String.format("%-40s %12d", "columnar tree, buffer bytes", columnarTrees.get(0).getSizeInBytes()));
+        System.out.println();
+
+        // single elements, by entity
+        OrderedElement reflectiveRoot = mapper.toRootElement(BenchmarkSupport.pythonFacade().parseString(code));
+        List<Element> reflectiveElements = ElementNavigator.allDescendants(reflectiveRoot, true);
+        List<Element> materializedElements = ElementNavigator.allDescendants(ImmutableElement.materialize(mapper.toRootElement(BenchmarkSupport.pythonFacade().parseString(code))), true);
+        Map<String, EntityStats> byEntity = new TreeMap<>();
+        for (int i = 0; i < reflectiveElements.size(); i++) {
+            EntityStats stats = byEntity.computeIfAbsent(reflectiveElements.get(i).type().getName(), n -> new EntityStats());
+            stats.count++;
+            AntlrReflectionElement reflectiveElement = (AntlrReflectionElement) reflectiveElements.get(i);
+            stats.reflective += reflectiveSize(reflectiveElement);
+            reflectiveElement.getOrderedValues();
+            stats.visited += reflectiveSize(reflectiveElement);
+            stats.materialized += materializedSize((ImmutableElement) materializedElements.get(i));
+        }
+        System.out.println(String.format("%-24s %8s %12s %12s %12s %8s", "entity", "elements", "reflective", "visited", "materialized", "factor"));
+        for (Map.Entry<String, EntityStats> entry : byEntity.entrySet()) {
+            EntityStats stats = entry.getValue();
+            System.out.println(String.format("%-24s %8d %12.1f %12.1f %12.1f %8.1f", entry.getKey(), stats.count,
+                    stats.reflective / (double) stats.count, stats.visited / (double) stats.count,
+                    stats.materialized / (double) stats.count, stats.visited / (double) stats.materialized));
+        }
+        System.out.println("(bytes per element, including its own part of the parse tree but not the input text and the lexer;");
+        System.out.println(" visited: after getOrderedValues, whose results are memoized; factor: visited over materialized)");
+        System.out.println("(" + columnarTrees.size() + " trees kept)");
+    }
+}
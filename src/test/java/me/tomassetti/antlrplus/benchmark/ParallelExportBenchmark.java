@@ -0,0 +1,77 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.util.Pair;
+import me.tomassetti.antlrplus.xml.XmlExporter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures what looking up the XML factories costs, next to printing a small document with the factories cached,
+ * and the throughput of exportAll on pools of different sizes.
+ */
+public class ParallelExportBenchmark {
+
+    private static final int DOCUMENTS = 64;
+
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.freeze(Python3Parser.class);
+        XmlExporter exporter = new XmlExporter().freeze();
+
+        OrderedElement small = mapper.toRootElement(BenchmarkSupport.pythonFacade().parseString("print(1)\n"));
+        BenchmarkSupport.report("factories lookup", BenchmarkSupport.time(2000, () -> {
+            try {
+                sink += DocumentBuilderFactory.newInstance().newDocumentBuilder().hashCode();
+                sink += TransformerFactory.newInstance().newTransformer().hashCode();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        BenchmarkSupport.report("small toXmlString", BenchmarkSupport.time(2000, () -> sink += exporter.toXmlString(small, "root").length()));
+
+        OrderedElement root = mapper.toRootElement(BenchmarkSupport.pythonFacade().parseString(
+                BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY)));
+        Path directory = Files.createTempDirectory("antlr-plus-export");
+        List<Pair<OrderedElement, File>> documents = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents.add(new Pair<>(root, directory.resolve("document" + i + ".xml").toFile()));
+        }
+        try {
+            for (int threads : new int[]{1, 2, 4}) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        exporter.exportAll(documents, executor);
+                    }
+                    XmlExporter.ExportReport report = exporter.exportAll(documents, executor);
+                    System.out.println(String.format("%d thread(s): %8.1f documents/s %8.1f MB/s, busy/elapsed %.2f",
+                            threads, report.getDocumentsPerSecond(), report.getBytesPerSecond() / 1e6,
+                            ((double) report.getBusyNanos()) / report.getElapsedNanos()));
+                } finally {
+                    executor.shutdown();
+                }
+            }
+            System.out.println("(" + Runtime.getRuntime().availableProcessors() + " processors, sink " + sink + ")");
+        } finally {
+            for (Pair<OrderedElement, File> document : documents) {
+                Files.deleteIfExists(document.getSecond().toPath());
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.ParseCache;
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+
+/**
+ * Compares parsing and mapping a Python file with getting its tree from a ParseCache, from memory and from disk.
+ */
+public class ParseCacheBenchmark {
+
+    private static int sink;
+
+    public static void main(String[] args) throws IOException {
+        String python = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = BenchmarkSupport.pythonFacade();
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        mapper.freeze(Python3Parser.class);
+        Path directory = Files.createTempDirectory("antlr-plus-cache");
+        try {
+            ParseCache<Python3Parser.File_inputContext, Python3Parser> memory = new ParseCache<>(facade, mapper, 64 * 1024 * 1024);
+            ParseCache<Python3Parser.File_inputContext, Python3Parser> disk = new ParseCache<>(facade, mapper, 0);
+            disk.enableDiskTier(directory);
+            memory.parseString(python);
+            disk.parseString(python);
+            int iterations = 200;
+            double parsing = BenchmarkSupport.time(iterations, () -> sink += mapper.toRootElement(facade.parseString(python)).getAllChildren().size());
+            double memoryHit = BenchmarkSupport.time(iterations, () -> sink += memory.parseString(python).getAllChildren().size());
+            double diskHit = BenchmarkSupport.time(iterations, () -> sink += disk.parseString(python).getAllChildren().size());
+            BenchmarkSupport.report("parse and map", parsing);
+            BenchmarkSupport.report("memory hit", memoryHit);
+            BenchmarkSupport.report("disk hit", diskHit);
+            System.out.println(memory.getStatistics());
+            System.out.println(disk.getStatistics());
+        } finally {
+            for (Path file : Files.list(directory).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,60 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionElement;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.ElementNavigator;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import org.antlr.v4.runtime.Token;
+
+import java.util.List;
+
+/**
+ * Compares reading endLine and endColumn of every element of a Python file by splitting the text of the stop
+ * token (as it used to be done) and through the LineIndex of the input.
+ */
+public class PositionsBenchmark {
+
+    private static int sink;
+
+    private static int endLineFromText(Token stop) {
+        return stop.getLine() + stop.getText().split("\n", -1).length - 1;
+    }
+
+    private static int endColumnFromText(Token stop) {
+        if (stop.getType() == Token.EOF) {
+            return stop.getCharPositionInLine();
+        }
+        String[] lines = stop.getText().split("\n", -1);
+        if (lines.length == 1) {
+            return stop.getCharPositionInLine() + stop.getText().length();
+        } else {
+            return lines[lines.length - 1].length();
+        }
+    }
+
+    public static void main(String[] args) {
+        Python3Parser.File_inputContext root = BenchmarkSupport.pythonFacade().parseString(BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY));
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        List<Element> elements = ElementNavigator.allDescendants(mapper.toRootElement(root), true);
+        int iterations = 500;
+
+        double fromText = BenchmarkSupport.time(iterations, () -> {
+            for (Element element : elements) {
+                Token stop = ((AntlrReflectionElement) element).getWrapped().getStop();
+                sink += endLineFromText(stop) + endColumnFromText(stop);
+            }
+        });
+        double fromLineIndex = BenchmarkSupport.time(iterations, () -> {
+            for (Element element : elements) {
+                sink += (Integer) element.getSingleProperty("endLine").get() + (Integer) element.getSingleProperty("endColumn").get();
+            }
+        });
+
+        System.out.println("Elements: " + elements.size());
+        BenchmarkSupport.report("splitting the text, per element", fromText / elements.size());
+        BenchmarkSupport.report("line index, per element", fromLineIndex / elements.size());
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,114 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.metamodel.mapping.ElementEventListener;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.util.Pair;
+
+import java.io.StringReader;
+import java.util.Optional;
+
+/**
+ * Compares visiting all the elements of a file built from copies of a Python file through the element tree with
+ * receiving them as events from parseStringStreaming and from parseUnbuffered, in time and in heap used when the last
+ * element ends.
+ */
+public class StreamingBenchmark {
+
+    private static int sink;
+
+    private static class Counter implements ElementEventListener {
+        private int events;
+        private long heapAtEnd;
+        private int depth;
+
+        @Override
+        public void startElement(Entity entity, Optional<Relation> containment, int startLine, int startColumn) {
+            depth++;
+            events++;
+        }
+
+        @Override
+        public void property(Property property, String value) {
+            events++;
+        }
+
+        @Override
+        public void endElement(Entity entity, int endLine, int endColumn) {
+            events++;
+            if (--depth == 0 && heapAtEnd < 0) {
+                heapAtEnd = usedHeap();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int visit(OrderedElement element) {
+        int events = 2;
+        for (Pair<OrderedElement.ValueReference, Object> value : element.getOrderedValues()) {
+            if (value.getSecond() instanceof Element) {
+                events += visit((OrderedElement) value.getSecond());
+            } else {
+                events++;
+            }
+        }
+        return events;
+    }
+
+    public static void main(String[] args) {
+        String python = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = BenchmarkSupport.pythonFacade();
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.freeze(Python3Parser.class);
+        for (int copies : new int[]{1, 16, 64}) {
+            StringBuilder code = new StringBuilder();
+            for (int i = 0; i < copies; i++) {
+                code.append(python).append("\n");
+            }
+            String text = code.toString();
+            int iterations = Math.max(2, 64 / copies);
+            double tree = BenchmarkSupport.time(iterations, () -> sink += visit(mapper.toRootElement(facade.parseString(text))));
+            double streaming = BenchmarkSupport.time(iterations, () -> sink += facade.parseStringStreaming(text, mapper, new Counter()));
+            double unbuffered = BenchmarkSupport.time(iterations, () -> sink += facade.parseUnbuffered(new StringReader(text), "text", mapper, new Counter()));
+
+            long baseline = usedHeap();
+            OrderedElement root = mapper.toRootElement(facade.parseString(text));
+            sink += visit(root);
+            long treeHeap = usedHeap() - baseline;
+            sink += root.hashCode();
+            root = null;
+            baseline = usedHeap();
+            Counter counter = new Counter();
+            counter.heapAtEnd = -1;
+            facade.parseStringStreaming(text, mapper, counter);
+            long streamingHeap = counter.heapAtEnd - baseline;
+            counter = new Counter();
+            counter.heapAtEnd = -1;
+            facade.parseUnbuffered(new StringReader(text), "text", mapper, counter);
+            long unbufferedHeap = counter.heapAtEnd - baseline;
+
+            String label = copies + " x common.py (" + text.length() + " chars)";
+            BenchmarkSupport.report(label + ", tree", tree);
+            BenchmarkSupport.report(label + ", streaming", streaming);
+            BenchmarkSupport.report(label + ", unbuffered", unbuffered);
+            System.out.println(String.format("%-40s %12d KB", label + ", tree heap", treeHeap / 1024));
+            System.out.println(String.format("%-40s %12d KB", label + ", streaming heap", streamingHeap / 1024));
+            System.out.println(String.format("%-40s %12d KB", label + ", unbuffered heap", unbufferedHeap / 1024));
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+}
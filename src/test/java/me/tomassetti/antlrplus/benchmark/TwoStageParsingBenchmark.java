@@ -0,0 +1,38 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.antlrparser.Antlr4ParserFacade;
+import me.tomassetti.antlrplus.python.Python3Parser;
+
+/**
+ * Compares parsing with LL prediction and in the SLL_THEN_LL mode, for a Python file and for the ANTLR grammar of
+ * Python.
+ */
+public class TwoStageParsingBenchmark {
+
+    private static final String PYTHON_GRAMMAR = "/me/tomassetti/antlrplus/python/Python3.g4";
+
+    private static int sink;
+
+    private static double parse(ParserFacade<?, ?> facade, String code, int iterations) {
+        return BenchmarkSupport.time(iterations, () -> sink += facade.parseString(code).getChildCount());
+    }
+
+    public static void main(String[] args) {
+        String python = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> pythonFacade = BenchmarkSupport.pythonFacade();
+        BenchmarkSupport.report("common.py, LL", parse(pythonFacade, python, 50));
+        pythonFacade.setParsingMode(ParserFacade.ParsingMode.SLL_THEN_LL);
+        BenchmarkSupport.report("common.py, SLL then LL", parse(pythonFacade, python, 50));
+        System.out.println(pythonFacade.getFallbackStatistics());
+
+        String grammar = BenchmarkSupport.resource(PYTHON_GRAMMAR);
+        Antlr4ParserFacade grammarFacade = new Antlr4ParserFacade();
+        grammarFacade.setParsingMode(ParserFacade.ParsingMode.LL);
+        BenchmarkSupport.report("Python3.g4, LL", parse(grammarFacade, grammar, 200));
+        grammarFacade.setParsingMode(ParserFacade.ParsingMode.SLL_THEN_LL);
+        BenchmarkSupport.report("Python3.g4, SLL then LL", parse(grammarFacade, grammar, 200));
+        System.out.println(grammarFacade.getFallbackStatistics());
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,63 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.python.Python3Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the first parsings of common.py in fresh JVMs: without warm-up, after warming up on small unrelated
+ * snippets and after warming up on common.py itself.
+ */
+public class WarmUpBenchmark {
+
+    private static final String[] SNIPPETS = {
+            "x = 1\n",
+            "print('Hello world!')\n",
+            "def inc(a):\n    return a + 1\n",
+            "for i in range(10):\n    total += i\n",
+            "import os\n",
+            "class A(B):\n    def m(self, *args, **kwargs):\n        return [x for x in args if x]\n",
+            "if a and not b:\n    pass\nelse:\n    c = {1: 'a', 2: 'b'}\n"
+    };
+
+    private static void run(String corpus) {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = BenchmarkSupport.pythonFacade();
+        String code = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        long start = System.nanoTime();
+        if (corpus.equals("snippets")) {
+            System.out.println(facade.warmUp(Arrays.asList(SNIPPETS), 10));
+        } else if (corpus.equals("common")) {
+            System.out.println(facade.warmUp(Collections.singletonList(code), 10));
+        }
+        long warmUp = System.nanoTime() - start;
+        long[] parsings = new long[5];
+        for (int i = 0; i < parsings.length; i++) {
+            start = System.nanoTime();
+            facade.parseString(code);
+            parsings[i] = System.nanoTime() - start;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (long parsing : parsings) {
+            sb.append(String.format(" %7.1f", parsing / 1e6));
+        }
+        System.out.println(String.format("%-10s warm-up %7.1f ms, parsings (ms):%s", corpus, warmUp / 1e6, sb));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 1) {
+            run(args[0]);
+            return;
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (String corpus : Arrays.asList("none", "snippets", "common")) {
+            List<String> command = Arrays.asList(java, "-cp", System.getProperty("java.class.path"), WarmUpBenchmark.class.getName(), corpus);
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            process.waitFor();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.json.JsonExporter;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.xml.XmlExporter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Exports to a file the elements of copies of a Python file, as a DOM printed to a String (what toXmlFile used to
+ * do), streamed as XML and streamed as JSON. Reports the latency, the throughput in output bytes, the peak heap (the
+ * elements included) and the bytes allocated.
+ */
+public class XmlExportBenchmark {
+
+    private static final int COPIES = 32;
+
+    private interface Export {
+        void export() throws IOException;
+    }
+
+    private static void measure(String label, Path file, Export export) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            export.export();
+        }
+        BenchmarkSupport.resetPeakHeap();
+        long start = System.nanoTime();
+        export.export();
+        long elapsed = System.nanoTime() - start;
+        long peak = BenchmarkSupport.peakHeap();
+        long allocated = BenchmarkSupport.allocatedBytes();
+        export.export();
+        allocated = BenchmarkSupport.allocatedBytes() - allocated;
+        long size = Files.size(file);
+        System.out.println(String.format("%-14s %8.1f ms %8.1f MB output %8.1f MB/s %8.1f MB peak heap %8.1f MB allocated",
+                label, elapsed / 1e6, size / 1e6, size * 1e3 / elapsed, peak / 1e6, allocated / 1e6));
+    }
+
+    public static void main(String[] args) throws IOException {
+        String python = BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY);
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < COPIES; i++) {
+            code.append(python).append("\n");
+        }
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        OrderedElement root = mapper.toRootElement(BenchmarkSupport.pythonFacade().parseString(code.toString()));
+        XmlExporter exporter = new XmlExporter();
+        JsonExporter jsonExporter = new JsonExporter();
+        Path file = Files.createTempFile("antlr-plus-export", ".xml");
+        try {
+            measure("DOM", file, () -> {
+                try (PrintWriter out = new PrintWriter(file.toFile())) {
+                    out.println(exporter.toXmlString(root, "root"));
+                }
+            });
+            measure("streamed", file, () -> {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    exporter.writeXml(root, "root", out);
+                }
+            });
+            measure("JSON compact", file, () -> {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    jsonExporter.writeJson(root, "root", out);
+                }
+            });
+            jsonExporter.setPrettyPrinting(true);
+            measure("JSON pretty", file, () -> {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    jsonExporter.writeJson(root, "root", out);
+                }
+            });
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
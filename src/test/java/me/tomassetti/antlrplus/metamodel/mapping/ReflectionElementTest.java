@@ -1,17 +1,47 @@
 package me.tomassetti.antlrplus.metamodel.mapping;
 
 import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.SourceToken;
+import me.tomassetti.antlrplus.codegen.ElementClassGenerator;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.model.BinaryTree;
+import me.tomassetti.antlrplus.model.ColumnarTree;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.ElementNavigator;
+import me.tomassetti.antlrplus.model.ImmutableElement;
 import me.tomassetti.antlrplus.model.OrderedElement;
 import me.tomassetti.antlrplus.python.Python3Lexer;
 import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.util.Pair;
+import me.tomassetti.antlrplus.xml.XmlExporter;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.tree.TerminalNode;
 import org.junit.Test;
 
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class ReflectionElementTest {
 
@@ -74,4 +104,208 @@ public class ReflectionElementTest {
         assertEquals(0, rootElement.getSingleProperty("startColumn").get());
         assertEquals(23, rootElement.getSingleProperty("endColumn").get());
     }
+
+    private static int tokenIndex(Object value) {
+        if (value instanceof OrderedElement) {
+            return ((AntlrReflectionElement) value).getWrapped().getStart().getTokenIndex();
+        } else if (value instanceof TerminalNode) {
+            return ((TerminalNode) value).getSymbol().getTokenIndex();
+        } else {
+            return -1;
+        }
+    }
+
+    @Test
+    public void valuesOrderFollowsTheSource() {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        reflectionMapper.setAddPositions(true);
+
+        Python3Parser.File_inputContext astRoot = parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py"));
+        OrderedElement rootElement = reflectionMapper.toRootElement(astRoot);
+
+        for (Element element : ElementNavigator.allDescendants(rootElement, true)) {
+            OrderedElement orderedElement = (OrderedElement) element;
+            List<Pair<OrderedElement.ValueReference, Object>> values = orderedElement.getOrderedValues();
+            assertSame(orderedElement.getValuesOrder(), orderedElement.getValuesOrder());
+            assertEquals(orderedElement.getValuesOrder(), values.stream().map(Pair::getFirst).collect(Collectors.toList()));
+            // the positions come first, then the other values in source order
+            for (int i = 0; i < 4; i++) {
+                assertTrue(AntlrReflectionMapper.POSITIONS_PROPERTIES.contains(values.get(i).getFirst().getFeature()));
+            }
+            int previous = -1;
+            for (int i = 4; i < values.size(); i++) {
+                int current = tokenIndex(values.get(i).getSecond());
+                assertTrue(current >= previous);
+                previous = current;
+            }
+        }
+    }
+
+    private AntlrReflectionMapper mapperWithPositions() {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        reflectionMapper.setAddPositions(true);
+        return reflectionMapper;
+    }
+
+    private OrderedElement commonRoot(AntlrReflectionMapper reflectionMapper) {
+        Python3Parser.File_inputContext astRoot = parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py"));
+        OrderedElement rootElement = reflectionMapper.toRootElement(astRoot);
+        assertEquals(120, rootElement.getSingleProperty("endLine").get());
+        return rootElement;
+    }
+
+    /**
+     * Same XML, same number of elements and each child pointing to its parent.
+     */
+    private static void assertSameTree(OrderedElement expected, OrderedElement actual) {
+        assertEquals(new XmlExporter().toXmlString(expected, "root"), new XmlExporter().toXmlString(actual, "root"));
+        assertEquals(expected.getSingleProperty("endLine"), actual.getSingleProperty("endLine"));
+        List<Element> descendants = ElementNavigator.allDescendants(actual, true);
+        assertEquals(ElementNavigator.allDescendants(expected, true).size(), descendants.size());
+        for (Element element : descendants) {
+            for (Element child : element.getAllChildren()) {
+                assertEquals(element, child.getParent().get());
+            }
+        }
+    }
+
+    @Test
+    public void materializedTreeHasTheSameValues() {
+        OrderedElement rootElement = commonRoot(mapperWithPositions());
+        ImmutableElement materialized = ImmutableElement.materialize(rootElement);
+
+        assertSameTree(rootElement, materialized);
+        for (Element element : ElementNavigator.allDescendants(materialized, true)) {
+            assertTrue(element instanceof ImmutableElement);
+        }
+        assertSame(materialized, ImmutableElement.materialize(materialized));
+    }
+
+    @Test
+    public void columnarTreeHasTheSameValues() throws IOException {
+        OrderedElement rootElement = commonRoot(mapperWithPositions());
+
+        File file = File.createTempFile("columnar", ".tree");
+        file.deleteOnExit();
+        for (ColumnarTree tree : new ColumnarTree[]{
+                ColumnarTree.encode(rootElement),
+                ColumnarTree.encode(rootElement, AntlrReflectionMapper.POSITIONS_PROPERTIES, ColumnarTree.Backing.HEAP),
+                ColumnarTree.encode(rootElement, AntlrReflectionMapper.POSITIONS_PROPERTIES, ColumnarTree.Backing.DIRECT),
+                ColumnarTree.encode(rootElement, AntlrReflectionMapper.POSITIONS_PROPERTIES, file.toPath())}) {
+            assertSameTree(rootElement, tree.getRoot());
+        }
+    }
+
+    @Test
+    public void binaryTreeHasTheSameValues() throws IOException {
+        AntlrReflectionMapper reflectionMapper = mapperWithPositions();
+        reflectionMapper.freeze(Python3Parser.class);
+        OrderedElement rootElement = commonRoot(reflectionMapper);
+
+        byte[] data = BinaryTree.encode(rootElement);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        BinaryTree.writeTo(rootElement, written);
+        assertArrayEquals(data, written.toByteArray());
+
+        for (BinaryTree tree : new BinaryTree[]{
+                BinaryTree.decode(data),
+                BinaryTree.decode(data, reflectionMapper.allKnownEntities()),
+                BinaryTree.readFrom(new ByteArrayInputStream(data))}) {
+            assertSameTree(rootElement, tree.getRoot());
+        }
+        assertSame(reflectionMapper.getEntity(Python3Parser.File_inputContext.class),
+                BinaryTree.decode(data, reflectionMapper.allKnownEntities()).getRoot().type());
+        assertArrayEquals(data, BinaryTree.encode(BinaryTree.decode(data).getRoot()));
+        try {
+            BinaryTree.decode(data, Collections.emptyList());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        for (int length : new int[]{3, 40, data.length / 4, data.length / 2, data.length - 1}) {
+            try {
+                new XmlExporter().toXmlString(BinaryTree.decode(Arrays.copyOf(data, length)).getRoot(), "root");
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void generatedElementsHaveTheSameValues() throws Exception {
+        AntlrReflectionMapper generatorMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        generatorMapper.setAddPositions(true);
+        generatorMapper.registerWholeParser(Python3Parser.class);
+        Path directory = Files.createTempDirectory("generated-elements");
+        try {
+            List<String> arguments = new ArrayList<>(Arrays.asList("-nowarn", "-d", directory.toString(),
+                    "-classpath", System.getProperty("java.class.path")));
+            for (File source : new ElementClassGenerator(generatorMapper, Python3Parser.class, "generated").generate(directory.toFile())) {
+                arguments.add(source.getPath());
+            }
+            assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, arguments.toArray(new String[0])));
+
+            try (URLClassLoader classLoader = new URLClassLoader(new URL[]{directory.toUri().toURL()}, getClass().getClassLoader())) {
+                AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+                reflectionMapper.setAddPositions(true);
+                AntlrReflectionMapper generatedMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+                generatedMapper.setAddPositions(true);
+                generatedMapper.setElementFactory((ElementFactory) classLoader.loadClass("generated.Python3ElementFactory").getConstructor().newInstance());
+
+                Python3Parser.File_inputContext astRoot = parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py"));
+                OrderedElement rootElement = reflectionMapper.toRootElement(astRoot);
+                OrderedElement generatedRoot = generatedMapper.toRootElement(astRoot);
+                assertEquals(new XmlExporter().toXmlString(rootElement, "root"), new XmlExporter().toXmlString(generatedRoot, "root"));
+                for (Element element : ElementNavigator.allDescendants(generatedRoot, true)) {
+                    assertTrue(element instanceof GeneratedElement);
+                }
+
+                Relation stmt = generatedRoot.type().getRelation("stmt").get();
+                assertEquals(generatedRoot.getMultipleRelation(stmt), generatedRoot.getClass().getMethod("getStmt").invoke(generatedRoot));
+                assertEquals(generatedRoot.getMultipleRelation(stmt).size(), generatedRoot.getMultipleRelationCount(stmt));
+                assertEquals(120, generatedRoot.getClass().getMethod("getEndLine").invoke(generatedRoot));
+
+                // the classes were generated with the positions among the features
+                AntlrReflectionMapper withoutPositions = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+                withoutPositions.setElementFactory((ElementFactory) classLoader.loadClass("generated.Python3ElementFactory").getConstructor().newInstance());
+                try {
+                    withoutPositions.toRootElement(astRoot);
+                    fail();
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lineIndexMatchesTheTextOfTheTokens() throws IOException {
+        ANTLRInputStream input = new ANTLRInputStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py"));
+        LineIndex lineIndex = LineIndex.of(input);
+        assertTrue(lineIndex.isFor(input));
+        Python3Lexer lexer = new Python3Lexer(input);
+        lexer.setTokenFactory(SourceToken.FACTORY);
+        List<? extends Token> tokens = lexer.getAllTokens();
+        assertTrue(tokens.get(0) instanceof SourceToken);
+        CommonToken copy = new CommonToken((CommonToken) tokens.get(0));
+        copy.setText("a\nbc");
+        SourceToken replaced = (SourceToken) tokens.get(1);
+        replaced.setText("de\nf\n");
+        assertFalse(replaced.hasSourceText());
+        List<Token> all = new ArrayList<>(tokens);
+        all.add(copy);
+        for (Token token : all) {
+            String[] lines = token.getText().split("\n", -1);
+            assertEquals(token.toString(), token.getLine() + lines.length - 1, lineIndex.endLine(token));
+            int endColumn = lines.length == 1 ? token.getCharPositionInLine() + token.getText().length() : lines[lines.length - 1].length();
+            assertEquals(token.toString(), endColumn, lineIndex.endColumn(token));
+        }
+    }
 }
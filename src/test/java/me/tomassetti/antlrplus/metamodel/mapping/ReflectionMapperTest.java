@@ -3,18 +3,29 @@ package me.tomassetti.antlrplus.metamodel.mapping;
 import com.google.common.collect.ImmutableSet;
 import me.tomassetti.antlrplus.ParserFacade;
 import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
 import me.tomassetti.antlrplus.metamodel.Multiplicity;
 import me.tomassetti.antlrplus.metamodel.Property;
 import me.tomassetti.antlrplus.metamodel.Relation;
 import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.ElementNavigator;
+import me.tomassetti.antlrplus.model.OrderedElement;
 import me.tomassetti.antlrplus.python.Python3Lexer;
 import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.xml.XmlExporter;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.TokenStream;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -115,4 +126,159 @@ public class ReflectionMapperTest {
     public void testFieldsOfType() {
         assertEquals(2, AntlrReflectionMapper.fieldsOfType(Python3Parser.If_stmtContext.class, Python3Parser.ElifClauseContext.class).size());
     }
+
+    @Test
+    public void accessorsAreResolvedOnce() {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        FeatureAccessor accessor = reflectionMapper.getAccessor(Python3Parser.If_stmtContext.class, "elifs", true);
+        assertSame(accessor, reflectionMapper.getAccessor(Python3Parser.If_stmtContext.class, "elifs", true));
+        assertEquals(FeatureAccessor.Source.FIELD, accessor.getSource());
+        assertEquals(FeatureAccessor.Source.METHOD, reflectionMapper.getAccessor(Python3Parser.If_stmtContext.class, "IF", false).getSource());
+        // elifClause is both a field, the last elif, and a method, all of them
+        assertEquals(FeatureAccessor.Source.METHOD, reflectionMapper.getAccessor(Python3Parser.If_stmtContext.class, "elifClause", false).getSource());
+        assertEquals(FeatureAccessor.Source.FIELD, reflectionMapper.getAccessor(Python3Parser.If_stmtContext.class, "elifClause", true).getSource());
+
+        Python3Parser.Single_inputContext astRoot = parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/hello_world.py"));
+        assertSame(astRoot.simple_stmt(), reflectionMapper.getAccessor(Python3Parser.Single_inputContext.class, "simple_stmt", false).get(astRoot));
+    }
+
+    @Test
+    public void accessPlan() {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        reflectionMapper.setAddPositions(true);
+        reflectionMapper.setRuleConfiguration(Python3Parser.If_stmtContext.class, new RuleMappingConfiguration().renameFeature("IF", "ifKeyword"));
+        EntityAccessPlan plan = reflectionMapper.getAccessPlan(Python3Parser.If_stmtContext.class);
+        assertSame(reflectionMapper.getEntity(Python3Parser.If_stmtContext.class), plan.getEntity());
+        assertEquals(6, plan.getProperties().size());
+        assertEquals(3, plan.getRelations().size());
+
+        EntityAccessPlan.FeatureAccess ifKeyword = plan.getProperty("ifKeyword").get();
+        assertEquals("IF", ifKeyword.getRawName());
+        assertEquals(EntityAccessPlan.Kind.PROPERTY, ifKeyword.getKind());
+        assertEquals(FeatureAccessor.Source.METHOD, ifKeyword.getAccessor().get().getSource());
+        assertEquals(EntityAccessPlan.Kind.POSITION, plan.getProperty("startLine").get().getKind());
+
+        EntityAccessPlan.FeatureAccess elifs = plan.get(plan.getEntity().getRelation("elifs").get());
+        assertEquals(true, elifs.isFromField());
+        assertEquals(Multiplicity.MANY, elifs.getMultiplicity());
+        assertEquals(Python3Parser.ElifClauseContext.class, elifs.getValueType().get());
+        assertEquals(false, elifs.isMayBeDropped());
+    }
+
+    @Test
+    public void elementCache() {
+        Python3Parser.Single_inputContext astRoot = parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/hello_world.py"));
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+
+        Element notCached = reflectionMapper.toRootElement(astRoot);
+        assertNotSame(notCached.getAllChildren().get(0), notCached.getAllChildren().get(0));
+
+        reflectionMapper.enableElementCache(ElementCache.Retention.STRONG);
+        Element root = reflectionMapper.toRootElement(astRoot);
+        List<Element> firstWalk = ElementNavigator.allDescendants(root, true);
+        List<Element> secondWalk = ElementNavigator.allDescendants(root, true);
+        assertEquals(firstWalk.size(), secondWalk.size());
+        for (int i = 0; i < firstWalk.size(); i++) {
+            assertSame(firstWalk.get(i), secondWalk.get(i));
+        }
+        assertEquals(firstWalk.size(), reflectionMapper.getElementCacheStatistics().getMisses());
+        assertEquals(firstWalk.size() - 1, reflectionMapper.getElementCacheStatistics().getHits());
+
+        ElementCache cache = reflectionMapper.createElementCache(ElementCache.Retention.WEAK);
+        assertSame(reflectionMapper.toRootElement(astRoot, cache), reflectionMapper.toRootElement(astRoot, cache));
+        assertEquals(1, cache.getStatistics().getHits());
+    }
+
+    @Test
+    public void entitiesAreFrozen() {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        reflectionMapper.setAddPositions(true);
+        Entity ifStmt = reflectionMapper.getEntity(Python3Parser.If_stmtContext.class);
+        Entity whileStmt = reflectionMapper.getEntity(Python3Parser.While_stmtContext.class);
+        assertTrue(ifStmt.isFrozen());
+        for (int i = 0; i < ifStmt.getFeatures().size(); i++) {
+            Feature feature = ifStmt.getFeatures().get(i);
+            assertEquals(i, feature.getOrdinal());
+            assertSame(feature, ifStmt.getFeature(i));
+            assertSame(feature, reflectionMapper.getAccessPlan(Python3Parser.If_stmtContext.class).get(i).getFeature());
+        }
+        assertSame(ifStmt.getRelation("elifs").get(), ifStmt.getRelation("elifs").get());
+        assertEquals(AntlrReflectionMapper.START_LINE, ifStmt.getProperty("startLine").get());
+        assertNotSame(ifStmt.getProperty("startLine").get(), whileStmt.getProperty("startLine").get());
+        try {
+            ifStmt.addProperty(new Property("other", Property.Datatype.STRING, Multiplicity.ONE));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void frozenMapperCanBeShared() throws Exception {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        reflectionMapper.setAddPositions(true);
+        assertSame(reflectionMapper, reflectionMapper.freeze(Python3Parser.class));
+        assertTrue(reflectionMapper.isFrozen());
+        assertTrue(reflectionMapper.getEntity(Python3Parser.While_stmtContext.class).isFrozen());
+        try {
+            reflectionMapper.markAsTransparent(Python3Parser.StmtContext.class);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        String expected = new XmlExporter().toXmlString(reflectionMapper.toRootElement(
+                parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/hello_world.py"))), "root");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> new XmlExporter().toXmlString(reflectionMapper.toRootElement(
+                        parserFacade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/hello_world.py"))), "root")));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cachedTreeCanBeReadByManyThreads() throws Exception {
+        AntlrReflectionMapper reflectionMapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        reflectionMapper.setAddPositions(true);
+        reflectionMapper.freeze(Python3Parser.class);
+        ParserRuleContext astRoot = new Python3Parser(new CommonTokenStream(new Python3Lexer(new ANTLRInputStream(
+                this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py"))))).file_input();
+        String expected = new XmlExporter().toXmlString(reflectionMapper.toRootElement(astRoot), "root");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int run = 0; run < 4; run++) {
+                ElementCache cache = reflectionMapper.createElementCache(ElementCache.Retention.STRONG);
+                Element root = reflectionMapper.toRootElement(astRoot, cache);
+                List<Future<List<Element>>> walks = new ArrayList<>();
+                List<Future<String>> exports = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    walks.add(executor.submit(() -> ElementNavigator.allDescendants(root, true)));
+                    exports.add(executor.submit(() -> new XmlExporter().toXmlString((OrderedElement) root, "root")));
+                }
+                List<Element> firstWalk = walks.get(0).get();
+                // one element for each node
+                assertEquals(firstWalk.size(), cache.size());
+                for (Future<List<Element>> walk : walks) {
+                    List<Element> elements = walk.get();
+                    for (int i = 0; i < firstWalk.size(); i++) {
+                        assertSame(firstWalk.get(i), elements.get(i));
+                    }
+                }
+                for (Future<String> export : exports) {
+                    assertEquals(expected, export.get());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
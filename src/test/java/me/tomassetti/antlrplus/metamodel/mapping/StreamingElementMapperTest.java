@@ -0,0 +1,158 @@
+package me.tomassetti.antlrplus.metamodel.mapping;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Feature;
+import me.tomassetti.antlrplus.metamodel.Property;
+import me.tomassetti.antlrplus.metamodel.Relation;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.util.Pair;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+public class StreamingElementMapperTest {
+
+    private ParserFacade<Python3Parser.File_inputContext, Python3Parser> parserFacade = new ParserFacade<Python3Parser.File_inputContext, Python3Parser>() {
+        @Override
+        protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+            return new Python3Lexer(antlrInputStream);
+        }
+
+        @Override
+        protected Python3Parser getParser(TokenStream tokens) {
+            return new Python3Parser(tokens);
+        }
+
+        @Override
+        protected Python3Parser.File_inputContext getRoot(Python3Parser parser) {
+            return parser.file_input();
+        }
+    };
+
+    private static class Recorder implements ElementEventListener {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void startElement(Entity entity, Optional<Relation> containment, int startLine, int startColumn) {
+            events.add("start " + entity.getName() + " " + containment.map(Feature::getName).orElse("-") + " " + startLine + ":" + startColumn);
+        }
+
+        @Override
+        public void property(Property property, String value) {
+            events.add(property.getName() + "=" + value);
+        }
+
+        @Override
+        public void endElement(Entity entity, int endLine, int endColumn) {
+            events.add("end " + entity.getName() + " " + endLine + ":" + endColumn);
+        }
+    }
+
+    private static void walk(OrderedElement element, Optional<Relation> containment, ElementEventListener listener) {
+        listener.startElement(element.type(), containment, (Integer) element.getSingleProperty("startLine").get(),
+                (Integer) element.getSingleProperty("startColumn").get());
+        for (Pair<OrderedElement.ValueReference, Object> value : element.getOrderedValues()) {
+            Feature feature = value.getFirst().getFeature();
+            if (feature.isRelation()) {
+                walk((OrderedElement) value.getSecond(), Optional.of(feature.asRelation()), listener);
+            } else if (!AntlrReflectionMapper.POSITIONS_PROPERTIES.contains(feature)) {
+                Object raw = value.getSecond();
+                listener.property(feature.asProperty(), raw instanceof ParseTree ? ((ParseTree) raw).getText() : raw.toString());
+            }
+        }
+        listener.endElement(element.type(), (Integer) element.getSingleProperty("endLine").get(),
+                (Integer) element.getSingleProperty("endColumn").get());
+    }
+
+    private String read(String resource) throws IOException {
+        try (InputStream stream = this.getClass().getResourceAsStream(resource)) {
+            return new Scanner(stream, StandardCharsets.UTF_8.name()).useDelimiter("\\A").next();
+        }
+    }
+
+    private void assertSameEventsAsTheElements(String code, AntlrReflectionMapper mapper) {
+        Recorder expected = new Recorder();
+        walk(mapper.toRootElement(parserFacade.parseString(code)), Optional.empty(), expected);
+        Recorder streamed = new Recorder();
+        assertEquals(0, parserFacade.parseStringStreaming(code, mapper, streamed));
+        assertEquals(expected.events, streamed.events);
+        Recorder unbuffered = new Recorder();
+        assertEquals(0, parserFacade.parseUnbuffered(new StringReader(code), "code", mapper, unbuffered));
+        // the Python lexer emits the EOF with the indexes of the last chars, dropped by then in unbuffered mode
+        List<String> expectedUnbuffered = new ArrayList<>();
+        for (String event : expected.events) {
+            expectedUnbuffered.add(event.startsWith("EOF=") ? "EOF=<EOF>" : event);
+        }
+        assertEquals(expectedUnbuffered, unbuffered.events);
+    }
+
+    @Test
+    public void eventsFollowTheElements() throws IOException {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        assertSameEventsAsTheElements(read("/me/tomassetti/antlrplus/python/common.py"), mapper);
+    }
+
+    @Test
+    public void eventsFollowTheMappingConfiguration() throws IOException {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        mapper.markAsTransparent(Python3Parser.StmtContext.class);
+        mapper.markAsTransparent(Python3Parser.Compound_stmtContext.class);
+        mapper.markAsTreatAsToken(Python3Parser.TestContext.class);
+        mapper.addToRulesToDrop(Python3Parser.Import_stmtContext.class);
+        mapper.setRuleConfiguration(Python3Parser.If_stmtContext.class, new RuleMappingConfiguration().renameFeature("IF", "ifKeyword"));
+        mapper.setEntityName(Python3Parser.FuncdefContext.class, "Function");
+        assertSameEventsAsTheElements(read("/me/tomassetti/antlrplus/python/common.py"), mapper);
+    }
+
+    @Test
+    public void unbufferedEventsFollowTheElementsBeyondTheBuffers() throws IOException {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        StringBuilder code = new StringBuilder(read("/me/tomassetti/antlrplus/python/common.py"));
+        // tokens longer than the char buffer, and statements needing the parser to look far ahead
+        code.append("\ndoc = \"\"\"");
+        for (int i = 0; i < 100; i++) {
+            code.append("line ").append(i).append(" of a long string\n");
+        }
+        code.append("\"\"\"\n");
+        for (int i = 0; i < 50; i++) {
+            code.append("a").append(i).append(" = b");
+            for (int j = 0; j < 40; j++) {
+                code.append(" + c").append(j);
+            }
+            code.append(" if d").append(i).append(" else [e for e in (f, g, h)]\n");
+            code.append("x").append(i).append(", y").append(i).append(" = y").append(i).append(", x").append(i).append("\n");
+        }
+        assertSameEventsAsTheElements(code.toString(), mapper);
+    }
+
+    @Test
+    public void syntaxErrorsAreCounted() {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        Recorder streamed = new Recorder();
+        assertTrue(parserFacade.parseStringStreaming("def f(:\n    pass\n", mapper, streamed) > 0);
+        assertEquals("start File_input - 1:0", streamed.events.get(0));
+        assertTrue(streamed.events.get(streamed.events.size() - 1).startsWith("end File_input"));
+        Recorder unbuffered = new Recorder();
+        assertTrue(parserFacade.parseUnbuffered(new StringReader("def f(:\n    pass\n"), "code", mapper, unbuffered) > 0);
+        assertEquals(streamed.events, unbuffered.events);
+    }
+}
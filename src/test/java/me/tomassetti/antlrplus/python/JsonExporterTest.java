@@ -0,0 +1,113 @@
+package me.tomassetti.antlrplus.python;
+
+import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.json.JsonExporter;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.util.Pair;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.TokenStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class JsonExporterTest {
+
+    private final ParserFacade<Python3Parser.File_inputContext, Python3Parser> fileFacade = new ParserFacade<Python3Parser.File_inputContext, Python3Parser>() {
+        @Override
+        protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+            return new Python3Lexer(antlrInputStream);
+        }
+
+        @Override
+        protected Python3Parser getParser(TokenStream tokens) {
+            return new Python3Parser(tokens);
+        }
+
+        @Override
+        protected Python3Parser.File_inputContext getRoot(Python3Parser parser) {
+            return parser.file_input();
+        }
+    };
+
+    private OrderedElement parse(String code, boolean addPositions) {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(addPositions);
+        return mapper.toRootElement(fileFacade.parseString(code));
+    }
+
+    private static String withoutWhitespace(String json) {
+        StringBuilder compact = new StringBuilder();
+        boolean inString = false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                compact.append(c);
+                if (c == '\\') {
+                    compact.append(json.charAt(++i));
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (!Character.isWhitespace(c)) {
+                compact.append(c);
+                inString = c == '"';
+            }
+        }
+        return compact.toString();
+    }
+
+    @Test
+    public void compactOutput() {
+        OrderedElement element = parse("pass\n", true);
+        JsonExporter exporter = new JsonExporter();
+        exporter.setAvoidRedundantType(true);
+        exporter.doNotPrintPositions();
+        assertEquals("{\"role\":\"root\",\"type\":\"File_input\",\"children\":[" +
+                "{\"role\":\"stmt\",\"children\":[{\"role\":\"simple_stmt\",\"children\":[" +
+                "{\"role\":\"small_stmt\",\"children\":[{\"role\":\"pass_stmt\",\"children\":[" +
+                "{\"role\":\"PASS\",\"value\":\"pass\"}]}]},{\"role\":\"NEWLINE\",\"value\":\"\\n\"}]}]}," +
+                "{\"role\":\"EOF\",\"value\":\"<EOF>\"}]}", exporter.toJsonString(element, "root"));
+
+        exporter = new JsonExporter();
+        exporter.setPrintProperties(false);
+        exporter.setPropertySetting(AntlrReflectionMapper.START_LINE, JsonExporter.PropertySetting.AS_ATTRIBUTE);
+        assertEquals("{\"role\":\"file\",\"type\":\"File_input\",\"children\":[{\"role\":\"stmt\",\"type\":\"Stmt\",\"children\":[" +
+                "{\"role\":\"simple_stmt\",\"type\":\"Simple_stmt\",\"children\":[{\"role\":\"small_stmt\",\"type\":\"Small_stmt\",\"children\":[" +
+                "{\"role\":\"pass_stmt\",\"type\":\"Pass_stmt\"}]}]}]}]}", exporter.toJsonString(element, "file"));
+    }
+
+    @Test
+    public void prettyOutputIsTheCompactOneIndented() throws IOException {
+        String code = "def f(a, b):\r\n    s = \"x\\\"y\\\\ \u00e9\\t\"\r\n    return {'k': a}\r\n\r\nprint(f(1, 2))\r\n";
+        OrderedElement element = parse(code, true);
+        JsonExporter exporter = new JsonExporter();
+        exporter.setPropertySetting(AntlrReflectionMapper.START_LINE, JsonExporter.PropertySetting.AS_ATTRIBUTE);
+        exporter.setPropertySetting(AntlrReflectionMapper.END_LINE, JsonExporter.PropertySetting.AS_ATTRIBUTE);
+        String compact = exporter.toJsonString(element, "root");
+        assertTrue(compact.startsWith("{\"role\":\"root\",\"type\":\"File_input\",\"attributes\":{\"endLine\":6,\"startLine\":1},\"children\":["));
+        assertTrue(compact.contains("{\"role\":\"NEWLINE\",\"value\":\"\\r"));
+        assertTrue(compact.contains("{\"role\":\"STRING_LITERAL\",\"value\":\"\\\"x\\\\\\\"y\\\\\\\\ \u00e9\\\\t\\\"\"}"));
+
+        exporter.setPrettyPrinting(true);
+        String pretty = exporter.toJsonString(element, "root");
+        assertTrue(pretty.startsWith("{\n  \"role\": \"root\",\n  \"type\": \"File_input\",\n  \"attributes\": {\n    \"endLine\": 6,\n"));
+        assertEquals(compact, withoutWhitespace(pretty));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        exporter.writeJson(element, "root", outputStream);
+        assertEquals(pretty, new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+
+        File file = File.createTempFile("exported", ".json");
+        file.deleteOnExit();
+        assertTrue(exporter.freeze().exportAll(Collections.singletonList(new Pair<>(element, file))).getFailures().isEmpty());
+        assertEquals(pretty + "\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+}
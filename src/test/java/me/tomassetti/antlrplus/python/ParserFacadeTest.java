@@ -1,14 +1,50 @@
 package me.tomassetti.antlrplus.python;
 
+import me.tomassetti.antlrplus.BatchParser;
+import me.tomassetti.antlrplus.EditableDocument;
+import me.tomassetti.antlrplus.ParseCache;
+import me.tomassetti.antlrplus.ParseProfile;
 import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.Element;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.xml.XmlExporter;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.Interval;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class ParserFacadeTest {
 
@@ -52,4 +88,374 @@ public class ParserFacadeTest {
 
     }
 
+    private ParserFacade<Python3Parser.File_inputContext, Python3Parser> fileFacade() {
+        return fileFacade(new AtomicInteger());
+    }
+
+    private ParserFacade<Python3Parser.File_inputContext, Python3Parser> fileFacade(AtomicInteger syntaxErrors) {
+        return new ParserFacade<Python3Parser.File_inputContext, Python3Parser>() {
+            @Override
+            protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+                return new Python3Lexer(antlrInputStream);
+            }
+
+            @Override
+            protected Python3Parser getParser(TokenStream tokens) {
+                Python3Parser parser = new Python3Parser(tokens);
+                parser.removeErrorListeners();
+                parser.addErrorListener(new BaseErrorListener() {
+                    @Override
+                    public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                        syntaxErrors.incrementAndGet();
+                    }
+                });
+                return parser;
+            }
+
+            @Override
+            protected Python3Parser.File_inputContext getRoot(Python3Parser parser) {
+                return parser.file_input();
+            }
+
+            @Override
+            protected Optional<Object> saveLexerState(Lexer lexer) {
+                return Optional.ofNullable(((Python3Lexer) lexer).saveState());
+            }
+
+            @Override
+            protected void restoreLexerState(Lexer lexer, Object state) {
+                ((Python3Lexer) lexer).restoreState(state);
+            }
+        };
+    }
+
+    private String tree(ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade, String resource) throws IOException {
+        try (InputStream inputStream = this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/" + resource)) {
+            return tree(facade.parseStream(inputStream));
+        }
+    }
+
+    private String tree(Python3Parser.File_inputContext root) {
+        return root.toStringTree(Arrays.asList(Python3Parser.ruleNames));
+    }
+
+    @Test
+    public void sllThenLlGivesTheSameTreesAndReportsErrorsOnce() throws IOException {
+        AtomicInteger llErrors = new AtomicInteger();
+        AtomicInteger twoStageErrors = new AtomicInteger();
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> ll = fileFacade(llErrors);
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> twoStage = fileFacade(twoStageErrors);
+        twoStage.setParsingMode(ParserFacade.ParsingMode.SLL_THEN_LL);
+        for (String resource : new String[]{"hello_world.py", "common.py", "main.py"}) {
+            assertEquals(resource, tree(ll, resource), tree(twoStage, resource));
+        }
+        assertEquals(3, twoStage.getFallbackStatistics().getSllParsings());
+        assertEquals(0, twoStage.getFallbackStatistics().getFallbacks());
+
+        String invalid = "print((1\n";
+        assertEquals(tree(ll.parseString(invalid)), tree(twoStage.parseString(invalid)));
+        assertEquals(1, twoStage.getFallbackStatistics().getFallbacks());
+        assertEquals(llErrors.get(), twoStageErrors.get());
+    }
+
+    @Test
+    public void allTheInputsGiveTheSameTree() throws IOException {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade();
+        String expected = tree(facade, "common.py");
+        CharStream stream = facade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py")).getStart().getInputStream();
+        String code = stream.getText(Interval.of(0, stream.size() - 1));
+
+        assertEquals(expected, tree(facade.parseString(code)));
+        assertEquals(expected, tree(facade.parseString(new StringBuilder(code))));
+        assertEquals(expected, tree(facade.parseString(code.toCharArray())));
+        assertEquals(expected, tree(facade.parseString((code + "garbage").toCharArray(), code.length())));
+        assertEquals(expected, tree(facade.parseString(CharBuffer.wrap(code))));
+        CharBuffer slice = CharBuffer.wrap(("garbage" + code).toCharArray(), 7, code.length());
+        assertEquals(expected, tree(facade.parseString(slice)));
+        assertEquals(7, slice.position());
+
+        Path file = Files.createTempFile("common", ".py");
+        try {
+            Files.write(file, code.getBytes(StandardCharsets.UTF_8));
+            assertEquals(expected, tree(facade.parseFile(file)));
+            assertEquals(expected, tree(facade.parseFile(file.toFile())));
+            Python3Parser.File_inputContext root = facade.parseMappedFile(file);
+            assertEquals(expected, tree(root));
+            assertEquals(file.toString(), root.getStart().getInputStream().getSourceName());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void batchParsingGoesOnAfterAFailure() throws IOException {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade();
+        String[] resources = {"common.py", "hello_world.py", "main.py", "common.py", "main.py"};
+        Path directory = Files.createTempDirectory("batch");
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < resources.length; i++) {
+            Path file = directory.resolve(i + "_" + resources[i]);
+            try (InputStream inputStream = this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/" + resources[i])) {
+                Files.copy(inputStream, file);
+            }
+            files.add(file);
+        }
+        files.add(2, directory.resolve("missing.py"));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<BatchParser.Result<Python3Parser.File_inputContext>> results = facade.parseAll(files);
+            assertEquals(files.size(), results.size());
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals(files.get(i), results.get(i).getFile());
+            }
+            assertFalse(results.get(2).isSuccess());
+            assertTrue(results.get(2).getFailure().get() instanceof IOException);
+            assertEquals(tree(facade, "main.py"), tree(results.get(5).getRoot().get()));
+
+            BatchParser<Python3Parser.File_inputContext> batchParser = new BatchParser<>(facade);
+            batchParser.setExecutor(executor);
+            batchParser.setMaxInFlight(2);
+            batchParser.setOrder(BatchParser.Order.COMPLETION);
+            List<Integer> indexes = new ArrayList<>();
+            batchParser.parseAll(files, result -> indexes.add(result.getIndex()));
+            indexes.sort(null);
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), indexes);
+
+            batchParser.setOrder(BatchParser.Order.INPUT);
+            assertEquals(5, batchParser.stream(files).filter(BatchParser.Result::isSuccess).count());
+        } finally {
+            executor.shutdown();
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void warmUpStopsWhenTheDfaIsStable() throws IOException, ExecutionException, InterruptedException {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade();
+        List<String> corpus = new ArrayList<>();
+        for (String resource : new String[]{"common.py", "main.py"}) {
+            CharStream stream = facade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/" + resource)).getStart().getInputStream();
+            corpus.add(stream.getText(Interval.of(0, stream.size() - 1)));
+        }
+        ParserFacade.WarmUpReport report = facade.warmUpInBackground(corpus, 5, ForkJoinPool.commonPool()).get();
+        assertTrue(report.isStable());
+        assertEquals(2, report.getDocuments());
+        assertEquals(report.getPasses() + 1, report.getDfaStates().size());
+        assertTrue(facade.getDfaStates() > 0);
+        assertEquals((Long) facade.getDfaStates(), report.getDfaStates().get(report.getPasses()));
+
+        assertEquals(1, facade.warmUp(corpus, 5).getPasses());
+    }
+
+    private EditableDocument.Edit edit(EditableDocument<Python3Parser.File_inputContext, Python3Parser> document, String before, String after) {
+        int offset = document.getText().indexOf(before);
+        assertTrue(before, offset != -1);
+        return document.edit(offset, before.length(), after);
+    }
+
+    @Test
+    public void editedDocumentsGiveTheSameTreesAsAFreshParsing() throws IOException {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade();
+        CharStream stream = facade.parseStream(this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/common.py")).getStart().getInputStream();
+        EditableDocument<Python3Parser.File_inputContext, Python3Parser> document = facade.openDocument(stream.getText(Interval.of(0, stream.size() - 1)));
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        OrderedElement root = document.getRootElement(mapper);
+        Element firstStatement = root.getAllChildren().get(0);
+
+        EditableDocument.Edit edit = edit(document, "self.c = {}", "self.c = {'a': 1}");
+        assertTrue(edit.getReparsed().isPresent());
+        assertFalse(edit.isFullReparse());
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+        assertTrue(root == document.getRootElement(mapper));
+        assertTrue(firstStatement == root.getAllChildren().get(0));
+
+        edit = edit(document, "def count(self, what):\n", "def count(self, what):\n        print(what)\n");
+        assertFalse(edit.isFullReparse());
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+
+        edit = edit(document, "#for the _equal method only", "#for equality");
+        assertFalse(edit.getReparsed().isPresent());
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+
+        edit(document, "verbose = value", "verbose = not value");
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+        assertEquals(document.getText().split("\n", -1).length, document.getTokens().get(document.getTokens().size() - 1).getLine());
+
+        edit(document, "print(msg)", "print(msg");
+        assertTrue(document.hasSyntaxErrors());
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+
+        edit = edit(document, "print(msg", "print(msg)");
+        assertTrue(edit.isFullReparse());
+        assertFalse(document.hasSyntaxErrors());
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+
+        edit(document, "def print_verbose(msg):\n    if get_verbose():\n        print(msg)\n", "");
+        assertEquals(tree(facade.parseString(document.getText())), tree(document.getRoot()));
+        for (Token token : document.getTokens()) {
+            if (token.getType() != Token.EOF) {
+                assertEquals(document.getText().substring(token.getStartIndex(), token.getStopIndex() + 1), token.getText());
+            }
+        }
+    }
+
+    @Test
+    public void editsInsideCompoundStatementsKeepTheLabels() {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade();
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        String code = "def f(a, b):\n    if a > 1:\n        x = 1\n    elif b > 1:\n        x = 2\n    else:\n        x = 3\n    return x\n";
+        EditableDocument<Python3Parser.File_inputContext, Python3Parser> document = facade.openDocument(code);
+
+        EditableDocument.Edit edit = edit(document, "        x = 1\n", "        x = 1\n        y = 2\n");
+        assertFalse(edit.isFullReparse());
+        assertEquals(xml(mapper, facade.parseString(document.getText())), xml(mapper, document.getRoot()));
+        Python3Parser.If_stmtContext ifStmt = (Python3Parser.If_stmtContext) edit.getReparsed().get().getParent();
+        assertTrue(ifStmt.body == ifStmt.suite(0));
+
+        edit = edit(document, "elif b > 1", "elif bb > 1");
+        assertFalse(edit.isFullReparse());
+        assertEquals(xml(mapper, facade.parseString(document.getText())), xml(mapper, document.getRoot()));
+        assertTrue(edit.getReparsed().get() == ifStmt.elifClause(0));
+        assertTrue(ifStmt.elifs.get(0) == ifStmt.elifClause(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void documentsNeedTheStateOfThePythonLexer() {
+        new ParserFacade<Python3Parser.File_inputContext, Python3Parser>() {
+            @Override
+            protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+                return new Python3Lexer(antlrInputStream);
+            }
+
+            @Override
+            protected Python3Parser getParser(TokenStream tokens) {
+                return new Python3Parser(tokens);
+            }
+
+            @Override
+            protected Python3Parser.File_inputContext getRoot(Python3Parser parser) {
+                return parser.file_input();
+            }
+        }.openDocument("x = 1\n");
+    }
+
+    private String xml(AntlrReflectionMapper mapper, Python3Parser.File_inputContext root) {
+        return new XmlExporter().toXmlString(mapper.toRootElement(root), "root");
+    }
+
+    private String resource(String resource) throws IOException {
+        try (InputStream inputStream = this.getClass().getResourceAsStream("/me/tomassetti/antlrplus/python/" + resource)) {
+            return new Scanner(inputStream, StandardCharsets.UTF_8.name()).useDelimiter("\\A").next();
+        }
+    }
+
+    @Test
+    public void cachedTreesAreTheSameAsTheParsedOnes() throws IOException {
+        AtomicInteger syntaxErrors = new AtomicInteger();
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade(syntaxErrors);
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        mapper.freeze(Python3Parser.class);
+        String common = resource("common.py");
+        String main = resource("main.py");
+        String expected = new XmlExporter().toXmlString(mapper.toRootElement(facade.parseString(common)), "root");
+
+        ParseCache<Python3Parser.File_inputContext, Python3Parser> cache = new ParseCache<>(facade, mapper, Long.MAX_VALUE);
+        assertEquals(expected, new XmlExporter().toXmlString(cache.parseString(common), "root"));
+        assertEquals(expected, new XmlExporter().toXmlString(cache.parseString(common), "root"));
+        cache.parseString(main);
+        assertEquals(1, cache.getStatistics().getMemoryHits());
+        assertEquals(2, cache.getStatistics().getMisses());
+        assertEquals(common.getBytes(StandardCharsets.UTF_8).length, cache.getStatistics().getBytesSaved());
+        assertEquals(2, cache.getSize());
+
+        cache.parseString("def f(:\n    pass\n");
+        cache.parseString("def f(:\n    pass\n");
+        assertEquals(2, syntaxErrors.getAndSet(0));
+
+        ParseCache<Python3Parser.File_inputContext, Python3Parser> small = new ParseCache<>(facade, mapper, Long.MAX_VALUE);
+        small.parseString(main);
+        long mainSize = small.getUsedBytes();
+        small.clear();
+        small.parseString(common);
+        long limit = mainSize + small.getUsedBytes() - 1;
+        small = new ParseCache<>(facade, mapper, limit);
+        small.parseString(main);
+        small.parseString(common);
+        small.parseString(main);
+        assertEquals(1, small.getSize());
+        assertTrue(small.getUsedBytes() <= limit);
+        assertEquals(2, small.getStatistics().getEvictions());
+        assertEquals(3, small.getStatistics().getMisses());
+
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            cache = new ParseCache<>(facade, mapper, 0);
+            cache.enableDiskTier(directory);
+            cache.parseString(common);
+            cache = new ParseCache<>(facade, mapper, Long.MAX_VALUE);
+            cache.enableDiskTier(directory);
+            assertEquals(expected, new XmlExporter().toXmlString(cache.parseString(common), "root"));
+            assertEquals(1, cache.getStatistics().getDiskHits());
+            assertEquals(0, cache.getStatistics().getMisses());
+            assertEquals(0, cache.getStatistics().getDiskFailures());
+
+            AntlrReflectionMapper other = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+            other.freeze(Python3Parser.class);
+            ParseCache<Python3Parser.File_inputContext, Python3Parser> otherCache = new ParseCache<>(facade, other, Long.MAX_VALUE);
+            otherCache.enableDiskTier(directory);
+            otherCache.parseString(common);
+            assertEquals(1, otherCache.getStatistics().getMisses());
+        } finally {
+            for (Path file : Files.list(directory).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cachesNeedAFrozenMapper() {
+        new ParseCache<>(fileFacade(), new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class), 1024);
+    }
+
+    @Test
+    public void profilingRanksTheDecisionsOfTheGrammar() throws IOException {
+        ParserFacade<Python3Parser.File_inputContext, Python3Parser> facade = fileFacade();
+        String common = resource("common.py");
+        String main = resource("main.py");
+        ParseProfile profile = facade.profile(Arrays.asList(common, main));
+        assertFalse(facade.isProfiling());
+        assertEquals(2, profile.getDocuments());
+        List<ParseProfile.Decision> ranking = profile.getRanking();
+        assertFalse(ranking.isEmpty());
+        for (int i = 1; i < ranking.size(); i++) {
+            assertTrue(ranking.get(i - 1).getTimeInPrediction() >= ranking.get(i).getTimeInPrediction());
+        }
+        assertEquals(profile.getTotalTimeInPrediction(), ranking.stream().mapToLong(ParseProfile.Decision::getTimeInPrediction).sum());
+        assertTrue(ranking.stream().noneMatch(d -> d.getAlternative().isPresent()));
+
+        profile.setGrammar(resource("Python3.g4"));
+        // decisions taken on the next token alone are not predicted by the simulator
+        ParseProfile.Decision expressions = profile.getRanking().stream()
+                .filter(d -> d.getRuleName().equals("testlist_star_expr") && d.getKind() == ParseProfile.Kind.STAR_LOOP).findFirst().get();
+        assertEquals("testlist_star_expr:1", expressions.getLocation());
+        assertEquals("( test | star_expr ) ( ',' ( test | star_expr ) )* ','?", expressions.getAlternativeText().get());
+        ParseProfile.Decision arguments = profile.getRanking().stream()
+                .filter(d -> d.getRuleName().equals("argument")).findFirst().get();
+        assertEquals(ParseProfile.Kind.RULE_ALTERNATIVES, arguments.getKind());
+        assertFalse(arguments.getAlternative().isPresent());
+        assertTrue(arguments.getLine().isPresent());
+        assertTrue(profile.toReport(ranking.size()).contains("testlist_star_expr:1"));
+
+        facade.enableProfiling();
+        facade.parseString(main);
+        assertEquals(1, facade.getProfile().getDocuments());
+        assertTrue(facade.profile(Collections.singletonList(main)) == facade.getProfile());
+        assertEquals(2, facade.getProfile().getDocuments());
+        assertEquals(tree(facade, "main.py"), tree(facade.parseString(main)));
+    }
 }
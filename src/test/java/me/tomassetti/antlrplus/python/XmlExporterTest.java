@@ -1,18 +1,34 @@
 package me.tomassetti.antlrplus.python;
 
 import me.tomassetti.antlrplus.ParserFacade;
+import me.tomassetti.antlrplus.metamodel.Entity;
+import me.tomassetti.antlrplus.metamodel.Property;
 import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
 import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.util.Pair;
 import me.tomassetti.antlrplus.xml.XmlExporter;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.TokenStream;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 
@@ -150,4 +166,125 @@ public class XmlExporterTest {
                 "</root>\n", new XmlExporter().toXmlString(element, "root"));
     }
 
+    private void assertStreamedAsTheDocument(XmlExporter exporter, OrderedElement element) throws IOException {
+        String expected = exporter.toXmlString(element, "root");
+        StringWriter writer = new StringWriter();
+        exporter.writeXml(element, "root", writer);
+        assertEquals(expected, writer.toString());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        exporter.writeXml(element, "root", outputStream);
+        assertEquals(expected, new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private final ParserFacade<Python3Parser.File_inputContext, Python3Parser> fileFacade = new ParserFacade<Python3Parser.File_inputContext, Python3Parser>() {
+        @Override
+        protected Lexer getLexer(ANTLRInputStream antlrInputStream) {
+            return new Python3Lexer(antlrInputStream);
+        }
+
+        @Override
+        protected Python3Parser getParser(TokenStream tokens) {
+            return new Python3Parser(tokens);
+        }
+
+        @Override
+        protected Python3Parser.File_inputContext getRoot(Python3Parser parser) {
+            return parser.file_input();
+        }
+    };
+
+    @Test
+    public void streamedXmlIsTheSameAsTheDocument() throws IOException {
+        String code = "def f(a, b):\r\n    s = \"x]]>y & <z> \u00e9\"\r\n    return ''\r\n\r\nprint(f(1, 2))\r\n";
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.setAddPositions(true);
+        OrderedElement element = mapper.toRootElement(fileFacade.parseString(code));
+
+        XmlExporter exporter = new XmlExporter();
+        assertStreamedAsTheDocument(exporter, element);
+        exporter.setUseCDataByDefault(false);
+        assertStreamedAsTheDocument(exporter, element);
+        exporter.setAvoidRedundantType(true);
+        exporter.doNotPrintPositions();
+        assertStreamedAsTheDocument(exporter, element);
+        for (Entity entity : mapper.allKnownEntities()) {
+            for (Property property : entity.getProperties()) {
+                // newlines in attributes are not written as character references by the stream
+                if (property.isSingle() && !property.getName().equals("NEWLINE") && !property.getName().equals("DEDENT")) {
+                    exporter.setPropertySetting(property, XmlExporter.PropertySetting.AS_ATTRIBUTE);
+                }
+            }
+        }
+        exporter.setPropertySetting(AntlrReflectionMapper.START_LINE, XmlExporter.PropertySetting.AS_NODE_WITH_CDATA);
+        exporter.setPrintProperties(true);
+        assertStreamedAsTheDocument(exporter, element);
+        exporter.setPrintProperties(false);
+        assertStreamedAsTheDocument(exporter, element);
+
+        File file = File.createTempFile("exported", ".xml");
+        file.deleteOnExit();
+        exporter.toXmlFile(element, file, "root");
+        assertEquals(exporter.toXmlString(element, "root") + System.lineSeparator(),
+                new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset()));
+    }
+
+    @Test
+    public void frozenExportersExportManyDocumentsConcurrently() throws IOException {
+        AntlrReflectionMapper mapper = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        mapper.freeze(Python3Parser.class);
+        XmlExporter exporter = new XmlExporter();
+        exporter.setUseCDataByDefault(false);
+        assertSame(exporter, exporter.freeze());
+        assertTrue(exporter.isFrozen());
+        try {
+            exporter.setPrintProperties(false);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        List<Pair<OrderedElement, File>> documents = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            OrderedElement element = mapper.toRootElement(fileFacade.parseString("def f" + i + "(a):\n    return a * " + i + "\n"));
+            File file = File.createTempFile("exported", ".xml");
+            file.deleteOnExit();
+            documents.add(new Pair<>(element, file));
+            expected.add(exporter.toXmlString(element, XmlExporter.ROOT_ROLE) + System.lineSeparator());
+        }
+        documents.add(new Pair<>(documents.get(0).getFirst(), new File("does/not/exist/exported.xml")));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            XmlExporter.ExportReport report = exporter.exportAll(documents, executor);
+            assertEquals(13, report.getDocuments());
+            assertEquals(1, report.getFailures().size());
+            assertEquals(12, report.getFailures().get(0).getIndex());
+            assertTrue(report.getFailures().get(0).getFailure().get() instanceof FileNotFoundException);
+            long bytes = 0;
+            for (int i = 0; i < 12; i++) {
+                byte[] written = Files.readAllBytes(documents.get(i).getSecond().toPath());
+                assertEquals(expected.get(i), new String(written, Charset.defaultCharset()));
+                assertEquals(written.length, report.getResults().get(i).getBytes());
+                bytes += written.length;
+            }
+            assertEquals(bytes, report.getBytesWritten());
+            assertTrue(report.getDocumentsPerSecond() > 0);
+        } finally {
+            executor.shutdown();
+        }
+
+        File full = new File("/dev/full");
+        if (full.exists()) {
+            // the file opens, the writes fail
+            XmlExporter.ExportReport report = exporter.exportAll(Collections.singletonList(new Pair<>(documents.get(0).getFirst(), full)));
+            assertTrue(report.getFailures().get(0).getFailure().get() instanceof IOException);
+        }
+
+        try {
+            new XmlExporter().exportAll(documents);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package me.tomassetti.antlrplus.benchmark;
+
+import me.tomassetti.antlrplus.metamodel.mapping.AntlrReflectionMapper;
+import me.tomassetti.antlrplus.model.OrderedElement;
+import me.tomassetti.antlrplus.python.Python3Lexer;
+import me.tomassetti.antlrplus.python.Python3Parser;
+import me.tomassetti.antlrplus.python.elements.Python3ElementFactory;
+import me.tomassetti.antlrplus.util.Pair;
+import me.tomassetti.antlrplus.xml.XmlExporter;
+
+/**
+ * Compares walking a whole tree with reflective elements and with the elements generated by the
+ * ElementClassGenerator (see the generateTestElementClasses task).
+ */
+public class GeneratedElementsBenchmark {
+
+    private static int sink;
+
+    private static void walk(OrderedElement element) {
+        for (Pair<OrderedElement.ValueReference, Object> value : element.getOrderedValues()) {
+            if (value.getSecond() instanceof OrderedElement) {
+                walk((OrderedElement) value.getSecond());
+            } else {
+                sink++;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Python3Parser.File_inputContext root = BenchmarkSupport.pythonFacade().parseString(BenchmarkSupport.resource(BenchmarkSupport.COMMON_PY));
+        AntlrReflectionMapper reflective = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        AntlrReflectionMapper generated = new AntlrReflectionMapper(Python3Parser.ruleNames, Python3Lexer.class);
+        generated.setElementFactory(new Python3ElementFactory());
+
+        String expected = new XmlExporter().toXmlString(reflective.toRootElement(root), XmlExporter.ROOT_ROLE);
+        String actual = new XmlExporter().toXmlString(generated.toRootElement(root), XmlExporter.ROOT_ROLE);
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException("The generated elements do not produce the same XML");
+        }
+
+        int iterations = 200;
+        double viaReflection = BenchmarkSupport.time(iterations, () -> walk(reflective.toRootElement(root)));
+        double viaGenerated = BenchmarkSupport.time(iterations, () -> walk(generated.toRootElement(root)));
+        BenchmarkSupport.report("reflective elements, per tree", viaReflection);
+        BenchmarkSupport.report("generated elements, per tree", viaGenerated);
+        System.out.println("(sink " + sink + ")");
+    }
+}